@@ -0,0 +1,80 @@
+package benchmarks;
+
+import memQueue.QueueConfig;
+import memQueue.QueueId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import readResponse.ReadBatchResponse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bursts of entries all enqueued in the same millisecond, so all sharing one maturity time, and dealt with as a
+ * group. A burst of 1 is the baseline the larger bursts are measured against. Results are per burst, divide by the
+ * burst size for the cost per entry.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BurstBenchmark {
+
+    @Param({"1", "16", "256"})
+    public int burst;
+
+    @Param({"16", "1024"})
+    public int payloadBytes;
+
+    QueueId queue;
+    ArrayList<byte[]> objects;
+
+    @Setup(Level.Trial)
+    public void create() throws Exception {
+        queue = new QueueId("burst-" + QueueBenchmark.QUEUES.incrementAndGet(), new QueueConfig());
+        objects = new ArrayList<byte[]>(burst);
+        for (int i = 0; i < burst; i++) {
+            objects.add(new byte[payloadBytes]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        queue.deleteQueue();
+    }
+
+    @Benchmark
+    public long[] enqueueAllDequeueAll() throws Exception {
+        long[] receipts = queue.enqueueAll(objects);
+        queue.dequeueAll(receipts);
+        return receipts;
+    }
+
+    /*
+    The burst goes in, is read back in one batch and deleted.
+     */
+    @Benchmark
+    public int enqueueAllReadBatchDequeueAll() throws Exception {
+        queue.enqueueAll(objects);
+        ReadBatchResponse batch = queue.readBatch(burst, 60000);
+        queue.dequeueAll(Arrays.copyOf(batch.receipts, batch.count));
+        return batch.count;
+    }
+}
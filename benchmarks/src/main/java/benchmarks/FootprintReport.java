@@ -0,0 +1,104 @@
+package benchmarks;
+
+import memQueue.LockFreeQueue;
+import memQueue.QueueConfig;
+import memQueue.QueueId;
+import memQueue.TimeIndexKind;
+import readResponse.ReadBatchResponse;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * The memory each queued entry costs, measured on the real heap.
+ * <p>
+ * For each kind of queue, object size and depth the heap in use, and the direct memory for queues keeping their
+ * objects off the heap, is read after a full collection, the queue filled to depth with objects of the size, and
+ * the memory read again after another collection. The difference over the depth is the cost of an entry. Taking
+ * away the object bytes leaves the overhead, which is set beside the queue's own estimatedOverheadBytes so the
+ * estimate can be checked. Run it with a heap big enough for the largest depth and object size asked for, and
+ * preferably with -XX:+UseSerialGC, whose collections leave the least behind.
+ * <p>
+ * Usage: java -cp benchmarks/target/benchmarks.jar benchmarks.FootprintReport [depths [object sizes]]
+ * where each is a comma separated list, by default 100000,1000000 and 0,16,1024. Combinations whose objects would
+ * come to more than a quarter of the heap are skipped.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class FootprintReport {
+    static final String[] KINDS = {"tree map", "timing wheel", "8 shards", "off heap", "lock free"};
+
+    public static void main(String[] args) throws Exception {
+        int[] depths = args.length > 0 ? parse(args[0]) : new int[] {100000, 1000000};
+        int[] sizes = args.length > 1 ? parse(args[1]) : new int[] {0, 16, 1024};
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        System.out.printf("%-14s %8s %10s %14s %16s %16s%n", "queue", "object", "depth", "bytes/entry",
+                "overhead/entry", "estimated/entry");
+        for (String kind : KINDS) {
+            for (int size : sizes) {
+                for (int depth : depths) {
+                    if ((long) depth * (size + 16) > maxHeap / 4) {
+                        continue;
+                    }
+                    measure(kind, size, depth);
+                }
+            }
+        }
+    }
+
+    static void measure(String kind, int size, int depth) throws Exception {
+        long before = usedMemory();
+        QueueId queue = null;
+        LockFreeQueue lockFree = null;
+        if (kind.equals("lock free")) {
+            lockFree = new LockFreeQueue("footprint");
+            for (int i = 0; i < depth; i++) {
+                lockFree.enqueue(new byte[size]);
+            }
+        } else {
+            QueueConfig config = new QueueConfig();
+            config.timeIndex = kind.equals("timing wheel") ? TimeIndexKind.TIMING_WHEEL : TimeIndexKind.TREE_MAP;
+            config.shards = kind.equals("8 shards") ? 8 : 1;
+            config.offHeapPayloads = kind.equals("off heap");
+            queue = new QueueId("footprint-" + QueueBenchmark.QUEUES.incrementAndGet(), config);
+            for (int i = 0; i < depth; i++) {
+                queue.enqueue(new byte[size]);
+            }
+        }
+        long used = usedMemory() - before;
+        long estimated = queue != null ? queue.estimatedOverheadBytes() : lockFree.estimatedOverheadBytes();
+        System.out.printf("%-14s %8d %10d %14.1f %16.1f %16.1f%n", kind, size, depth, (double) used / depth,
+                (double) used / depth - size, (double) estimated / depth);
+        if (queue != null) {
+            ReadBatchResponse batch;
+            do {
+                batch = queue.readBatch(100000, 0);
+                queue.dequeueAll(Arrays.copyOf(batch.receipts, batch.count));
+            } while (batch.count > 0);
+            queue.deleteQueue();
+        }
+    }
+
+    /*
+    Heap and direct memory in use once everything that can be collected has been.
+     */
+    static long usedMemory() throws InterruptedException {
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                used += pool.getMemoryUsed();
+            }
+        }
+        return used;
+    }
+
+    static int[] parse(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+}
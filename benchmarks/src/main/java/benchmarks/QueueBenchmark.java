@@ -0,0 +1,121 @@
+package benchmarks;
+
+import memQueue.QueueConfig;
+import memQueue.QueueId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import readResponse.ReadBatchResponse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The QueueId hot paths: enqueue, read and dequeue.
+ * <p>
+ * Each trial builds a queue of the given shards and fills it to depth entries of payloadBytes each, all mature. The
+ * benchmarks then hold the depth steady, each operation putting back what it takes, so every iteration measures the
+ * same queue. deletedRatio is the share of the entries enqueued while filling that are deleted again before the
+ * trial starts, spread at random, leaving the slot tables and time index with holes to work around the way a
+ * queue that has been in use for a while has. Run with more threads, see RunAll, to measure contention.
+ * <p>
+ * Same millisecond bursts are measured by BurstBenchmark.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueBenchmark {
+    static final AtomicInteger QUEUES = new AtomicInteger();
+
+    @Param({"16", "1024"})
+    public int payloadBytes;
+
+    @Param({"1000", "100000"})
+    public int depth;
+
+    @Param({"0", "0.5"})
+    public double deletedRatio;
+
+    @Param({"1", "8"})
+    public int shards;
+
+    QueueId queue;
+    byte[] payload;
+
+    @Setup(Level.Trial)
+    public void fill() throws Exception {
+        QueueConfig config = new QueueConfig();
+        config.shards = shards;
+        queue = new QueueId("bench-" + QUEUES.incrementAndGet(), config);
+        payload = new byte[payloadBytes];
+        int enqueued = (int) (depth / (1 - deletedRatio));
+        ArrayList<Long> receipts = new ArrayList<Long>(enqueued);
+        for (int i = 0; i < enqueued; i++) {
+            receipts.add(queue.enqueue(payload));
+        }
+        Collections.shuffle(receipts, new Random(42));
+        for (int i = 0; i < enqueued - depth; i++) {
+            queue.dequeue(receipts.get(i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void empty() throws Exception {
+        ReadBatchResponse batch;
+        do {
+            batch = queue.readBatch(10000, 0);
+            queue.dequeueAll(Arrays.copyOf(batch.receipts, batch.count));
+        } while (batch.count > 0);
+        queue.deleteQueue();
+    }
+
+    /*
+    Add an entry and take it straight back out by its receipt.
+     */
+    @Benchmark
+    public long enqueueDequeue() throws Exception {
+        long receipt = queue.enqueue(payload);
+        queue.dequeue(receipt);
+        return receipt;
+    }
+
+    /*
+    Read the earliest mature entry with a timeout of 0, which puts it straight back on the time index mature, so the
+    depth is unchanged. This is the cost of a read alone.
+     */
+    @Benchmark
+    public long read() throws Exception {
+        return queue.read(0).receipt;
+    }
+
+    /*
+    The whole life of an entry: it goes in, is read and is deleted.
+     */
+    @Benchmark
+    public long enqueueReadDequeue() throws Exception {
+        queue.enqueue(payload);
+        long receipt = queue.read(60000).receipt;
+        queue.dequeue(receipt);
+        return receipt;
+    }
+}
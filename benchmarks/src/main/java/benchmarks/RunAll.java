@@ -0,0 +1,47 @@
+package benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run every benchmark with the GC profiler, so the results give the allocation rate per operation alongside the
+ * throughput, and run the queue benchmarks at each of the thread counts given, by default 1, 2, 4 and 8. The
+ * TimeDistQueue benchmark gives each thread an index of its own, there being nothing shared to contend on, so it
+ * runs with the first thread count only, as does the scheduled benchmark with its costly setup. Each run's results
+ * are written as JSON to results-threads-N.json in the working directory, ready to compare against a later run.
+ * <p>
+ * Usage: java -cp benchmarks/target/benchmarks.jar benchmarks.RunAll [thread counts...]
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class RunAll {
+
+    public static void main(String[] args) throws RunnerException {
+        int[] threadCounts = {1, 2, 4, 8};
+        if (args.length > 0) {
+            threadCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                threadCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        for (int threads : threadCounts) {
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .include(QueueBenchmark.class.getSimpleName())
+                    .include(BurstBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("results-threads-" + threads + ".json");
+            if (threads == threadCounts[0]) {
+                options.include(TimeDistQueueBenchmark.class.getSimpleName());
+                options.include(ScheduledBenchmark.class.getSimpleName());
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package benchmarks;
+
+import memQueue.QueueConfig;
+import memQueue.QueueId;
+import memQueue.TimeIndexKind;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import readResponse.ReadResponse;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work on the mature head of a queue holding a great many entries scheduled days ahead. The scheduled entries are
+ * spread over the next three days, each at a millisecond of its own, which is the worst case for the tree map. With
+ * none scheduled the figures are the baseline the others are measured against, and should differ little from it.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ScheduledBenchmark {
+
+    @Param({"0", "1000000"})
+    public int scheduled;
+
+    @Param({"TREE_MAP", "TIMING_WHEEL"})
+    public TimeIndexKind timeIndex;
+
+    QueueId queue;
+    long[] receipts;
+    byte[] object = new byte[16];
+
+    @Setup(Level.Trial)
+    public void create() throws Exception {
+        QueueConfig config = new QueueConfig();
+        config.timeIndex = timeIndex;
+        queue = new QueueId("scheduled-" + QueueBenchmark.QUEUES.incrementAndGet(), config);
+        receipts = new long[scheduled];
+        Random random = new Random(1);
+        long from = System.currentTimeMillis() + TimeUnit.HOURS.toMillis(1);
+        long span = TimeUnit.DAYS.toMillis(3);
+        for (int i = 0; i < scheduled; i++) {
+            receipts[i] = queue.enqueueAt(object, from + (long) (random.nextDouble() * span));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws Exception {
+        queue.dequeueAll(receipts);
+        queue.deleteQueue();
+    }
+
+    @Benchmark
+    public long enqueueReadDequeue() throws Exception {
+        queue.enqueue(object);
+        ReadResponse readResponse = queue.read(60000);
+        queue.dequeue(readResponse.receipt);
+        return readResponse.receipt;
+    }
+
+    /*
+    Schedule an entry a day ahead and cancel it again.
+     */
+    @Benchmark
+    public boolean scheduleCancel() throws Exception {
+        return queue.cancel(queue.enqueue(object, 1, TimeUnit.DAYS));
+    }
+}
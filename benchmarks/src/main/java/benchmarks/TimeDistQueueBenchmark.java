@@ -0,0 +1,74 @@
+package benchmarks;
+
+import memQueue.TimeDistQueue;
+import memQueue.TimeEntry;
+import memQueue.TimeQueueException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TimeDistQueue on its own: add and getEntryAfter.
+ * <p>
+ * The index is filled to depth entries with maturities spread over spreadMillis milliseconds. A spread of 1 puts
+ * every entry in the one bucket, as a burst enqueued in the same millisecond does, a wider spread gives the tree
+ * that many keys. Each operation adds an entry at a maturity inside the spread and takes the earliest one off, so
+ * the depth holds. The TimeDistQueue is not thread safe, it's only ever used under a shard lock, so each benchmark
+ * thread has an index of its own.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimeDistQueueBenchmark {
+
+    @Param({"1000", "100000"})
+    public int depth;
+
+    @Param({"1", "1000"})
+    public int spreadMillis;
+
+    TimeDistQueue index;
+    String[] entities;
+    int next = 0;
+    /*
+    Later than any maturity the benchmark makes, so the earliest entry is always mature.
+     */
+    long farFuture = Long.MAX_VALUE;
+
+    @Setup(Level.Trial)
+    public void fill() {
+        index = new TimeDistQueue(UUID.randomUUID().toString());
+        entities = new String[1024];
+        for (int i = 0; i < entities.length; i++) {
+            entities[i] = Integer.toString(i);
+        }
+        for (int i = 0; i < depth; i++) {
+            index.add(entities[i & 1023], i % spreadMillis);
+        }
+    }
+
+    @Benchmark
+    public TimeEntry addThenGetEntryAfter() throws TimeQueueException {
+        index.add(entities[next & 1023], next % spreadMillis);
+        next++;
+        return index.getEntryAfter(farFuture);
+    }
+}
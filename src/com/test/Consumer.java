@@ -1,69 +1,81 @@
 package com.test;
 
+import memQueue.NoEntityException;
+import memQueue.QueueId;
+import readResponse.ReadResponse;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
 /**
- * A Consumer of queue resources.
- *
- * Works off the named queue and runs pulling elements until it encounters an exception. As the delay it puts in
- * is longer than the time to maturity we're certain that getting an exception means the queue has been emptied.
+ * A consumer thread of a load run.
+ * <p>
+ * Reads its queue with a long poll, checks each message against the ledger and deletes it, until told to stop. A
+ * share of the messages, the ack failure rate, are read and left, to come back after the visibility timeout.
+ * <p>
+ * A message delivered again after it was deleted breaks the queue's promise, and is counted as a violation. The
+ * check is made against when the read started: a message handed to this consumer after a timeout may well be
+ * deleted by the one it timed out on while this read is under way, which is no fault of the queue. A delete that
+ * finds the message gone is the same race seen from the other side and is only counted.
  *
  * @author tonyaiello
  * @version 1.0
  */
-
-import memQueue.MissingQueueIdException;
-import memQueue.NoEntityException;
-import memQueue.QueueId;
-import readResponse.ReadResponse;
-
 public class Consumer implements Runnable {
-        Thread t;
-        QueueId pQ;
-        String lastEntity = "";
-        int entitesProcessed = 0;
-        ReadResponse readResponse;
+    private final LoadGenerator load;
+    private final QueueId queue;
+    Thread t;
 
-        public Consumer(String workQ) {
+    public Consumer(LoadGenerator load, int index) {
+        this.load = load;
+        queue = load.queues[index % load.queues.length];
+        t = new Thread(this, "Consumer-" + index);
+    }
 
+    public void run() {
+        LoadConfig config = load.config;
+        while (!load.stopConsumers) {
+            long readStart = System.nanoTime();
+            ReadResponse readResponse;
             try {
-                pQ = QueueId.getQueue(workQ);
-            } catch (MissingQueueIdException e) {
-                e.printStackTrace();
+                readResponse = queue.read(config.visibilityTimeoutMillis, 100, TimeUnit.MILLISECONDS);
+            } catch (NoEntityException e) {
+                continue;
+            } catch (InterruptedException e) {
+                return;
+            }
+            long readAt = System.nanoTime();
+            ByteBuffer payload = readResponse.getBuffer();
+            long id = payload.getLong(0);
+            long sentAt = payload.getLong(8);
+            if (load.ledger.delivered(id) == 1) {
+                load.deliveryLatency.record(readAt - sentAt);
+            } else {
+                load.redelivered.increment();
+            }
+            long ackedAt = load.ledger.ackedAt(id);
+            if (ackedAt != 0 && ackedAt < readStart) {
+                load.violations.increment();
+                System.out.println("Message " + id + " delivered again after it was deleted");
+            }
+            if (config.ackFailureRate > 0 && ThreadLocalRandom.current().nextDouble() < config.ackFailureRate) {
+                load.ackFailures.increment();
+                continue;
             }
-            t = new Thread(this, "Consumer");
-            t.start();
-        }
-        public void run() {
-            /*
-            The producer needs a bit to get some entries in the queue so just sleep for a bit.
-            Then enter a loop where we keep reading events and setting the timeout to 10ms. Then sleep
-            for 11 ms and so guarantee that there's at least one entryt on the queue.
-            Keep processing til we get an exception as that will only occur by the producer deleting all
-            the entries.
-             */
             try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                System.out.println("Consumer interrupted");
+                queue.dequeue(readResponse.receipt);
+            } catch (NoEntityException e) {
+                load.ackRaces.increment();
+                continue;
             }
-            while (true) {
-                try {
-                    readResponse = pQ.read(10);
-                } catch (NoEntityException e) {
-                    break;
-                }
-                entitesProcessed += 1;
-                if (lastEntity == readResponse.queueEntityId) {
-                    System.out.println("Error! should not get same element twice");
-                }
-                lastEntity = readResponse.queueEntityId;
-                try {
-                    Thread.sleep(11);
-                } catch (InterruptedException e) {
-                    System.out.println("Consumer interrupted");
-                }
+            long now = System.nanoTime();
+            if (!load.ledger.ack(id, now)) {
+                load.violations.increment();
+                System.out.println("Message " + id + " deleted twice");
             }
+            load.ackLatency.record(now - sentAt);
+            load.acked.increment();
         }
-        public int getEntitesProcessed() {
-            return entitesProcessed;
-        }
+    }
 }
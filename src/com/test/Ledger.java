@@ -0,0 +1,72 @@
+package com.test;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * What has happened to every message of a load run, so the run can be checked.
+ * <p>
+ * Messages are numbered from 0 as they are made. For each one the ledger keeps how many times it has been delivered
+ * and when, by System.nanoTime, it was deleted. Rather than a map the figures are kept in arrays indexed by message
+ * number, in pages of PAGE_SIZE messages made as the numbers reach them, so recording is an atomic update of an
+ * array element and the ledger costs 12 bytes a message.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+class Ledger {
+    static final int PAGE_BITS = 16;
+    static final int PAGE_SIZE = 1 << PAGE_BITS;
+    static final int MAX_PAGES = 1 << 20;
+
+    static final class Page {
+        final AtomicIntegerArray deliveries = new AtomicIntegerArray(PAGE_SIZE);
+        final AtomicLongArray ackedAt = new AtomicLongArray(PAGE_SIZE);
+    }
+
+    private final AtomicLong nextId = new AtomicLong();
+    private final AtomicReferenceArray<Page> pages = new AtomicReferenceArray<Page>(MAX_PAGES);
+
+    long nextId() {
+        long id = nextId.getAndIncrement();
+        page(id);
+        return id;
+    }
+
+    long made() {
+        return nextId.get();
+    }
+
+    /*
+    Count a delivery, returning how many there have now been.
+     */
+    int delivered(long id) {
+        return page(id).deliveries.incrementAndGet((int) id & (PAGE_SIZE - 1));
+    }
+
+    /*
+    When the message was deleted, 0 if it hasn't been.
+     */
+    long ackedAt(long id) {
+        return page(id).ackedAt.get((int) id & (PAGE_SIZE - 1));
+    }
+
+    /*
+    Record the message deleted. Returns false if it already was.
+     */
+    boolean ack(long id, long nanos) {
+        return page(id).ackedAt.compareAndSet((int) id & (PAGE_SIZE - 1), 0, nanos);
+    }
+
+    private Page page(long id) {
+        int index = (int) (id >>> PAGE_BITS);
+        Page page = pages.get(index);
+        if (page == null) {
+            pages.compareAndSet(index, null, new Page());
+            page = pages.get(index);
+        }
+        return page;
+    }
+}
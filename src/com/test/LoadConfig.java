@@ -0,0 +1,136 @@
+package com.test;
+
+import memQueue.QueueConfig;
+
+import java.util.ArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The settings of a load run, see LoadGenerator.
+ * <p>
+ * Each setting may be given on the command line as name=value, for example producers=8 rate=200000. Those not
+ * given keep the defaults here. As with ReadResponse the fields are made public so getters and setters are not
+ * necessary.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class LoadConfig {
+    /*
+    Threads enqueueing and threads reading and deleting.
+     */
+    public int producers = 2;
+    public int consumers = 2;
+    /*
+    The number of queues. Producers spread their messages over all of them in turn, each consumer works one queue.
+     */
+    public int queues = 1;
+    public int shards = 1;
+    /*
+    The messages per second all producers together aim for, each sending on a fixed schedule whether or not the
+    queue keeps up, so a slow queue shows up as latency rather than as a lower send rate. 0 has each producer send
+    as fast as enqueue returns instead.
+     */
+    public long rate = 10000;
+    public long durationSeconds = 10;
+    /*
+    After the producers stop, how long the consumers have to finish off what's left before what's still on the
+    queues counts as lost.
+     */
+    public long drainSeconds = 30;
+    /*
+    Payload sizes as bytes:weight pairs, a size picked at random by weight for each message, for example
+    100:9,10000:1 for nine small messages to each large one. Every payload is at least 16 bytes, the message
+    number and send time are written in its first 16.
+     */
+    public String payloadSizes = "100:1";
+    /*
+    The share of messages a consumer reads and then doesn't delete, as though it failed part way through. They come
+    back once their visibility timeout runs out.
+     */
+    public double ackFailureRate = 0.0;
+    public long visibilityTimeoutMillis = 1000;
+    public boolean offHeapPayloads = false;
+
+    private int[] sizes;
+    private int[] cumulativeWeights;
+
+    public static LoadConfig parse(String[] args) {
+        LoadConfig config = new LoadConfig();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected name=value but got " + arg);
+            }
+            String name = arg.substring(0, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "producers": config.producers = Integer.parseInt(value); break;
+                case "consumers": config.consumers = Integer.parseInt(value); break;
+                case "queues": config.queues = Integer.parseInt(value); break;
+                case "shards": config.shards = Integer.parseInt(value); break;
+                case "rate": config.rate = Long.parseLong(value); break;
+                case "durationSeconds": config.durationSeconds = Long.parseLong(value); break;
+                case "drainSeconds": config.drainSeconds = Long.parseLong(value); break;
+                case "payloadSizes": config.payloadSizes = value; break;
+                case "ackFailureRate": config.ackFailureRate = Double.parseDouble(value); break;
+                case "visibilityTimeoutMillis": config.visibilityTimeoutMillis = Long.parseLong(value); break;
+                case "offHeapPayloads": config.offHeapPayloads = Boolean.parseBoolean(value); break;
+                default: throw new IllegalArgumentException("No setting named " + name);
+            }
+        }
+        return config;
+    }
+
+    /*
+    The settings each queue is made with.
+     */
+    QueueConfig queueConfig() {
+        QueueConfig queueConfig = new QueueConfig();
+        queueConfig.shards = shards;
+        queueConfig.offHeapPayloads = offHeapPayloads;
+        return queueConfig;
+    }
+
+    /*
+    A payload size drawn from the distribution, see prepare.
+     */
+    int nextPayloadSize() {
+        int pick = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < sizes.length; i++) {
+            if (pick < cumulativeWeights[i]) {
+                return sizes[i];
+            }
+        }
+        return sizes[sizes.length - 1];
+    }
+
+    /*
+    Work out the payload distribution. Called before any load thread starts.
+     */
+    void prepare() {
+        ArrayList<int[]> pairs = new ArrayList<int[]>();
+        for (String pair : payloadSizes.split(",")) {
+            String[] parts = pair.split(":");
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+            pairs.add(new int[] {Math.max(16, Integer.parseInt(parts[0])), weight});
+        }
+        int[] weights = new int[pairs.size()];
+        int[] parsedSizes = new int[pairs.size()];
+        int total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            parsedSizes[i] = pairs.get(i)[0];
+            total += pairs.get(i)[1];
+            weights[i] = total;
+        }
+        cumulativeWeights = weights;
+        sizes = parsedSizes;
+    }
+
+    public String toString() {
+        return String.format("%d producers, %d consumers, %d queues of %d shards, rate %s, %ds, payloads %s, "
+                        + "ack failure %.2f%%, visibility timeout %dms", producers, consumers, queues, shards,
+                rate == 0 ? "unlimited" : rate + "/s", durationSeconds, payloadSizes, ackFailureRate * 100,
+                visibilityTimeoutMillis);
+    }
+}
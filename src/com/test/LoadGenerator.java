@@ -0,0 +1,147 @@
+package com.test;
+
+import memQueue.LatencyHistogram;
+import memQueue.LatencySnapshot;
+import memQueue.QueueDepth;
+import memQueue.QueueId;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An end to end load test of the queue.
+ * <p>
+ * Producers send at a target rate for a set time while consumers read and delete, over as many queues as asked
+ * for, see LoadConfig. Once the producers stop the consumers carry on until every message sent has been deleted or
+ * the drain time runs out. The run then reports the rates achieved, percentiles of the time from when a message
+ * should have been sent to its first delivery and to its delete, and the redelivery counts. It checks as it goes
+ * that no message is delivered again after being deleted nor deleted twice, and at the end that every message
+ * sent was deleted or is still on a queue, none lost.
+ * <p>
+ * Usage: java com.test.LoadGenerator [name=value...], for example
+ *     java com.test.LoadGenerator producers=8 consumers=8 rate=500000 durationSeconds=60 ackFailureRate=0.01
+ * The exit status is 1 if the checks failed.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class LoadGenerator {
+    private static final AtomicInteger RUNS = new AtomicInteger();
+
+    final LoadConfig config;
+    final QueueId[] queues;
+    final Ledger ledger = new Ledger();
+    volatile long startNanos;
+    volatile long endNanos;
+    volatile boolean stopConsumers = false;
+
+    final LongAdder enqueued = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+    final LongAdder redelivered = new LongAdder();
+    final LongAdder acked = new LongAdder();
+    final LongAdder ackFailures = new LongAdder();
+    final LongAdder ackRaces = new LongAdder();
+    final LongAdder violations = new LongAdder();
+    final LatencyHistogram enqueueLatency = new LatencyHistogram();
+    final LatencyHistogram deliveryLatency = new LatencyHistogram();
+    final LatencyHistogram ackLatency = new LatencyHistogram();
+
+    private long sendNanos;
+    private long drainNanos;
+    private long remaining;
+
+    public LoadGenerator(LoadConfig config) {
+        this.config = config;
+        config.prepare();
+        int run = RUNS.incrementAndGet();
+        queues = new QueueId[config.queues];
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = QueueId.getOrCreate("load-" + run + "-" + i, config.queueConfig());
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadConfig config = LoadConfig.parse(args);
+        System.out.println(config);
+        LoadGenerator load = new LoadGenerator(config);
+        load.run();
+        System.out.println(load.report());
+        System.exit(load.passed() ? 0 : 1);
+    }
+
+    /*
+    Run the load to the end of the drain and tidy the queues away.
+     */
+    public void run() throws InterruptedException {
+        Producer[] producers = new Producer[config.producers];
+        Consumer[] consumers = new Consumer[config.consumers];
+        for (int i = 0; i < consumers.length; i++) {
+            consumers[i] = new Consumer(this, i);
+        }
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Producer(this, i);
+        }
+        startNanos = System.nanoTime();
+        endNanos = startNanos + TimeUnit.SECONDS.toNanos(config.durationSeconds);
+        for (Consumer consumer : consumers) {
+            consumer.t.start();
+        }
+        for (Producer producer : producers) {
+            producer.t.start();
+        }
+        for (Producer producer : producers) {
+            producer.t.join();
+        }
+        sendNanos = System.nanoTime() - startNanos;
+        long drainEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.drainSeconds);
+        while (acked.sum() < enqueued.sum() && System.nanoTime() < drainEnd) {
+            Thread.sleep(10);
+        }
+        drainNanos = System.nanoTime() - startNanos - sendNanos;
+        stopConsumers = true;
+        for (Consumer consumer : consumers) {
+            consumer.t.join();
+        }
+        remaining = 0;
+        for (QueueId queue : queues) {
+            QueueDepth depth = queue.getDepth();
+            remaining += depth.getReady() + depth.getInFlight() + depth.getDelayed();
+            queue.deleteQueue();
+        }
+    }
+
+    /*
+    Messages enqueued that were neither deleted nor left on a queue at the end.
+     */
+    public long lost() {
+        return enqueued.sum() - acked.sum() - remaining;
+    }
+
+    public boolean passed() {
+        return violations.sum() == 0 && lost() == 0;
+    }
+
+    public String report() {
+        double sendSeconds = sendNanos / 1e9;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Sent %d messages in %.1fs, %.0f/s, %d rejected by a full queue%n",
+                enqueued.sum(), sendSeconds, enqueued.sum() / sendSeconds, rejected.sum()));
+        report.append(String.format("Deleted %d, %.0f/s over the run and %.1fs of drain, %d left on the queues%n",
+                acked.sum(), acked.sum() / ((sendNanos + drainNanos) / 1e9), drainNanos / 1e9, remaining));
+        report.append(String.format("Redelivered %d, left unacked on purpose %d, deletes racing a redelivery %d%n",
+                redelivered.sum(), ackFailures.sum(), ackRaces.sum()));
+        report.append(latencyLine("Enqueue", enqueueLatency.snapshot()));
+        report.append(latencyLine("Send to first delivery", deliveryLatency.snapshot()));
+        report.append(latencyLine("Send to delete", ackLatency.snapshot()));
+        report.append(String.format("Violations %d, lost %d: %s", violations.sum(), lost(),
+                passed() ? "PASSED" : "FAILED"));
+        return report.toString();
+    }
+
+    private static String latencyLine(String name, LatencySnapshot latency) {
+        return String.format("%-24s p50 %8.3fms  p99 %8.3fms  p99.9 %8.3fms  max %8.3fms%n", name,
+                latency.getP50Nanos() / 1e6, latency.getP99Nanos() / 1e6, latency.getP999Nanos() / 1e6,
+                latency.getMaxNanos() / 1e6);
+    }
+}
@@ -15,14 +15,9 @@ import java.util.concurrent.TimeoutException;
 Test routines for some of the support and client facing functions. Validation of the inner workings on which
 the queue is built. Unit tests did some of the validation, this should do the rest.
 
-Two producer and two consumer threads are run without any synchronization. The consumers do wait a second before
-starting their consumption just to allow the producers a window to get things on the queue. As the processes are
-asynchronous wrt each other we look for success as seeing that all produced entities do make it to the queue.
-
-As each item is on queue until deleted there's no guarantee of order or presence. All we can guarantee is that
-consumers see entries and that when deleted they no longer are presented to the consumers. Producers track the
-entity ids they put on and remove that many so if the counts didn't add up we'd know there was a synchronization
-problem.
+Producer and consumer threads are then run against a queue through the LoadGenerator. As each item is on queue
+until deleted there's no guarantee of order. What is checked is that every message sent is deleted in the end, none
+lost, and that once deleted a message is never presented to a consumer again.
 
  */
 public class Main {
@@ -102,49 +97,21 @@ public class Main {
         } else {
             System.out.println("Success in getting queue " + getter.getQueueName() + " by name.");
         }
-        String pqTest = "pqTest";
-        QueueId pqQ = null;
-        try {
-            pqQ = new QueueId(pqTest);
-        } catch (DuplicateQueueIdException e) {
-            e.printStackTrace();
-        }
-
         /*
-        Concurrency tests
+        Concurrency tests. A short load run of two producers and two consumers, with a share of the messages left
+        unacked so redelivery is exercised too. See LoadGenerator for runs at scale.
          */
-        Producer pThread1 = new Producer(pqTest);
-        Producer pThread2 = new Producer(pqTest);
-        Consumer cThread1 = new Consumer(pqTest);
-        Consumer cThread2 = new Consumer(pqTest);
+        LoadConfig config = new LoadConfig();
+        config.durationSeconds = 2;
+        config.rate = 2000;
+        config.ackFailureRate = 0.01;
+        config.visibilityTimeoutMillis = 100;
+        LoadGenerator load = new LoadGenerator(config);
         try {
-            pThread1.t.join();
-            pThread2.t.join();
-            cThread1.t.join();
-            cThread2.t.join();
-        } catch(InterruptedException e) {
+            load.run();
+        } catch (InterruptedException e) {
             System.out.println("Main thread interrupted");
         }
-        String[] entites = pThread1.getEntities();
-        System.out.println("From producer 1");
-        for (int i = 0; i < entites.length; i++){
-            System.out.println(i + ") " + entites[i]);
-        }
-        entites = pThread2.getEntities();
-        System.out.println("From producer 2");
-        for (int i = 0; i < entites.length; i++){
-            System.out.println(i + ") " + entites[i]);
-        }
-        System.out.println("Max entries on the q is " + pqQ.getMaxEntries());
-        int totalProduced = 2 * Producer.PER_PRODUCER;
-        if (pqQ.getMaxEntries() != totalProduced) {
-            System.out.println("All producer work did NOT get to the queue");
-        } else {
-            System.out.println("All produced entities did get queued");
-        }
-        System.out.println("Comsumer1 handled " + cThread1.getEntitesProcessed() + " responses");
-        System.out.println("Consumer2 handled " + cThread2.getEntitesProcessed() + " responses");
-
-
+        System.out.println(load.report());
     }
 }
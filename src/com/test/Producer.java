@@ -1,82 +1,73 @@
 package com.test;
 
-/**
- * Producer of queue entities.
- *
- * Places a set number of entities on the queue and records the entity id.
- * Sleeps then deletes the entities.
- *
- * @author tonyaiello
- * @version 1.0
- */
-
 import memQueue.MissingQueueIdException;
-import memQueue.NoEntityException;
+import memQueue.QueueFullException;
 import memQueue.QueueId;
-import readResponse.ReadResponse;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- *  Producer test suite.
+ * A producer thread of a load run.
+ * <p>
+ * Sends messages until the run's end time, to each of the queues in turn. With a target rate each producer sends
+ * its share on a fixed schedule, the time a message should go out being worked out from the start and the rate
+ * alone. Should enqueue fall behind, the producer doesn't wait to send the next one and the message's latency is
+ * measured from when it should have gone out, so time lost to a stall counts against the queue rather than
+ * disappearing from the figures. Without a rate each message goes as soon as the one before it is enqueued.
+ * <p>
+ * A message's first 16 bytes are its number and the System.nanoTime it should have been sent at, the rest is
+ * padding to the size drawn from the payload distribution.
  *
- *  Produces a set of queue entries under these rules.
- *  Create n entries.
- *  hang out for a bit.
- *  Read all entries with a timeout of 1000 to insure that we can get all entries.
- *  Then dequeue all the entries so that the consumer will certainly run out.
+ * @author tonyaiello
+ * @version 1.0
  */
 public class Producer implements Runnable {
-    public static final int PER_PRODUCER = 10;
+    private final LoadGenerator load;
+    private final int index;
     Thread t;
-    QueueId pQ;
-    byte[] testBuf = new byte[100]; // Use same buffer for all
-    String[] entites = new String[PER_PRODUCER];
-
 
-    public Producer(String workQ) {
-
-        try {
-            pQ = QueueId.getQueue(workQ);
-        } catch (MissingQueueIdException e) {
-            e.printStackTrace();
-        }
-        t = new Thread(this, "Producer");
-        t.start();
+    public Producer(LoadGenerator load, int index) {
+        this.load = load;
+        this.index = index;
+        t = new Thread(this, "Producer-" + index);
     }
-    public void run() {
-        ReadResponse readResponse = null;
 
-        for (int i = 0; i < PER_PRODUCER; i++) {
-            try {
-                pQ.enqueue(testBuf);
-            } catch (MissingQueueIdException e) {
-                e.printStackTrace();
-            }
-        }
-        for (int i = 0; i < PER_PRODUCER; i++) {
-            try {
-                readResponse = pQ.read(100);
-            } catch (NoEntityException e) {
-                e.printStackTrace();
+    public void run() {
+        LoadConfig config = load.config;
+        QueueId[] queues = load.queues;
+        long interval = config.rate == 0 ? 0 : config.producers * 1_000_000_000L / config.rate;
+        long next = load.startNanos + (interval * index) / config.producers;
+        int queue = index;
+        while (System.nanoTime() < load.endNanos) {
+            long sendAt;
+            if (interval > 0) {
+                long now = System.nanoTime();
+                if (next > now) {
+                    LockSupport.parkNanos(next - now);
+                    continue;
+                }
+                sendAt = next;
+                next += interval;
+            } else {
+                sendAt = System.nanoTime();
             }
-            entites[i] = readResponse.queueEntityId;
-        }
-        try {
-            Thread.sleep(5000);
-        } catch (InterruptedException e) {
-            System.out.println("Producer interrupted");
-        }
-        // Now delete them all.
-        for (int i = 0; i < PER_PRODUCER; i++) {
+            long id = load.ledger.nextId();
+            byte[] payload = new byte[config.nextPayloadSize()];
+            ByteBuffer.wrap(payload).putLong(0, id).putLong(8, sendAt);
+            queue = (queue + 1) % queues.length;
+            long start = System.nanoTime();
             try {
-                pQ.dequeue(entites[i]);
-            } catch (NoEntityException e) {
+                queues[queue].enqueue(payload);
+            } catch (MissingQueueIdException e) {
                 e.printStackTrace();
+                return;
+            } catch (QueueFullException e) {
+                load.rejected.increment();
+                continue;
             }
+            load.enqueueLatency.record(System.nanoTime() - start);
+            load.enqueued.increment();
         }
     }
-    public String[] getEntities() {
-        return entites;
-
-    }
-
 }
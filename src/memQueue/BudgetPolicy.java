@@ -0,0 +1,18 @@
+package memQueue;
+
+/**
+ * What an enqueue does when the queue, or all queues together, would go over budget. See MemoryBudget.
+ * <p>
+ * BLOCK waits up to QueueConfig.budgetWaitMillis for deletes elsewhere to make room, then gives up with a
+ * QueueFullException. FAIL throws the QueueFullException straight away. SHED makes room by deleting the entries of
+ * the shard being added to that mature soonest, the ones longest waiting to be dealt with, as many as it takes. It
+ * only fails if the shard runs out of entries to shed first.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public enum BudgetPolicy {
+    BLOCK,
+    FAIL,
+    SHED
+}
@@ -0,0 +1,165 @@
+package memQueue;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A snapshot of the live entries of a durable queue, letting a restart skip replaying the log written before it.
+ * <p>
+ * A checkpoint starts by having the log begin a new segment. Every record from then on is in that segment or a later
+ * one, the tail. The shards are then copied out a chunk of slots at a time, each chunk under a short hold of the
+ * shard lock and written to the file after letting it go, so the queue carries on working while the checkpoint is
+ * written. What's copied is not a picture of any one instant. An entry may be caught before or after a change made
+ * while the copying went on. Every such change is in the tail though, and replaying the tail over the snapshot
+ * gives the same answer either way: an ENQUEUE puts back what's already there, a VISIBILITY sets the maturity the
+ * records that follow it would lead to anyway, and a DEQUEUE of something not there does nothing. So the snapshot
+ * plus the tail is a consistent cut. Once the snapshot is on disk the segments before the tail are deleted.
+ * <p>
+ * The file is a header of magic number, version, shard count, the first segment of the tail and the number of
+ * entries, then for each entry its receipt, maturity, receive count, priority, object length and object. Version 1
+ * files, written before entries had a priority, have no priority byte and still load. A file is written under
+ * a temporary name and renamed into place once forced to disk, so a checkpoint is either all there or not at all.
+ * <p>
+ * Loading maps the file and reads the entries straight out of the mapping into the slots their receipts name,
+ * with no map of receipts built along the way.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+class Checkpoint {
+    static final int MAGIC = 0x5451434b;
+    static final int VERSION = 2;
+    static final int HEADER_BYTES = 24;
+    /*
+    Slots copied per hold of a shard lock.
+     */
+    static final int CHUNK_SLOTS = 4096;
+
+    static File fileFor(File directory, int startSegment) {
+        return new File(directory, String.format("checkpoint-%08x.ckp", startSegment));
+    }
+
+    /*
+    The newest complete checkpoint in the directory, or null if there's none.
+     */
+    static File latest(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("checkpoint-") && name.endsWith(".ckp"));
+        File latest = null;
+        if (files != null) {
+            for (File file : files) {
+                if (latest == null || startSegment(file) > startSegment(latest)) {
+                    latest = file;
+                }
+            }
+        }
+        return latest;
+    }
+
+    static int startSegment(File file) {
+        String name = file.getName();
+        return Integer.parseInt(name.substring(11, name.length() - 4), 16);
+    }
+
+    /*
+    Remove every checkpoint, whole or partly written, other than the one given.
+     */
+    static void deleteOthers(File directory, File keep) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("checkpoint-"));
+        if (files != null) {
+            for (File file : files) {
+                if (!file.equals(keep)) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /*
+    Copy the live entries of the shards into a checkpoint whose tail starts at the segment given.
+     */
+    static File write(File directory, int startSegment, QueueShard[] shards) throws IOException {
+        File file = fileFor(directory, startSegment);
+        File temp = new File(directory, String.format("checkpoint-%08x.tmp", startSegment));
+        long count = 0;
+        try (FileOutputStream stream = new FileOutputStream(temp)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(shards.length);
+            out.writeInt(startSegment);
+            out.writeLong(0);
+            ByteArrayOutputStream chunk = new ByteArrayOutputStream(1 << 16);
+            DataOutputStream chunkOut = new DataOutputStream(chunk);
+            int[] cursor = new int[1];
+            for (QueueShard shard : shards) {
+                cursor[0] = 0;
+                boolean more = true;
+                while (more) {
+                    chunk.reset();
+                    shard.lock.lock();
+                    try {
+                        count += shard.snapshot(cursor, CHUNK_SLOTS, chunkOut);
+                        more = cursor[0] < shard.slotsInUse();
+                    } finally {
+                        shard.lock.unlock();
+                    }
+                    chunk.writeTo(out);
+                }
+            }
+            out.flush();
+            FileChannel channel = stream.getChannel();
+            channel.write(ByteBuffer.allocate(8).putLong(0, count), 16);
+            channel.force(true);
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return file;
+    }
+
+    /*
+    Put the entries of a checkpoint back in the shards. They are marked as held by no segment. Returns the first
+    segment of the tail.
+     */
+    static int load(File file, QueueShard[] shards) throws IOException {
+        MappedByteBuffer map;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        int version = map.limit() < HEADER_BYTES ? 0 : map.getInt(4);
+        if (map.limit() < HEADER_BYTES || map.getInt(0) != MAGIC || version < 1 || version > VERSION) {
+            throw new IOException(file + " is not a queue checkpoint");
+        }
+        if (map.getInt(8) != shards.length) {
+            throw new IOException(file + " was written by a queue of " + map.getInt(8) + " shards");
+        }
+        int startSegment = map.getInt(12);
+        long count = map.getLong(16);
+        map.position(HEADER_BYTES);
+        for (long i = 0; i < count; i++) {
+            long receipt = map.getLong();
+            long maturityTime = map.getLong();
+            int receiveCount = map.getInt();
+            byte priority = version > 1 ? map.get() : 0;
+            int length = map.getInt();
+            byte[] object = null;
+            if (length >= 0) {
+                object = new byte[length];
+                map.get(object);
+            }
+            TimeEntry entry = new TimeEntry(receipt, object, maturityTime);
+            entry.receiveCount = receiveCount;
+            entry.priority = priority;
+            shards[QueueShard.shardOf(receipt, shards.length)].restoreEntry(entry);
+        }
+        return startSegment;
+    }
+}
@@ -0,0 +1,69 @@
+package memQueue;
+
+/**
+ * A clock read from memory, kept up to date by a background ticker, see QueueClock.coarse.
+ * <p>
+ * The ticker is a daemon thread that reads the source clock every tick and stores the time in a volatile field,
+ * which is all millis reads. So the time costs a read of memory rather than a call into the system, and is at most
+ * a tick and a little scheduling delay behind. The ticker is started when the clock is made and runs until stop is
+ * called, or for the shared clock for the life of the process.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class CoarseClock implements QueueClock {
+    /*
+    Made the first time it's asked for, so a process never using it never starts the ticker.
+     */
+    private static class Shared {
+        static final CoarseClock CLOCK = new CoarseClock(QueueClock.monotonic(), 1);
+    }
+
+    private final QueueClock source;
+    private final long tickMillis;
+    private final Thread ticker;
+    private volatile long now;
+    private volatile boolean stopped = false;
+
+    public CoarseClock(QueueClock source, long tickMillis) {
+        this.source = source;
+        this.tickMillis = Math.max(1, tickMillis);
+        now = source.millis();
+        ticker = new Thread(this::tick, "memQueue-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    static CoarseClock shared() {
+        return Shared.CLOCK;
+    }
+
+    public long millis() {
+        return now;
+    }
+
+    /*
+    Stop the ticker. The time stays where it was last set.
+     */
+    public void stop() {
+        stopped = true;
+        ticker.interrupt();
+    }
+
+    private void tick() {
+        while (!stopped) {
+            try {
+                Thread.sleep(tickMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            /*
+            Never let the time go back, whatever the source does.
+             */
+            long time = source.millis();
+            if (time > now) {
+                now = time;
+            }
+        }
+    }
+}
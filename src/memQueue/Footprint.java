@@ -0,0 +1,74 @@
+package memQueue;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * The sizes of the objects a queue is made of, for estimating how much heap a queue takes beyond its objects.
+ * <p>
+ * The sizes are worked out from the fields of each class the way HotSpot lays objects out: a header, then the
+ * fields, the whole rounded up to 8 bytes. The header and a reference are smaller when the JVM compresses its
+ * pointers, which it does by default on heaps under 32GB, so the running JVM is asked which it does. Padding
+ * between fields is ignored, which HotSpot mostly avoids by ordering fields by size, so a figure may be a few bytes
+ * short of the true one. For a check against the real heap see the FootprintReport benchmark.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+class Footprint {
+    static final boolean COMPRESSED_OOPS = vmFlag("UseCompressedOops");
+    static final boolean COMPRESSED_CLASS_POINTERS = vmFlag("UseCompressedClassPointers");
+    static final int REF = COMPRESSED_OOPS ? 4 : 8;
+    static final int HEADER = COMPRESSED_CLASS_POINTERS ? 12 : 16;
+    static final int ARRAY_HEADER = HEADER + 4;
+
+    /*
+    A TimeEntry: four longs, three ints, a byte and four references. A TimeBucket adds its key.
+     */
+    static final int TIME_ENTRY = align(HEADER + 4 * 8 + 3 * 4 + 1 + 4 * REF);
+    static final int TIME_BUCKET = align(HEADER + 5 * 8 + 3 * 4 + 1 + 4 * REF);
+    /*
+    A TreeMap node, five references and a boolean, and the boxed Long key it holds.
+     */
+    static final int TREE_NODE = align(HEADER + 5 * REF + 1);
+    static final int BOXED_LONG = align(HEADER + 8);
+
+    /*
+    What an entry of a QueueId costs over and above its object: the TimeEntry, its slot in the slot table, its place
+    on the free list and the header of its byte array.
+     */
+    static final int QUEUE_ENTRY = TIME_ENTRY + REF + 4 + ARRAY_HEADER;
+
+    static int align(long bytes) {
+        return (int) ((bytes + 7) & ~7L);
+    }
+
+    static long byteArray(int length) {
+        return align(ARRAY_HEADER + (long) length);
+    }
+
+    static long refArray(int length) {
+        return align(ARRAY_HEADER + (long) REF * length);
+    }
+
+    static long intArray(int length) {
+        return align(ARRAY_HEADER + 4L * length);
+    }
+
+    static long longArray(int length) {
+        return align(ARRAY_HEADER + 8L * length);
+    }
+
+    /*
+    The value of a boolean HotSpot flag, taken as true, the usual default, if it can't be read.
+     */
+    private static boolean vmFlag(String name) {
+        try {
+            HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            return hotSpot == null || Boolean.parseBoolean(hotSpot.getVMOption(name).getValue());
+        } catch (RuntimeException e) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package memQueue;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations in nanoseconds, cheap enough to record into on every operation.
+ * <p>
+ * The buckets are log linear, as in an HDR histogram: each power of two is split into SUB_BUCKETS equal parts, so
+ * any value is placed to within an eighth of itself whatever its size, from a nanosecond up to hours, in a fixed
+ * 496 buckets. Recording is working out the bucket, a shift and a mask, and one atomic increment.
+ * <p>
+ * So that threads recording at once don't all fight over the same counters the buckets are striped. Each thread
+ * records into one of several copies of the bucket array, picked at random each time from the thread's own
+ * ThreadLocalRandom, and a snapshot adds the copies together. The copies are whole arrays apart so two of them
+ * never share a cache line but at their ends.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class LatencyHistogram {
+    static final int SUB_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+    private static final int STRIPES =
+            Math.min(16, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) Math.max(value, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /*
+    The highest value that lands in the bucket.
+     */
+    static long highestIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+        return lowest + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    public void record(long nanos) {
+        int stripe = ThreadLocalRandom.current().nextInt() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + bucketOf(nanos));
+        total.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    /*
+    The counts so far. Taken while recording goes on, a snapshot may be a few records out between its count, its
+    buckets and its total, but never by more than the records in flight while it was taken.
+     */
+    public LatencySnapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                long n = counts.get(stripe * BUCKETS + bucket);
+                buckets[bucket] += n;
+                count += n;
+            }
+        }
+        return new LatencySnapshot(buckets, count, total.sum(), max.get());
+    }
+}
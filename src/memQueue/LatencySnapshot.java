@@ -0,0 +1,76 @@
+package memQueue;
+
+/**
+ * The counts of a LatencyHistogram at one moment, with the figures usually wanted from them.
+ * <p>
+ * A percentile is given as the highest value of the bucket it falls in, so it's never under the true value and
+ * over it by at most an eighth. The figures are in getters, rather than public fields as elsewhere, so a snapshot
+ * can be read through JMX, see QueueMetricsMXBean.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class LatencySnapshot {
+    private final long[] buckets;
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+
+    LatencySnapshot(long[] buckets, long count, long totalNanos, long maxNanos) {
+        this.buckets = buckets;
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getMeanNanos() {
+        return count == 0 ? 0 : totalNanos / count;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public long getP50Nanos() {
+        return percentile(50);
+    }
+
+    public long getP90Nanos() {
+        return percentile(90);
+    }
+
+    public long getP99Nanos() {
+        return percentile(99);
+    }
+
+    public long getP999Nanos() {
+        return percentile(99.9);
+    }
+
+    /*
+    The value below which the given percent of the recorded values fall.
+     */
+    public long percentile(double percent) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percent / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            seen += buckets[bucket];
+            if (seen >= rank) {
+                return Math.min(LatencyHistogram.highestIn(bucket), maxNanos);
+            }
+        }
+        return maxNanos;
+    }
+
+    public String toString() {
+        return String.format("count %d, mean %dns, p50 %dns, p99 %dns, p99.9 %dns, max %dns", count,
+                getMeanNanos(), getP50Nanos(), getP99Nanos(), getP999Nanos(), maxNanos);
+    }
+}
@@ -0,0 +1,221 @@
+package memQueue;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import readResponse.ReadResponse;
+
+/**
+ * A queue with the same read, timeout and delete behaviour as a QueueId but without any locks.
+ * <p>
+ * Where a QueueId guards its entries with a lock, here each entry carries its own state and every change to it is
+ * made with a compare and set. An entry is READY when it may be handed out, IN_FLIGHT once a read has it and ACKED
+ * once deleted. The state shares a word with a lease number that goes up by one each time the entry is handed out.
+ * <p>
+ * Entries that are READY sit on a lock free FIFO. A read polls that FIFO and claims the entry by moving it from READY
+ * to IN_FLIGHT. Only one reader can win that, and an entry is only ever put on the FIFO by whoever moved it to
+ * READY, so an entry is never handed out twice at once. Alongside the claim a lease is put on a lock free skip list
+ * ordered by the time the entry becomes visible again. Each read first takes any leases that have run out off the
+ * head of that list and moves their entries back to READY. The lease number must match for that to happen, so a
+ * lease left over from an earlier delivery can't make an entry visible early.
+ * <p>
+ * A delete moves the entry to ACKED and takes its lease off the skip list. An entry deleted while READY is left on
+ * the FIFO and skipped over when a read reaches it.
+ * <p>
+ * Receipts are kept in a concurrent map for deletes to find their entry. Lookups there take no lock, adds and removes
+ * only ever contend on a single bin of the map.
+ * <p>
+ * There's no name space here, a LockFreeQueue is just an object. The ReadResponses it hands out have no queueId.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class LockFreeQueue {
+    static final int READY = 0;
+    static final int IN_FLIGHT = 1;
+    static final int ACKED = 2;
+
+    /*
+    An entry and its state. The state word is the lease number shifted up two bits with the state in the low bits.
+     */
+    static final class Entry {
+        final long receipt;
+        final byte[] object;
+        volatile long stateWord = READY;
+        volatile Lease lease = null;
+
+        Entry(long receipt, byte[] object) {
+            this.receipt = receipt;
+            this.object = object;
+        }
+    }
+
+    /*
+    One delivery of an entry, kept on the skip list until the entry becomes visible again.
+     */
+    static final class Lease implements Comparable<Lease> {
+        final long visibleAt;
+        final long leaseNumber;
+        final Entry entry;
+
+        Lease(long visibleAt, long leaseNumber, Entry entry) {
+            this.visibleAt = visibleAt;
+            this.leaseNumber = leaseNumber;
+            this.entry = entry;
+        }
+
+        public int compareTo(Lease other) {
+            if (visibleAt != other.visibleAt) {
+                return visibleAt < other.visibleAt ? -1 : 1;
+            }
+            return Long.compare(entry.receipt, other.entry.receipt);
+        }
+    }
+
+    private static final AtomicLongFieldUpdater<Entry> STATE =
+            AtomicLongFieldUpdater.newUpdater(Entry.class, "stateWord");
+
+    private String name;
+    private final QueueClock clock;
+    private ConcurrentHashMap<Long, Entry> entities;
+    private ConcurrentLinkedQueue<Entry> ready;
+    private ConcurrentSkipListSet<Lease> inFlight;
+    private AtomicLong nextSequence;
+
+    public LockFreeQueue(String name) {
+        this(name, QueueClock.monotonic());
+    }
+
+    public LockFreeQueue(String name, QueueClock clock) {
+        this.name = name;
+        this.clock = clock;
+        entities = new ConcurrentHashMap<Long, Entry>();
+        ready = new ConcurrentLinkedQueue<Entry>();
+        inFlight = new ConcurrentSkipListSet<Lease>();
+        nextSequence = new AtomicLong(1);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * To the queue add an entry, immediately mature.
+     * @param object a byte array reference
+     * @return the receipt of the new entry
+     */
+    public long enqueue(byte[] object) {
+        Entry entry = new Entry(Receipt.make(nextSequence.getAndIncrement(), 0), object);
+        entities.put(entry.receipt, entry);
+        ready.offer(entry);
+        return entry.receipt;
+    }
+
+    /**
+     * From the queue get a mature entry and make it invisible for timeout milliseconds.
+     * Should there be no mature entry a NoEntity exception is thrown.
+     * @param timeout milliseconds before the entry may be handed out again
+     * @return a ReadResponse with the object and receipt.
+     * @throws NoEntityException
+     */
+    public ReadResponse read(long timeout) throws NoEntityException {
+        long now = clock.millis();
+        expireLeases(now);
+        Entry entry;
+        while ((entry = ready.poll()) != null) {
+            long stateWord = entry.stateWord;
+            if ((stateWord & 3) != READY) {
+                /*
+                Deleted while it was waiting on the FIFO.
+                 */
+                continue;
+            }
+            long leaseNumber = (stateWord >>> 2) + 1;
+            if (STATE.compareAndSet(entry, stateWord, (leaseNumber << 2) | IN_FLIGHT)) {
+                Lease lease = new Lease(now + timeout, leaseNumber, entry);
+                entry.lease = lease;
+                inFlight.add(lease);
+                return new ReadResponse(null, entry.receipt, entry.object);
+            }
+        }
+        throw new NoEntityException();
+    }
+
+    /**
+     * From the queue the entry identified by the receipt is removed.
+     * If the entity is not found, or was already removed, an exception is thrown.
+     * @param receipt
+     * @throws NoEntityException
+     */
+    public void dequeue(long receipt) throws NoEntityException {
+        Entry entry = entities.remove(receipt);
+        if (entry == null) {
+            throw new NoEntityException();
+        }
+        long stateWord;
+        do {
+            stateWord = entry.stateWord;
+            if ((stateWord & 3) == ACKED) {
+                throw new NoEntityException();
+            }
+        } while (!STATE.compareAndSet(entry, stateWord, (stateWord & ~3L) | ACKED));
+        Lease lease = entry.lease;
+        if (lease != null) {
+            inFlight.remove(lease);
+        }
+    }
+
+    public void dequeue(String entityId) throws NoEntityException {
+        dequeue(Receipt.parse(entityId));
+    }
+
+    /*
+    The number of entries not yet deleted.
+     */
+    public int getSize() {
+        return entities.size();
+    }
+
+    /*
+    An estimate of the heap the queue takes beyond the bytes of its objects. Each entry costs its Entry, its node
+    and boxed key in the map and the map's table, the header of its byte array, and a node on the ready queue or a
+    lease and skip list node in flight, taken here as the larger. See Footprint.
+     */
+    public long estimatedOverheadBytes() {
+        int entry = Footprint.align(Footprint.HEADER + 16 + 2 * Footprint.REF);
+        int mapNode = Footprint.align(Footprint.HEADER + 4 + 3 * Footprint.REF) + Footprint.BOXED_LONG
+                + 2 * Footprint.REF;
+        int lease = Footprint.align(Footprint.HEADER + 16 + Footprint.REF)
+                + Footprint.align(Footprint.HEADER + 3 * Footprint.REF);
+        return (long) entities.size() * (entry + mapNode + Footprint.ARRAY_HEADER + lease);
+    }
+
+    /*
+    Take the leases that have run out off the head of the skip list. Whoever removes a lease gets to move its entry
+    back to READY and onto the FIFO, as long as the entry is still in flight on that same lease.
+     */
+    private void expireLeases(long now) {
+        Lease lease;
+        while ((lease = firstLease()) != null && lease.visibleAt <= now) {
+            if (!inFlight.remove(lease)) {
+                continue;
+            }
+            Entry entry = lease.entry;
+            long inFlightWord = (lease.leaseNumber << 2) | IN_FLIGHT;
+            if (STATE.compareAndSet(entry, inFlightWord, (lease.leaseNumber << 2) | READY)) {
+                ready.offer(entry);
+            }
+        }
+    }
+
+    private Lease firstLease() {
+        try {
+            return inFlight.first();
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package memQueue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A limit on the bytes and the entries a queue may hold, and the count of what it holds now.
+ * <p>
+ * Each queue has one, and all of the queues share a global one, see global(). An enqueue reserves room for its
+ * entries in both before taking any shard lock, and a delete gives the room back. The bytes counted for an entry
+ * are its object plus ENTRY_OVERHEAD_BYTES, an estimate of what the entry costs the queue beyond its object: the
+ * TimeEntry itself, its slot, its place on the free list and the header of its byte array. Objects spilled to disk
+ * still count, the budget being on what the queue holds rather than where.
+ * <p>
+ * Reserving is an add to each count followed by a check, taken back if it went over. So the counts are two atomic
+ * adds per enqueue and reading them is just a read, cheap enough for a producer to check on every send and slow
+ * down as getUsage() climbs. While two enqueues race for the last of the room one may fail that a strictly ordered
+ * check would have let through. A budget without limits still counts.
+ * <p>
+ * Callers blocked waiting for room wait on the lock and condition here. A release only takes the lock when someone
+ * is waiting, so a waiter may miss a release that slips in just as it begins to wait. Waiters look again every few
+ * milliseconds to make up for it.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class MemoryBudget {
+    /*
+    What an entry is taken to cost on top of its object, see Footprint.
+     */
+    public static final int ENTRY_OVERHEAD_BYTES = Footprint.QUEUE_ENTRY;
+
+    private static final MemoryBudget GLOBAL = new MemoryBudget("all queues", Long.MAX_VALUE, Long.MAX_VALUE, null);
+
+    private final String name;
+    private volatile long byteLimit;
+    private volatile long entryLimit;
+    private final MemoryBudget parent;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong usedEntries = new AtomicLong();
+    private final ReentrantLock roomMutex = new ReentrantLock();
+    private final Condition roomFreed = roomMutex.newCondition();
+    private volatile int waiting = 0;
+
+    MemoryBudget(String name, long byteLimit, long entryLimit, MemoryBudget parent) {
+        this.name = name;
+        this.byteLimit = byteLimit;
+        this.entryLimit = entryLimit;
+        this.parent = parent;
+    }
+
+    /*
+    The budget shared by every queue. It has no limits until setLimits is called on it.
+     */
+    public static MemoryBudget global() {
+        return GLOBAL;
+    }
+
+    /*
+    The bytes counted for an entry holding the object.
+     */
+    static long footprint(byte[] object) {
+        return ENTRY_OVERHEAD_BYTES + (object == null ? 0 : object.length);
+    }
+
+    public void setLimits(long byteLimit, long entryLimit) {
+        this.byteLimit = byteLimit;
+        this.entryLimit = entryLimit;
+        signalRoom();
+    }
+
+    public long getByteLimit() {
+        return byteLimit;
+    }
+
+    public long getEntryLimit() {
+        return entryLimit;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getUsedEntries() {
+        return usedEntries.get();
+    }
+
+    /*
+    How near the budget is to full, the greater of the shares of the byte and entry limits in use. 0 if there are
+    no limits.
+     */
+    public double getUsage() {
+        return Math.max((double) usedBytes.get() / byteLimit, (double) usedEntries.get() / entryLimit);
+    }
+
+    /*
+    Take room for the entries here and in the parent budget. Returns null if there was room, otherwise the budget
+    that had none, with nothing taken from either.
+     */
+    MemoryBudget tryReserve(long bytes, int entries) {
+        long bytesNow = usedBytes.addAndGet(bytes);
+        long entriesNow = usedEntries.addAndGet(entries);
+        if (bytesNow > byteLimit || entriesNow > entryLimit) {
+            usedBytes.addAndGet(-bytes);
+            usedEntries.addAndGet(-entries);
+            return this;
+        }
+        if (parent != null) {
+            MemoryBudget full = parent.tryReserve(bytes, entries);
+            if (full != null) {
+                release(bytes, entries, false);
+                return full;
+            }
+        }
+        return null;
+    }
+
+    /*
+    As tryReserve, but should there be no room the policy says what's done. BLOCK waits, the rest throw; shedding
+    is up to the caller, which has the shard. Returns false if the caller should shed to make room.
+     */
+    boolean reserve(long bytes, int entries, BudgetPolicy policy, long waitMillis) {
+        MemoryBudget full = tryReserve(bytes, entries);
+        if (full == null) {
+            return true;
+        }
+        if (policy == BudgetPolicy.SHED) {
+            return false;
+        }
+        if (policy == BudgetPolicy.BLOCK) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+            while (full != null && full.awaitRoom(deadline)) {
+                full = tryReserve(bytes, entries);
+            }
+            if (full == null) {
+                return true;
+            }
+        }
+        throw full.fullException(bytes, entries);
+    }
+
+    /*
+    Take room for entries that are already there, as when a durable queue is recovered, limits or not.
+     */
+    void add(long bytes, int entries) {
+        usedBytes.addAndGet(bytes);
+        usedEntries.addAndGet(entries);
+        if (parent != null) {
+            parent.add(bytes, entries);
+        }
+    }
+
+    /*
+    Give back room taken earlier, here and in the parent budget.
+     */
+    void release(long bytes, int entries) {
+        release(bytes, entries, true);
+    }
+
+    private void release(long bytes, int entries, boolean withParent) {
+        usedBytes.addAndGet(-bytes);
+        usedEntries.addAndGet(-entries);
+        if (withParent && parent != null) {
+            parent.release(bytes, entries, true);
+        }
+        signalRoom();
+    }
+
+    QueueFullException fullException(long bytes, int entries) {
+        return new QueueFullException("No room in the budget of " + name + " for " + entries + " entries of "
+                + bytes + " bytes, " + this);
+    }
+
+    /*
+    Wait for a release, up to the deadline. Returns false once the deadline has passed.
+     */
+    private boolean awaitRoom(long deadline) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            return false;
+        }
+        roomMutex.lock();
+        try {
+            waiting++;
+            roomFreed.awaitNanos(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(10)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            waiting--;
+            roomMutex.unlock();
+        }
+        return true;
+    }
+
+    private void signalRoom() {
+        if (waiting == 0) {
+            return;
+        }
+        roomMutex.lock();
+        roomFreed.signalAll();
+        roomMutex.unlock();
+    }
+
+    public String toString() {
+        return String.format("%d of %d bytes and %d of %d entries in use", usedBytes.get(), byteLimit,
+                usedEntries.get(), entryLimit);
+    }
+}
@@ -0,0 +1,26 @@
+package memQueue;
+
+/**
+ * A clock in wall clock milliseconds that only ever moves forward, see QueueClock.monotonic.
+ * <p>
+ * The wall clock time and System.nanoTime are both read once when the clock is made. From then on the time is that
+ * first wall clock time plus however far nanoTime has moved on.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+class MonotonicClock implements QueueClock {
+    static final MonotonicClock SHARED = new MonotonicClock();
+
+    private final long originMillis;
+    private final long originNanos;
+
+    MonotonicClock() {
+        originMillis = System.currentTimeMillis();
+        originNanos = System.nanoTime();
+    }
+
+    public long millis() {
+        return originMillis + (System.nanoTime() - originNanos) / 1000000;
+    }
+}
@@ -0,0 +1,19 @@
+package memQueue;
+
+/**
+ * What a QueueWorker's handler made of an entry.
+ * <p>
+ * SUCCESS has the entry deleted. RETRY has it handed out again once WorkerConfig.retryDelayMillis has passed, for
+ * work that failed in a way likely to go away, a busy service say. FAILURE keeps it hidden for
+ * WorkerConfig.failureDelayMillis before handing it out again. A handler that throws, or answers null, has failed.
+ * Whichever way an entry comes back, the queue's own redelivery backoff and limit on receives still apply, see
+ * QueueConfig.maxReceives.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public enum Outcome {
+    SUCCESS,
+    RETRY,
+    FAILURE
+}
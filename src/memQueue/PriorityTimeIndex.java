@@ -0,0 +1,229 @@
+package memQueue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * A time index split into priority levels, each level a time index of its own.
+ * <p>
+ * Each entry holds its level in TimeEntry.priority, 0 being the lowest, and goes on that level's index, a
+ * TimeDistQueue or a TimingWheel as the queue was set up. Taking the earliest entry takes it from the highest level
+ * that has anything mature. So however deep the backlog on the lower levels, an urgent entry only ever waits behind
+ * the urgent entries ahead of it.
+ * <p>
+ * Finding that level walks no entries. A bitmap holds the levels that have entries on them and, from the highest of
+ * those down, each level is asked when its earliest entry matures until one answers with a time already past. That
+ * is at most one question per level however many entries there are.
+ * <p>
+ * Aging stops the lower levels starving while the higher ones are never empty. With agingMillis set, a level whose
+ * earliest entry has been mature for agingMillis counts as one level higher, for twice that as two higher and so on.
+ * The level counting highest is taken from, a tie going to the level that truly is higher. Only the head of each
+ * level is looked at so aging costs no more than the lookup above.
+ * <p>
+ * The visits go a level at a time, ascending from the highest level down, so entries come in the order reads would
+ * hand them out rather than strictly by maturity. Descending is the reverse.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class PriorityTimeIndex implements TimeIndex {
+    static final int MAX_LEVELS = 32;
+
+    private final TimeIndex[] levels;
+    private final int[] counts;
+    /*
+    Bit n is set while level n has entries on it.
+     */
+    private int occupied = 0;
+    private final long agingMillis;
+    private final QueueClock clock;
+
+    public PriorityTimeIndex(TimeIndex[] levels, long agingMillis) {
+        this(levels, agingMillis, QueueClock.monotonic());
+    }
+
+    public PriorityTimeIndex(TimeIndex[] levels, long agingMillis, QueueClock clock) {
+        if (levels.length < 1 || levels.length > MAX_LEVELS) {
+            throw new IllegalArgumentException("A priority index has 1 to " + MAX_LEVELS + " levels");
+        }
+        this.levels = levels;
+        this.agingMillis = agingMillis;
+        this.clock = clock;
+        counts = new int[levels.length];
+    }
+
+    /*
+    The levels of the index given, or the index alone should it not be split into levels.
+     */
+    static TimeIndex[] levelsOf(TimeIndex index) {
+        if (index instanceof PriorityTimeIndex) {
+            return ((PriorityTimeIndex) index).levels;
+        }
+        return new TimeIndex[] {index};
+    }
+
+    /*
+    Entities added by name go on the lowest level.
+     */
+    public void add(String entity) {
+        levels[0].add(entity);
+        added(0, 1);
+    }
+
+    public void add(String entity, long timeout) {
+        levels[0].add(entity, timeout);
+        added(0, 1);
+    }
+
+    public void addAll(Collection<String> entities, long timeout) {
+        if (entities.isEmpty()) {
+            return;
+        }
+        levels[0].addAll(entities, timeout);
+        added(0, entities.size());
+    }
+
+    public void add(TimeEntry tE) {
+        levels[tE.priority].add(tE);
+        added(tE.priority, 1);
+    }
+
+    /*
+    Each run of entries sharing a level goes on that level in one go. A group enqueued together is a single run.
+     */
+    public void addAllAt(List<TimeEntry> entries, long maturityTime) {
+        int start = 0;
+        for (int i = 1; i <= entries.size(); i++) {
+            if (i == entries.size() || entries.get(i).priority != entries.get(start).priority) {
+                int level = entries.get(start).priority;
+                levels[level].addAllAt(entries.subList(start, i), maturityTime);
+                added(level, i - start);
+                start = i;
+            }
+        }
+    }
+
+    /*
+    Split the entries by level, keeping their order, and build each level in one go.
+     */
+    public void addAllSorted(List<TimeEntry> entries) {
+        ArrayList<ArrayList<TimeEntry>> byLevel = new ArrayList<ArrayList<TimeEntry>>(levels.length);
+        for (int level = 0; level < levels.length; level++) {
+            byLevel.add(new ArrayList<TimeEntry>());
+        }
+        for (TimeEntry tE : entries) {
+            byLevel.get(tE.priority).add(tE);
+        }
+        for (int level = 0; level < levels.length; level++) {
+            if (!byLevel.get(level).isEmpty()) {
+                levels[level].addAllSorted(byLevel.get(level));
+                added(level, byLevel.get(level).size());
+            }
+        }
+    }
+
+    public void visitAscending(Predicate<TimeEntry> visitor) {
+        boolean[] going = {true};
+        Predicate<TimeEntry> watched = tE -> going[0] = visitor.test(tE);
+        for (int level = levels.length - 1; level >= 0 && going[0]; level--) {
+            if (counts[level] > 0) {
+                levels[level].visitAscending(watched);
+            }
+        }
+    }
+
+    public void visitDescending(Predicate<TimeEntry> visitor) {
+        boolean[] going = {true};
+        Predicate<TimeEntry> watched = tE -> going[0] = visitor.test(tE);
+        for (int level = 0; level < levels.length && going[0]; level++) {
+            if (counts[level] > 0) {
+                levels[level].visitDescending(watched);
+            }
+        }
+    }
+
+    public void remove(TimeEntry tE) {
+        if (tE.next == null) {
+            return;
+        }
+        levels[tE.priority].remove(tE);
+        taken(tE.priority);
+    }
+
+    public TimeEntry getEntryAfter() throws TimeQueueException {
+        return getEntryAfter(clock.millis());
+    }
+
+    /*
+    Take from the level chosen as above. A TimingWheel may answer with a maturity a little early, so should the
+    level chosen turn out to have nothing mature after all the choice is made again without it.
+     */
+    public TimeEntry getEntryAfter(long now) throws TimeQueueException {
+        int candidates = occupied;
+        int level;
+        while ((level = choose(candidates, now)) >= 0) {
+            try {
+                TimeEntry tE = levels[level].getEntryAfter(now);
+                taken(level);
+                return tE;
+            } catch (TimeQueueException e) {
+                candidates &= ~(1 << level);
+            }
+        }
+        throw new TimeQueueException();
+    }
+
+    public long getNextMaturity() {
+        long earliest = Long.MAX_VALUE;
+        for (int bits = occupied; bits != 0; bits &= bits - 1) {
+            earliest = Math.min(earliest, levels[Integer.numberOfTrailingZeros(bits)].getNextMaturity());
+        }
+        return earliest;
+    }
+
+    public long estimatedOverheadBytes() {
+        long bytes = Footprint.refArray(levels.length) + Footprint.intArray(counts.length);
+        for (TimeIndex level : levels) {
+            bytes += level.estimatedOverheadBytes();
+        }
+        return bytes;
+    }
+
+    /*
+    The level among the candidates to take from next, or -1 if none of them has anything mature.
+     */
+    private int choose(int candidates, long now) {
+        int chosen = -1;
+        long chosenRank = Long.MIN_VALUE;
+        while (candidates != 0) {
+            int level = 31 - Integer.numberOfLeadingZeros(candidates);
+            candidates &= ~(1 << level);
+            long maturity = levels[level].getNextMaturity();
+            if (maturity > now) {
+                continue;
+            }
+            if (agingMillis == 0) {
+                return level;
+            }
+            long rank = level + (now - maturity) / agingMillis;
+            if (rank > chosenRank) {
+                chosen = level;
+                chosenRank = rank;
+            }
+        }
+        return chosen;
+    }
+
+    private void added(int level, int n) {
+        counts[level] += n;
+        occupied |= 1 << level;
+    }
+
+    private void taken(int level) {
+        if (--counts[level] == 0) {
+            occupied &= ~(1 << level);
+        }
+    }
+}
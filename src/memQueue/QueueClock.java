@@ -0,0 +1,46 @@
+package memQueue;
+
+/**
+ * Where a queue gets the time from.
+ * <p>
+ * Every maturity in memQueue is a time in milliseconds, and every check of whether an entry is mature compares it
+ * with the time this gives. QueueConfig.clock sets the clock a queue uses and the time indexes may be handed one
+ * too. There are four:
+ * <p>
+ * monotonic(), the default, counts on from the wall clock time it was first used by System.nanoTime, so it keeps
+ * step with the wall clock but never jumps when the wall clock is stepped, as NTP may do. A step back would
+ * otherwise hold back every entry in flight by that much, and a step forward hand them all out early at once.
+ * <p>
+ * coarse() is the monotonic clock read by a background thread once a millisecond and kept in a volatile field, so
+ * asking the time is a plain read of memory. It is never more than a tick behind.
+ * <p>
+ * system() is System.currentTimeMillis, the wall clock, jumps and all.
+ * <p>
+ * A VirtualClock only moves when told to. Tests and simulations can then run through hours of timeouts in no time
+ * at all.
+ * <p>
+ * Times handed to QueueId.enqueueAt are read against the queue's clock. With the monotonic clocks that's the wall
+ * clock time give or take any steps since it was first used.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public interface QueueClock {
+
+    /*
+    The time now in milliseconds.
+     */
+    long millis();
+
+    static QueueClock monotonic() {
+        return MonotonicClock.SHARED;
+    }
+
+    static QueueClock coarse() {
+        return CoarseClock.shared();
+    }
+
+    static QueueClock system() {
+        return System::currentTimeMillis;
+    }
+}
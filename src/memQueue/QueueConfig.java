@@ -0,0 +1,110 @@
+package memQueue;
+
+/**
+ * The settings a queue is created with.
+ * <p>
+ * A queue built with the plain QueueId(name) constructor gets the defaults given here. To change them create a
+ * QueueConfig, set the fields wanted and hand it to QueueId(name, config). The settings are read once when the
+ * queue is built so changing the config later has no effect on that queue.
+ * <p>
+ * As with ReadResponse the fields are made public so getters and setters are not necessary.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class QueueConfig {
+    /*
+    The structure used to order the entries by time of maturity.
+     */
+    public TimeIndexKind timeIndex = TimeIndexKind.TREE_MAP;
+    /*
+    The clock maturities are set and judged by. See QueueClock.
+     */
+    public QueueClock clock = QueueClock.monotonic();
+    /*
+    The number of priority levels, from 1 to 32. With more than one, each entry is enqueued at a level, 0 being the
+    lowest, and a read hands out a mature entry of the highest level that has one. With priorityAgingMillis set a
+    level counts one higher for each time that long its earliest entry has been kept waiting past maturity, so the
+    lower levels aren't starved. See PriorityTimeIndex.
+     */
+    public int priorityLevels = 1;
+    public long priorityAgingMillis = 0;
+    /*
+    The number of independent shards, each with its own entity table, time index and lock. More than one lets
+    enqueues, reads and dequeues on different shards run in parallel.
+     */
+    public int shards = 1;
+    /*
+    Copy each object into off heap slabs rather than keep the caller's byte array. Objects read back from such a
+    queue come as a ByteBuffer, see ReadResponse.
+     */
+    public boolean offHeapPayloads = false;
+    /*
+    The size of each slab when objects are kept off the heap. Must be a power of two. Objects bigger than this get
+    a buffer of their own.
+     */
+    public int slabBytes = 1 << 20;
+    /*
+    The directory to keep a write ahead log in, making the queue durable. Null, the default, keeps the queue in
+    memory only. A queue created on a directory that already holds a log picks up where that log left off. The
+    queue must have the same number of shards as the one that wrote the log.
+     */
+    public String walDirectory = null;
+    /*
+    The size of each log segment file.
+     */
+    public int walSegmentBytes = 64 << 20;
+    /*
+    How long the log may hold off forcing to disk so as to gather more records per force, and how many records
+    end the wait early. With no hold off a force starts as soon as one is needed and the callers arriving while it
+    runs share the next one.
+     */
+    public long walSyncIntervalMillis = 0;
+    public int walSyncBatch = 256;
+    /*
+    The directory to spill objects out to when memory is tight. Null, the default, keeps every object in memory.
+    With a directory set each shard keeps at most its share of spillThresholdBytes of objects in memory and writes
+    the objects of the entries maturing furthest off out to files of spillFileBytes each. An object is read back in
+    when its entry comes within spillReadAheadMillis of the head of the queue, up to spillReadAheadEntries at a
+    time.
+     */
+    public String spillDirectory = null;
+    public long spillThresholdBytes = 256L << 20;
+    public int spillFileBytes = 64 << 20;
+    public long spillReadAheadMillis = 1000;
+    public int spillReadAheadEntries = 1024;
+    /*
+    The most bytes and entries the queue may hold, counted as in MemoryBudget, and what an enqueue that would go
+    over does. With BLOCK it waits up to budgetWaitMillis for room. The defaults set no limit. A limit on all queues
+    together is set on MemoryBudget.global().
+     */
+    public long budgetBytes = Long.MAX_VALUE;
+    public long budgetEntries = Long.MAX_VALUE;
+    public BudgetPolicy budgetPolicy = BudgetPolicy.FAIL;
+    public long budgetWaitMillis = 1000;
+    /*
+    Keep counts and timings of the work done on the queue, readable from getMetrics and through JMX. See
+    QueueMetrics.
+     */
+    public boolean metrics = false;
+    /*
+    How much longer than the timeout asked for an entry stays hidden when it's handed out again, having been read
+    before and not deleted. The first redelivery adds redeliveryBackoffMillis, each one after that multiplies it by
+    redeliveryBackoffMultiplier, up to redeliveryBackoffMaxMillis. The default of 0 adds nothing.
+     */
+    public long redeliveryBackoffMillis = 0;
+    public double redeliveryBackoffMultiplier = 2;
+    public long redeliveryBackoffMaxMillis = 15 * 60 * 1000;
+    /*
+    The most times an entry is handed out. An entry read maxReceives times and still not deleted is moved to the
+    queue named deadLetterQueue once it matures again rather than handed out. An entry is only ever moved, never
+    dropped, for having been read too often: with no dead letter queue named maxReceives has no effect, and should
+    the named queue not exist at the time the entry is handed out as usual and counted as a dead letter miss in the
+    metrics, to be moved on a later read once the queue is there. 0, the default, sets no limit.
+     */
+    public int maxReceives = 0;
+    public String deadLetterQueue = null;
+
+    public QueueConfig() {
+    }
+}
@@ -0,0 +1,53 @@
+package memQueue;
+
+/**
+ * How the entries of a queue stand at one moment.
+ * <p>
+ * Delayed entries have yet to mature and haven't been handed out. In flight entries have been handed out and their
+ * timeout hasn't run out yet. Ready entries are the rest, those mature now, whether never handed out or out again
+ * once their timeout ran out. oldestReadyAgeMillis is how long the entry that matured earliest has been mature, 0
+ * when nothing is.
+ * <p>
+ * The counts hold as of the moment the depth is taken. A delayed entry whose time has come is ready, though nothing
+ * has read it since, as is an entry whose timeout has run out.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class QueueDepth {
+    private long ready = 0;
+    private long inFlight = 0;
+    private long delayed = 0;
+    private long oldestReadyAgeMillis = 0;
+
+    public long getReady() {
+        return ready;
+    }
+
+    public long getInFlight() {
+        return inFlight;
+    }
+
+    public long getDelayed() {
+        return delayed;
+    }
+
+    public long getOldestReadyAgeMillis() {
+        return oldestReadyAgeMillis;
+    }
+
+    /*
+    Add in a shard's figures.
+     */
+    void add(long ready, long inFlight, long delayed, long oldestReadyAgeMillis) {
+        this.ready += ready;
+        this.inFlight += inFlight;
+        this.delayed += delayed;
+        this.oldestReadyAgeMillis = Math.max(this.oldestReadyAgeMillis, oldestReadyAgeMillis);
+    }
+
+    public String toString() {
+        return String.format("%d ready, %d in flight, %d delayed, oldest ready %dms", ready, inFlight, delayed,
+                oldestReadyAgeMillis);
+    }
+}
@@ -0,0 +1,104 @@
+package memQueue;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * The Java Flight Recorder events a queue emits, so a recording shows what the queue was doing alongside the GC,
+ * safepoint and lock figures the JDK records itself.
+ * <p>
+ * Each event is cheap when no recording has it enabled: the JDK compiles the begin, end and commit calls down to a
+ * check of a flag. The timed events also carry a threshold, so even while recording only the slow ones are kept.
+ * The thresholds here are the defaults and a recording's settings may change them, as with any JDK event, say
+ * -XX:StartFlightRecording:settings=profile or a .jfc file naming memQueue.LockWait.
+ * <p>
+ * Making the first event of any kind starts up the flight recorder's machinery, which takes a good part of a
+ * second. So no event is made at all until something else has started the recorder, a recording begun from the
+ * command line, jcmd or the API. Until then the check is a read of one static flag.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+class QueueEvents {
+
+    /*
+    True once the flight recorder is up, and so events may be made.
+     */
+    static boolean on() {
+        return FlightRecorder.isInitialized();
+    }
+
+    /*
+    A Batch event begun now, or null if the recorder isn't up.
+     */
+    static Batch beginBatch() {
+        if (!on()) {
+            return null;
+        }
+        Batch event = new Batch();
+        event.begin();
+        return event;
+    }
+
+    @Name("memQueue.LockWait")
+    @Label("Queue Lock Wait")
+    @Category("Queue")
+    @Description("A wait to take a shard lock that was already held")
+    @Threshold("1 ms")
+    static final class LockWait extends Event {
+        @Label("Queue")
+        String queue;
+        @Label("Shard")
+        int shard;
+    }
+
+    @Name("memQueue.Redelivery")
+    @Label("Queue Redelivery")
+    @Category("Queue")
+    @Description("An entry handed out again after its visibility timeout ran out without it being deleted")
+    @StackTrace(false)
+    static final class Redelivery extends Event {
+        @Label("Queue")
+        String queue;
+        @Label("Receipt")
+        long receipt;
+        @Label("Receive Count")
+        int receiveCount;
+        @Label("Overdue")
+        @Timespan(Timespan.MILLISECONDS)
+        long overdue;
+    }
+
+    @Name("memQueue.Batch")
+    @Label("Queue Batch")
+    @Category("Queue")
+    @Description("An enqueueAll, readBatch or dequeueAll call")
+    @Threshold("1 ms")
+    static final class Batch extends Event {
+        @Label("Queue")
+        String queue;
+        @Label("Operation")
+        String operation;
+        @Label("Entries")
+        int entries;
+    }
+
+    @Name("memQueue.SpillFault")
+    @Label("Queue Spill Fault")
+    @Category("Queue")
+    @Description("A read that had to wait for an object to be read back from the spill files")
+    @Threshold("1 ms")
+    static final class SpillFault extends Event {
+        @Label("Queue")
+        String queue;
+        @Label("Objects Read")
+        int objects;
+    }
+}
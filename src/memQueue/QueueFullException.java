@@ -0,0 +1,17 @@
+package memQueue;
+
+/**
+ * An exception for when an enqueue would take a queue, or all queues together, over its memory budget.
+ * <p>
+ * As with a slot table that can grow no further this is an IllegalStateException rather than a checked exception,
+ * so callers of enqueue that set no budget are not made to handle it.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class QueueFullException extends IllegalStateException {
+
+    public QueueFullException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,42 @@
+package memQueue;
+
+/**
+ * A cached reference to a queue by name.
+ * <p>
+ * Resolving a name through QueueId.getQueue costs a map lookup each time. A caller that works on the same queue over
+ * and over may instead keep a handle. The handle holds on to the queue it last found and only goes back to the
+ * registry once that queue has been deleted, so while the queue lives getting it is a field read and a flag check.
+ * Should the name since have been taken by a new queue the handle moves on to it.
+ * <p>
+ * A handle may be shared between threads. At worst two threads both look the name up again after a delete.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public final class QueueHandle {
+    private final String queueName;
+    private volatile QueueId queueId = null;
+
+    public QueueHandle(String queueName) {
+        this.queueName = queueName;
+    }
+
+    public String getQueueName() {
+        return queueName;
+    }
+
+    /**
+     * The queue of this name.
+     * @return the live queue of this name
+     * @throws MissingQueueIdException if there's no such queue
+     */
+    public QueueId get() throws MissingQueueIdException {
+        QueueId cached = queueId;
+        if (cached != null && !cached.isDeleted()) {
+            return cached;
+        }
+        cached = QueueId.getQueue(queueName);
+        queueId = cached;
+        return cached;
+    }
+}
@@ -1,8 +1,19 @@
 package memQueue;
 
-import java.util.HashMap;
-import java.util.UUID;
-import java.util.concurrent.Semaphore;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+import readResponse.ReadBatchResponse;
 import readResponse.ReadResponse;
 
 
@@ -10,32 +21,37 @@ import readResponse.ReadResponse;
 /**
  * A synchronized queue for handling multiple producers and consumers.
  *
- * Each entry is characterized by a unique id.
+ * Each entry is characterized by a unique id, its Receipt.
  * Each entry has a maturity date associated with the id. This information exist on the TimeDistQueue.
- * Each entry is kept in a hash map where the key is the unique id and the value is the byte stream for it.
+ * Each entry is kept in a table of slots. The receipt holds the slot number, so finding an entry by its receipt
+ * is just an index into the table. The TimeEntry is the one record of the entry: it holds the byte stream, the
+ * maturity date and the links that place it on the TimeDistQueue.
  *
  * So we have this relationship:
- * TimeDistQueue                EntityMap
- * EntityId<----------------->EntityId
- * Maturity time              Object
+ * Entity table               TimeDistQueue
+ * Receipt(slot)------------->TimeEntry(Receipt, Maturity time, Object)
  *
  * The method of management is this:
- * When the value is added a unique key is created. The k,v pair is added to the map.  The id and a maturity time
- * of 'now' is added to the time queue.
- * As reads are done, each read removes the id from timequeue. The id is checked for existence in the hash map.
- * If the entry is not found then the id was deleted. That's ok. However, it means another entry must be pulled from
- * the TimeDistQueue. The process is repeated until either a mature id that *does* exist is found or we run out of mature
- * entries.
- * A successful read(one that does find an map entry by the id) will add back the entry on the TimeDistQueue with some
+ * When the value is added a free slot is taken and a receipt made from it and the queue's next sequence number. A
+ * TimeEntry is made for it holding the object with a maturity time of 'now'. That entry is put in the slot and
+ * linked onto the time queue. When it's deleted the slot is freed for reuse. As each receipt carries a sequence
+ * number never used before, one kept from a deleted entry will not match whatever takes over its slot.
+ * As reads are done, each read takes the earliest mature entry off the time queue. Everything on the time queue is
+ * live as deletes take their entry off it, so whatever comes off is what gets handed out.
+ * A successful read will put the same entry back on the TimeDistQueue with some
  * delta value that will have it mature later. This is to mean that an entry is processed only once. A successful
  * operation should include a deletion of the entry prior to the timeout expiring. Should the timeout expire the
  * implication is that the processing party failed to complete the task and so another must now take it up.
  *
- * An unsuccessful one will throw an exception. This means that clients DO NOT WAIT. If there's nothing here then
- * the exception tells them to move along and check back later.
+ * An unsuccessful one will throw an exception. With read(timeout) clients DO NOT WAIT. If there's nothing here then
+ * the exception tells them to move along and check back later. The long poll form, read(timeout, maxWait, unit),
+ * instead parks the caller until an entry is enqueued or the earliest entry on the TimeDistQueue matures. Waiting
+ * follows the leader pattern of java.util.concurrent.DelayQueue: only one waiter, the leader, sleeps until the
+ * earliest maturity while the rest wait to be signalled. Each enqueue signals a single waiter, so no more threads are
+ * woken than there are entries to hand out.
  *
- * An entry may be deleted at any time. If so, it will later encounter exactly the conditions described above. It will
- * exist on the TimeDistQueue but be missing from the map.
+ * An entry may be deleted at any time. If so, it is removed from the map and unlinked from wherever it sits on the
+ * TimeDistQueue in the same step, so there's never anything stale left on the time queue for a read to skip over.
  *
  * The TimeDistQueue is a tree map where the key is the maturity time and the value is the list of all entities sharing
  * that maturity time. This allows the map to be sorted in ascending order w.r.t. time and to keep the list of those
@@ -43,6 +59,72 @@ import readResponse.ReadResponse;
  * use the maturity time but a tree map requires unique keys so that doesn't work when there's no restriction on entities
  * sharing a time to maturity.
  *
+ * For queues with a great many entries in flight the time queue may instead be a TimingWheel, a hierarchical timing
+ * wheel with constant time insert and expiry. Which one is used is set by the QueueConfig the queue is created with.
+ * Both are reached through the TimeIndex interface.
+ *
+ * Sharding:
+ * A queue may be created with a number of shards, see QueueConfig. Each shard is a QueueShard with its own entity
+ * table, its own TimeDistQueue and its own lock, so threads working on different shards never contend. Enqueues are
+ * spread over the shards at random. A read starts on a shard chosen by the thread and, finding nothing mature there,
+ * moves on to each of the others in turn. The shard that holds an entry is known from its receipt so a dequeue goes
+ * straight to it. A queue of one shard, the default, behaves exactly as an unsharded queue.
+ *
+ * Long poll readers wait on a lock and condition of their own, apart from the shards. The count of waiters is
+ * checked after every enqueue and that lock is only taken when someone is waiting.
+ *
+ * Off heap objects:
+ * By default an entry holds the caller's byte array as is. A queue created with offHeapPayloads set instead copies
+ * each object into a SlabPayloadStore, one per shard, which keeps them in direct ByteBuffer slabs carved into chunks
+ * by size class. Deleting an entry frees its chunk for the next object of that class. Reads from such a queue hand
+ * the object out as a read only ByteBuffer, see ReadResponse. getSlabStats reports how full the slabs are.
+ *
+ * Durability:
+ * A queue created with a walDirectory keeps a WriteAheadLog there of every enqueue, read and delete. The log is
+ * shared by the shards. Each change is logged under its shard's lock so the records for any one entry are in the
+ * order they happened. Enqueues and deletes then wait, after letting the shard lock go, for their record to be
+ * forced to disk. Waiting callers share forces, so the disk sees one force per group of callers rather than one
+ * per entry. When a durable queue is first used the log is replayed and every live entry put back in its shard
+ * and slot under the very same receipt, so receipts held by clients from before a restart still work.
+ *
+ * A durable queue should call checkpoint now and then. That writes a snapshot of the live entries while the queue
+ * carries on working and trims the log back to what was written since, so a restart loads the snapshot and replays
+ * only the short tail after it. See Checkpoint.
+ *
+ * Spilling:
+ * A queue created with a spillDirectory holds only so many object bytes in memory. Past that each shard writes the
+ * objects of its entries maturing furthest off out to a SpillStore, keeping the entries themselves on the time
+ * queue, and reads them back in a batch at a time as the reads draw near them. A backlog far larger than memory is
+ * then held on disk while the head of the queue is still served from memory. getSpillStats reports how much is out.
+ *
+ * Priorities:
+ * A queue may be created with a number of priority levels, see QueueConfig. Each shard's time queue is then a
+ * PriorityTimeIndex, a time queue per level, and a read takes from the highest level with anything mature. Entries
+ * are enqueued at level 0 unless a level is given.
+ *
+ * Redelivery:
+ * Each entry counts the times it has been handed out. An entry handed out again, its reader having failed to
+ * delete it in time, may be given a longer timeout each time, see QueueConfig.redeliveryBackoffMillis, so one a
+ * reader keeps failing on comes round less and less often. Past QueueConfig.maxReceives it isn't handed out at all
+ * but taken out as it next matures and moved to the dead letter queue, the object going across as is. A read that
+ * comes upon such entries moves them and carries on to the next entry, so a few bad entries don't take reads away
+ * from the good ones.
+ *
+ * Time:
+ * Every maturity is judged against the queue's QueueClock, read once per operation and handed down to the shard and
+ * its time queue. By default that's a monotonic clock, so stepping the wall clock neither holds entries back nor
+ * hands them out early. A VirtualClock lets tests move time on by hand.
+ *
+ * The registry:
+ * Queues are found by name in a ConcurrentHashMap, so looking one up takes no lock and creates nothing. Creating a
+ * queue is an atomic put if absent, so of two threads creating the same name only one wins. getOrCreate does the
+ * same but hands back whichever queue won rather than failing. getQueueIfPresent returns null rather than throwing
+ * for callers who look up names that may well not exist. A caller resolving the same name over and over may keep a
+ * QueueHandle, which holds on to the queue and only goes back to the registry once that queue has been deleted.
+ *
+ * A new queue holds only its name and settings. Its shards, and the lock long poll readers wait on, are made the
+ * first time the queue is used, so a great many idle queues cost little each.
+ *
  * Notes:
  * Some changes from the spec were done.
  * The QueueId was to be a string. However that then requires keeping some translation of the string
@@ -72,20 +154,47 @@ import readResponse.ReadResponse;
  */
 
 public class QueueId {
-    static HashMap<String, QueueId> queMaps = null;
-    static Semaphore qMapsMutex;
-
-    static {
-        queMaps = new HashMap<String, QueueId>();
-        qMapsMutex = new Semaphore(1);
-    }
+    static ConcurrentHashMap<String, QueueId> queMaps = new ConcurrentHashMap<String, QueueId>();
 
     private String queueName;
-    private TimeDistQueue tq = null;
-    private Semaphore qMutex;
-    private boolean queueDisabled;
-    private HashMap<String, byte[]> qEntityMap;
-    private int maxEntries = 0;
+    private QueueConfig config;
+    /*
+    The room the queue may take up and what it takes up now.
+     */
+    final MemoryBudget budget;
+    private final BudgetPolicy budgetPolicy;
+    private final long budgetWaitMillis;
+    /*
+    Null unless the queue keeps metrics.
+     */
+    final QueueMetrics metrics;
+    /*
+    Where the time comes from, see QueueClock.
+     */
+    final QueueClock clock;
+    /*
+    Null until the queue is first used. Once set it never changes.
+     */
+    private volatile QueueShard[] shards = null;
+    WriteAheadLog wal = null;
+    private volatile boolean queueDisabled;
+    /*
+    Long poll readers. The leader is the waiter sleeping until the earliest maturity, leaderWakeAt, and waiting
+    counts all of them. Both are only changed under the waitMutex but are read without it. wakeups goes up, under
+    the waitMutex, with every signal, so a waiter that looked for entries without the waitMutex can tell whether it
+    has missed one since.
+     */
+    private ReentrantLock waitMutex;
+    private Condition entityAvailable;
+    private Thread leader = null;
+    private volatile long leaderWakeAt = Long.MAX_VALUE;
+    private volatile int waiting = 0;
+    private volatile long wakeups = 0;
+    /*
+    Told the maturity of every entry enqueued or put back, see QueuePublisher. Replaced whole rather than changed so
+    the signalling paths can walk it without a lock, and while it's empty those paths only read its length.
+     */
+    private volatile LongConsumer[] maturityListeners = new LongConsumer[0];
 
     /**
      * Construct a new queue instance.
@@ -95,134 +204,591 @@ public class QueueId {
      * @throws DuplicateQueueIdException
      */
     public QueueId(String queueName) throws DuplicateQueueIdException {
-        try {
-            qMapsMutex.acquire();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        if (queMaps.containsKey(queueName)) {
-            qMapsMutex.release();
+        this(queueName, new QueueConfig());
+    }
+
+    /**
+     * Construct a new queue instance with the given settings.
+     * As above the name must be unique.
+     * @param queueName a unique string to name the queue
+     * @param config the settings for the queue
+     * @throws DuplicateQueueIdException
+     */
+    public QueueId(String queueName, QueueConfig config) throws DuplicateQueueIdException {
+        this(queueName, config, false);
+        if (queMaps.putIfAbsent(queueName, this) != null) {
             throw new DuplicateQueueIdException();
+        }
+    }
 
+    /*
+    Make a queue without putting it in the registry, the flag only tells this apart from the public constructor.
+    Everything is set before the queue can be published so any thread finding it in the registry sees it whole.
+     */
+    private QueueId(String queueName, QueueConfig config, boolean registered) {
+        if (config.shards < 1) {
+            throw new IllegalArgumentException("A queue needs at least one shard");
+        }
+        if (config.priorityLevels < 1 || config.priorityLevels > PriorityTimeIndex.MAX_LEVELS) {
+            throw new IllegalArgumentException("A queue has 1 to " + PriorityTimeIndex.MAX_LEVELS + " priority levels");
         }
         this.queueName = queueName;
-        queMaps.put(queueName, this);
-        qMapsMutex.release();
-        /*
-        We can release protection now as the rest deals with instance data.
-         */
-        tq = new TimeDistQueue(UUID.randomUUID().toString());
-        qMutex = new Semaphore(1);
-        qEntityMap = new HashMap<String, byte[]>();
+        this.config = config;
+        budget = new MemoryBudget(queueName, config.budgetBytes, config.budgetEntries, MemoryBudget.global());
+        budgetPolicy = config.budgetPolicy;
+        budgetWaitMillis = config.budgetWaitMillis;
+        metrics = config.metrics ? new QueueMetrics(this) : null;
+        clock = config.clock;
     }
 
     /**
      * Retrieve an instance by name.
      * Since names are unique if there's no match then an exception is thrown.
-     * As the queMaps is a common resource be sure to acquire exclusive access to it.
      * @param queueName must match an existing queue.
      * @return an instance if a queue matching the name is found.
      * @throws MissingQueueIdException
      */
     public static QueueId getQueue(String queueName) throws MissingQueueIdException {
-        try {
-            qMapsMutex.acquire();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        if(!queMaps.containsKey(queueName)) {
-            qMapsMutex.release();
+        QueueId queueId = queMaps.get(queueName);
+        if (queueId == null) {
             throw new MissingQueueIdException();
         }
+        return queueId;
+    }
+
+    /**
+     * Retrieve an instance by name, or null if there's none.
+     * Unlike getQueue nothing is thrown so a miss costs no more than a hit.
+     * @param queueName the name of the queue
+     * @return the queue, or null
+     */
+    public static QueueId getQueueIfPresent(String queueName) {
+        return queMaps.get(queueName);
+    }
+
+    /**
+     * Retrieve an instance by name, creating it with default settings should there be none.
+     * @param queueName the name of the queue
+     * @return the queue of that name
+     */
+    public static QueueId getOrCreate(String queueName) {
+        return getOrCreate(queueName, new QueueConfig());
+    }
+
+    /**
+     * Retrieve an instance by name, creating it with the settings given should there be none.
+     * Should several threads race to create the same name they all get back the one queue that made it into the
+     * registry. The settings are only used if this call is the one that creates the queue.
+     * @param queueName the name of the queue
+     * @param config the settings for the queue, if it's created
+     * @return the queue of that name
+     */
+    public static QueueId getOrCreate(String queueName, QueueConfig config) {
+        QueueId queueId = queMaps.get(queueName);
+        if (queueId != null) {
+            return queueId;
+        }
         /*
-        Queues don't get deleted so we can release the mutex and be certain that returning the value is safe.
+        A new queue is only its name and settings until first used, so losing the race costs next to nothing.
          */
-        qMapsMutex.release();
-        return queMaps.get(queueName);
+        QueueId created = new QueueId(queueName, config, false);
+        queueId = queMaps.putIfAbsent(queueName, created);
+        return queueId == null ? created : queueId;
     }
+
     public String getQueueName() {
         return queueName;
     }
 
+    /*
+    True once the queue has been deleted. Anything holding on to it should look the name up again.
+     */
+    public boolean isDeleted() {
+        return queueDisabled;
+    }
+
     /**
      * Deleting a queue may only be done if there's no work items in it. If that's not true then the queue
      * may not be deleted. Deleting consists of removing it from the list of queues that may be done.
-     * Since the check is the map is empty it is known then that the time queue must be empty as there can only
-     * be entries on the time queue if there are entries in the map.
+     * Since the check is the entity tables are empty it is known then that the time queues must be empty as there
+     * can only be entries on a time queue if there are entries in its table.
+     * Every shard is locked, in order, for the check so nothing can be added part way through.
      */
 
     public boolean deleteQueue(){
-        try{
-            qMutex.acquire();
-        } catch (Exception e) {
-            e.printStackTrace();
+        QueueShard[] shards = shards();
+        for (QueueShard shard : shards) {
+            shard.lock.lock();
         }
-        if (qEntityMap.isEmpty() == false) {
-            qMutex.release();
-            return false;
-        }
-        queueDisabled = true;
+        boolean empty = true;
         try {
-            qMapsMutex.acquire();
-        } catch(Exception e) {
-            e.printStackTrace();
+            for (QueueShard shard : shards) {
+                empty &= shard.entryCount == 0;
+            }
+            if (empty) {
+                queueDisabled = true;
+                queMaps.remove(queueName, this);
+                if (wal != null) {
+                    wal.delete();
+                }
+                for (QueueShard shard : shards) {
+                    if (shard.spill != null) {
+                        shard.spill.delete();
+                    }
+                }
+                if (metrics != null) {
+                    metrics.unregister();
+                }
+            }
+        } finally {
+            for (int i = shards.length - 1; i >= 0; i--) {
+                shards[i].lock.unlock();
+            }
         }
-        queMaps.remove(queueName);
-        qMapsMutex.release();
-        qMutex.release();
-        return true;
+        if (empty) {
+            /*
+            Anyone parked in a long poll must find out the queue is gone.
+             */
+            waitMutex.lock();
+            wakeups++;
+            entityAvailable.signalAll();
+            waitMutex.unlock();
+            tellListeners(Long.MIN_VALUE);
+        }
+        return empty;
     }
 
     /**
      * To the queue add an entry.
      *
-     * Note that adding depends on the queue being enabled. If so, for an object, a byte array, create a
-     * unique id and add it the name space for this queue. Place the name on the time queue with the current time
-     * so that it's immediately mature.
+     * Note that adding depends on the queue being enabled. If so, for an object, a byte array, take a slot for it
+     * on a shard and make its receipt. Place the entry on the time queue with the current time so that it's
+     * immediately mature. One reader waiting in a long poll is woken to take it.
+     *
+     * Room for the entry is first taken in the queue's budget, and the global one, as the budget policy says. See
+     * MemoryBudget.
+     * @param object a byte array reference
+     * @return the receipt of the new entry
+     * @throws MissingQueueIdException
+     * @throws QueueFullException if there's no room in the budget
+     */
+    public long enqueue(byte[] object) throws MissingQueueIdException {
+        return enqueue(object, 0);
+    }
+
+    /**
+     * To the queue add an entry at a priority level.
+     *
+     * As above, but on a queue with priority levels a read hands out a mature entry of a higher level before any of
+     * a lower one. See QueueConfig.priorityLevels.
+     * @param object a byte array reference
+     * @param priority the level, from 0, the lowest, to one less than the queue's number of levels
+     * @return the receipt of the new entry
+     * @throws MissingQueueIdException
+     * @throws QueueFullException if there's no room in the budget
+     */
+    public long enqueue(byte[] object, int priority) throws MissingQueueIdException {
+        return enqueueAt(object, clock.millis(), priority);
+    }
+
+    /**
+     * To the queue add an entry that only matures once the delay has passed.
+     *
+     * Until then a read passes it over, just as it does an entry read and not yet timed out. The delay may be days
+     * or more. An entry not yet mature may be taken out again with cancel.
+     * @param object a byte array reference
+     * @param delay how long until the entry is first handed out
+     * @param unit the unit of delay
+     * @return the receipt of the new entry
+     * @throws MissingQueueIdException
+     * @throws QueueFullException if there's no room in the budget
+     */
+    public long enqueue(byte[] object, long delay, TimeUnit unit) throws MissingQueueIdException {
+        return enqueueAt(object, clock.millis() + unit.toMillis(delay), 0);
+    }
+
+    /**
+     * To the queue add an entry that matures at the time given, in milliseconds since the epoch. A time already
+     * past makes the entry mature at once.
      * @param object a byte array reference
+     * @param epochMillis the time the entry is first handed out
+     * @return the receipt of the new entry
      * @throws MissingQueueIdException
+     * @throws QueueFullException if there's no room in the budget
      */
-    public void enqueue(byte[] object) throws MissingQueueIdException {
-        String entityId = UUID.randomUUID().toString();
+    public long enqueueAt(byte[] object, long epochMillis) throws MissingQueueIdException {
+        return enqueueAt(object, epochMillis, 0);
+    }
+
+    /**
+     * As above, at a priority level.
+     * @param object a byte array reference
+     * @param epochMillis the time the entry is first handed out
+     * @param priority the level, see enqueue(object, priority)
+     * @return the receipt of the new entry
+     * @throws MissingQueueIdException
+     * @throws QueueFullException if there's no room in the budget
+     */
+    public long enqueueAt(byte[] object, long epochMillis, int priority) throws MissingQueueIdException {
+        checkPriority(priority);
+        long start = metrics == null ? 0 : System.nanoTime();
+        long bytes = MemoryBudget.footprint(object);
+        boolean reserved = budget.reserve(bytes, 1, budgetPolicy, budgetWaitMillis);
+        QueueShard shard = pickShard();
+        TimeEntry entry;
+        long walPosition;
+        shard.acquire();
         try {
-            qMutex.acquire();
-        } catch(Exception e) {
-            e.printStackTrace();
+            if (queueDisabled) {
+                if (reserved) {
+                    budget.release(bytes, 1);
+                }
+                throw new MissingQueueIdException();
+            }
+            MemoryBudget full = reserved ? null : shedFor(shard, bytes, 1);
+            if (full != null) {
+                throw full.fullException(bytes, 1);
+            }
+            try {
+                entry = shard.allocateEntry(object, epochMillis, priority, clock.millis());
+            } catch (RuntimeException e) {
+                budget.release(bytes, 1);
+                throw e;
+            }
+            shard.tq.add(entry);
+            shard.spillIfOver();
+            walPosition = shard.walPosition;
+        } finally {
+            shard.lock.unlock();
         }
-        if (queueDisabled) {
-            qMutex.release();
-            throw new MissingQueueIdException();
+        if (wal != null) {
+            wal.awaitDurable(walPosition);
+        }
+        signalEnqueued(1, epochMillis);
+        if (metrics != null) {
+            metrics.enqueued.increment();
+            metrics.enqueueLatency.record(System.nanoTime() - start);
+        }
+        return entry.receipt;
+    }
+
+    /**
+     * To the queue add a group of entries, all immediately mature.
+     *
+     * This behaves as a call to enqueue for each object in turn but the whole group goes to one shard under a
+     * single hold of its lock. The entity table is grown once up front and the time queue takes the group onto one
+     * list. As many long poll readers are woken as there are new entries. Room is taken in the budget for the
+     * whole group, so either all of it goes in or none.
+     * @param objects the byte array references to add
+     * @return the receipts assigned, in the order of the objects
+     * @throws MissingQueueIdException
+     * @throws QueueFullException if there's no room in the budget
+     */
+    public long[] enqueueAll(List<byte[]> objects) throws MissingQueueIdException {
+        return enqueueAll(objects, clock.millis(), 0, false);
+    }
+
+    /**
+     * To the queue add a group of entries, all at the one priority level. See enqueue(object, priority).
+     * @param objects the byte array references to add
+     * @param priority the level of every entry in the group
+     * @return the receipts assigned, in the order of the objects
+     * @throws MissingQueueIdException
+     * @throws QueueFullException if there's no room in the budget
+     */
+    public long[] enqueueAll(List<byte[]> objects, int priority) throws MissingQueueIdException {
+        checkPriority(priority);
+        return enqueueAll(objects, clock.millis(), priority, false);
+    }
+
+    /**
+     * To the queue add a group of entries, all maturing at the time given, in milliseconds since the epoch. See
+     * enqueueAt.
+     * @param objects the byte array references to add
+     * @param epochMillis the time the entries are first handed out
+     * @param priority the level of every entry in the group
+     * @return the receipts assigned, in the order of the objects
+     * @throws MissingQueueIdException
+     * @throws QueueFullException if there's no room in the budget
+     */
+    public long[] enqueueAllAt(List<byte[]> objects, long epochMillis, int priority) throws MissingQueueIdException {
+        checkPriority(priority);
+        return enqueueAll(objects, epochMillis, priority, false);
+    }
+
+    /*
+    As above but with forced set the group goes in whether or not there's room in the budget.
+     */
+    private long[] enqueueAll(List<byte[]> objects, long maturityTime, int priority, boolean forced)
+            throws MissingQueueIdException {
+        long start = metrics == null ? 0 : System.nanoTime();
+        QueueEvents.Batch event = QueueEvents.beginBatch();
+        int n = objects.size();
+        long[] receipts = new long[n];
+        ArrayList<TimeEntry> entries = new ArrayList<TimeEntry>(n);
+        long bytes = 0;
+        for (byte[] object : objects) {
+            bytes += MemoryBudget.footprint(object);
         }
-        qEntityMap.put(entityId, object);
-        if (qEntityMap.size() > maxEntries) {
-            maxEntries = qEntityMap.size();
+        boolean reserved = true;
+        if (forced) {
+            budget.add(bytes, n);
+        } else {
+            reserved = budget.reserve(bytes, n, budgetPolicy, budgetWaitMillis);
         }
-        tq.add(entityId);
-        qMutex.release();
+        QueueShard shard = pickShard();
+        long walPosition;
+        shard.acquire();
+        try {
+            if (queueDisabled) {
+                if (reserved) {
+                    budget.release(bytes, n);
+                }
+                throw new MissingQueueIdException();
+            }
+            MemoryBudget full = reserved ? null : shedFor(shard, bytes, n);
+            if (full != null) {
+                throw full.fullException(bytes, n);
+            }
+            long now = clock.millis();
+            try {
+                shard.reserve(n);
+                for (int i = 0; i < n; i++) {
+                    TimeEntry entry = shard.allocateEntry(objects.get(i), maturityTime, priority, now);
+                    receipts[i] = entry.receipt;
+                    entries.add(entry);
+                }
+            } catch (RuntimeException e) {
+                /*
+                The group goes in whole or not at all. Those already in give their room back as they're taken out,
+                the room the rest had is given back here. One whose delete can't be logged either stays in, put on
+                the time queue as any other entry.
+                 */
+                long taken = 0;
+                for (int i = 0; i < entries.size(); i++) {
+                    taken += MemoryBudget.footprint(objects.get(i));
+                }
+                budget.release(bytes - taken, n - entries.size());
+                for (TimeEntry entry : entries) {
+                    try {
+                        shard.releaseEntry(entry);
+                    } catch (RuntimeException again) {
+                        e.addSuppressed(again);
+                    }
+                }
+                throw e;
+            }
+            shard.tq.addAllAt(entries, maturityTime);
+            shard.spillIfOver();
+            walPosition = shard.walPosition;
+        } finally {
+            shard.lock.unlock();
+        }
+        if (wal != null && n > 0) {
+            wal.awaitDurable(walPosition);
+        }
+        signalEnqueued(n, maturityTime);
+        if (metrics != null) {
+            metrics.enqueued.add(n);
+            metrics.enqueueLatency.record(System.nanoTime() - start);
+        }
+        commitBatch(event, "enqueueAll", n);
+        return receipts;
     }
 
     /**
      * From the queue the entry identified by the entity id is removed.
      * If the queue is disabled or the entity is not found then an exception is thrown.
-     * @param entityId
+     * @param entityId the string form of the entry's receipt
      * @throws NoEntityException
      */
     public void dequeue(String entityId) throws NoEntityException {
+        dequeue(Receipt.parse(entityId));
+    }
+
+    /**
+     * From the queue the entry identified by the receipt is removed.
+     * If the queue is disabled or the entity is not found then an exception is thrown.
+     * @param receipt
+     * @throws NoEntityException
+     */
+    public void dequeue(long receipt) throws NoEntityException {
+        if (receipt == 0) {
+            throw new NoEntityException();
+        }
+        long start = metrics == null ? 0 : System.nanoTime();
+        QueueShard[] shards = shards();
+        QueueShard shard = shards[QueueShard.shardOf(receipt, shards.length)];
+        long walPosition;
+        shard.acquire();
         try {
-            qMutex.acquire();
-        } catch (Exception e) {
-            e.printStackTrace();
+            if (queueDisabled) {
+                throw new NoEntityException();
+            }
+            TimeEntry entry = shard.lookupEntry(receipt);
+            if (entry == null) {
+                throw new NoEntityException();
+            }
+            shard.tq.remove(entry);
+            shard.releaseEntry(entry);
+            walPosition = shard.walPosition;
+        } finally {
+            shard.lock.unlock();
         }
-        if (queueDisabled) {
-            qMutex.release();
-            throw new NoEntityException();
+        if (wal != null) {
+            wal.awaitDurable(walPosition);
+        }
+        if (metrics != null) {
+            metrics.dequeued.increment();
+            metrics.dequeueLatency.record(System.nanoTime() - start);
         }
-        if (qEntityMap.containsKey(entityId) == false) {
-            qMutex.release();
+    }
+
+    /**
+     * Set how long from now an entry stays hidden. A reader that needs longer than the timeout it read with can push
+     * the time out, and one giving up on an entry can set 0 to have it handed out again straight away. The count of
+     * times the entry has been handed out is left as it is.
+     * @param receipt the receipt of the entry
+     * @param timeout milliseconds from now until the entry matures
+     * @throws NoEntityException if there's no such entry or the queue has been deleted
+     */
+    public void changeVisibility(long receipt, long timeout) throws NoEntityException {
+        if (receipt == 0) {
             throw new NoEntityException();
         }
-        qEntityMap.remove(entityId);
-        qMutex.release();
+        QueueShard[] shards = shards();
+        QueueShard shard = shards[QueueShard.shardOf(receipt, shards.length)];
+        long maturityTime;
+        shard.acquire();
+        try {
+            if (queueDisabled) {
+                throw new NoEntityException();
+            }
+            TimeEntry entry = shard.lookupEntry(receipt);
+            if (entry == null) {
+                throw new NoEntityException();
+            }
+            maturityTime = clock.millis() + timeout;
+            shard.changeMaturity(entry, maturityTime);
+        } finally {
+            shard.lock.unlock();
+        }
+        signalRearmed(maturityTime);
+    }
+
+    /**
+     * Take out an entry that has never been handed out, most often one enqueued with a delay that hasn't yet
+     * passed. Unlike dequeue an entry that a reader has been given is left alone, so a cancel racing a read never
+     * takes the entry from under the reader. Whichever the time index the entry is unlinked where it sits on it,
+     * without a search.
+     * @param receipt the receipt of the entry
+     * @return true if the entry was taken out, false if there's no such entry or it has been read
+     * @throws NoEntityException if the queue has been deleted
+     */
+    public boolean cancel(long receipt) throws NoEntityException {
+        if (receipt == 0) {
+            return false;
+        }
+        QueueShard[] shards = shards();
+        QueueShard shard = shards[QueueShard.shardOf(receipt, shards.length)];
+        long walPosition;
+        shard.acquire();
+        try {
+            if (queueDisabled) {
+                throw new NoEntityException();
+            }
+            TimeEntry entry = shard.lookupEntry(receipt);
+            if (entry == null || entry.receiveCount > 0) {
+                return false;
+            }
+            shard.tq.remove(entry);
+            shard.releaseEntry(entry);
+            walPosition = shard.walPosition;
+        } finally {
+            shard.lock.unlock();
+        }
+        if (wal != null) {
+            wal.awaitDurable(walPosition);
+        }
+        return true;
+    }
+
+    /**
+     * From the queue remove every entry identified in the collection.
+     * A missing entity doesn't stop the rest from being removed, instead the outcome for each id is reported back.
+     * @param entityIds the string forms of the receipts to remove
+     * @return for each id, in the order the collection gives them, true if it was removed and false if not found
+     * @throws NoEntityException if the queue has been deleted
+     */
+    public boolean[] dequeueAll(Collection<String> entityIds) throws NoEntityException {
+        long[] receipts = new long[entityIds.size()];
+        int i = 0;
+        for (String entityId : entityIds) {
+            receipts[i++] = Receipt.parse(entityId);
+        }
+        return dequeueAll(receipts);
+    }
+
+    /**
+     * As above but taking the receipts themselves.
+     * Each shard owning any of the receipts is locked once and all of its entries removed under that one hold.
+     * @param receipts the receipts to remove
+     * @return for each receipt true if it was removed and false if not found
+     * @throws NoEntityException if the queue has been deleted
+     */
+    public boolean[] dequeueAll(long[] receipts) throws NoEntityException {
+        long start = metrics == null ? 0 : System.nanoTime();
+        QueueEvents.Batch event = QueueEvents.beginBatch();
+        QueueShard[] shards = shards();
+        boolean[] removed = new boolean[receipts.length];
+        long walPosition = -1;
+        int[] owner = new int[receipts.length];
+        boolean[] touched = new boolean[shards.length];
+        for (int i = 0; i < receipts.length; i++) {
+            owner[i] = receipts[i] == 0 ? -1 : QueueShard.shardOf(receipts[i], shards.length);
+            if (owner[i] >= 0) {
+                touched[owner[i]] = true;
+            }
+        }
+        for (int s = 0; s < shards.length; s++) {
+            if (!touched[s]) {
+                continue;
+            }
+            QueueShard shard = shards[s];
+            shard.acquire();
+            try {
+                if (queueDisabled) {
+                    throw new NoEntityException();
+                }
+                for (int i = 0; i < receipts.length; i++) {
+                    if (owner[i] != s) {
+                        continue;
+                    }
+                    TimeEntry entry = shard.lookupEntry(receipts[i]);
+                    if (entry != null) {
+                        shard.tq.remove(entry);
+                        shard.releaseEntry(entry);
+                        removed[i] = true;
+                        walPosition = Math.max(walPosition, shard.walPosition);
+                    }
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        if (wal != null && walPosition >= 0) {
+            wal.awaitDurable(walPosition);
+        }
+        if (metrics != null) {
+            for (boolean r : removed) {
+                if (r) {
+                    metrics.dequeued.increment();
+                }
+            }
+            metrics.dequeueLatency.record(System.nanoTime() - start);
+        }
+        commitBatch(event, "dequeueAll", receipts.length);
+        return removed;
     }
 
     /**
@@ -230,47 +796,599 @@ public class QueueId {
      * Since this is to return a ReadResponse we need to communicate when there is no mature entry
      * on the list. Should this be true then a NoEntity exception is thrown to inform the client of that.
      *
-     * In handling this note that getting an entry from the time queue is not sufficient. Things on the time
-     * queue must be qualified against the map with the entity id. Only then can it be known that the entity is
-     * present. As part of this the entity is requeued to the time queue when found.
+     * Deleted entries are taken off the time queue as they are deleted so the earliest mature entry there is the
+     * one handed out. As part of this the entry is requeued to the time queue with its new maturity.
      *
      * @param timeout milliseconds to add to the maturity date
      * @return a ReadResponse with the object and reference information.
      * @throws NoEntityException
      */
     public ReadResponse read(long timeout) throws NoEntityException {
-        TimeEntry timeResponse = null;
-        ReadResponse readResponse = null;
+        ReadResponse readResponse = readAny(timeout);
+        if (readResponse == null) {
+            throw new NoEntityException();
+        }
+        return readResponse;
+    }
+
+    /**
+     * Long poll form of read.
+     * Rather than failing straight away when nothing is mature the caller is parked until an entry is enqueued, the
+     * earliest entry on the time queue matures or maxWait runs out, whichever comes first. Only when maxWait runs out
+     * with nothing to hand out, or the queue is deleted, is a NoEntity exception thrown.
+     *
+     * @param timeout milliseconds to add to the maturity date of the entry handed out
+     * @param maxWait longest time to wait for an entry
+     * @param unit the unit of maxWait
+     * @return a ReadResponse with the object and reference information.
+     * @throws NoEntityException
+     * @throws InterruptedException
+     */
+    public ReadResponse read(long timeout, long maxWait, TimeUnit unit) throws NoEntityException,
+            InterruptedException {
+        ReadResponse readResponse = longPoll(() -> readAny(timeout), maxWait, unit);
+        if (readResponse == null) {
+            throw new NoEntityException();
+        }
+        return readResponse;
+    }
+
+    /**
+     * Long poll form of readBatch.
+     * The caller is parked as in the long poll read until at least one entry can be handed out or maxWait runs out.
+     * Whatever is mature at that point, up to max entries, is handed out.
+     *
+     * @param max the most entries to hand out
+     * @param timeout milliseconds to add to the maturity date of every entry handed out
+     * @param maxWait longest time to wait for an entry
+     * @param unit the unit of maxWait
+     * @return a ReadBatchResponse holding between 0 and max entries, 0 only when maxWait ran out.
+     * @throws NoEntityException if the queue has been deleted
+     * @throws InterruptedException
+     */
+    public ReadBatchResponse readBatch(int max, long timeout, long maxWait, TimeUnit unit) throws NoEntityException,
+            InterruptedException {
+        ReadBatchResponse batch = longPoll(() -> {
+            ReadBatchResponse pulled = pullBatch(max, timeout);
+            return pulled == null || pulled.count == 0 ? null : pulled;
+        }, maxWait, unit);
+        if (batch == null) {
+            if (queueDisabled) {
+                throw new NoEntityException();
+            }
+            return new ReadBatchResponse(this, 0);
+        }
+        return batch;
+    }
+
+    /*
+    Make the attempt and, should it come back with nothing, park the caller until it may succeed and try again,
+    until it does or maxWait runs out. Null is returned if it never succeeded or the queue was deleted.
+
+    The attempt and the look for the earliest maturity take the shard locks, so both are made without the waitMutex
+    and long pollers don't queue up on it behind each other's reads. It's held only to park and to signal. A waiter
+    notes wakeups before it looks and parks only if no signal came since, so an entry enqueued after the look isn't
+    missed. Being counted in waiting before the first look has an enqueue landing after it signal.
+     */
+    private <T> T longPoll(Supplier<T> attempt, long maxWait, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(maxWait);
+        T result = attempt.get();
+        if (result != null) {
+            return result;
+        }
+        waitMutex.lockInterruptibly();
+        waiting++;
+        waitMutex.unlock();
         try {
-            qMutex.acquire();
-        } catch (Exception e) {
-            e.printStackTrace();
+            while (true) {
+                long seen = wakeups;
+                result = attempt.get();
+                if (result != null || queueDisabled || nanos <= 0) {
+                    return result;
+                }
+                long nextMaturity = nextMaturity();
+                waitMutex.lockInterruptibly();
+                try {
+                    if (wakeups != seen) {
+                        continue;
+                    }
+                    /*
+                    Nothing on the time queue at all, or someone else already watching the earliest maturity, means
+                    there's nothing to do but wait for a signal. Otherwise this thread becomes the leader and sleeps
+                    only until that earliest entry matures.
+                     */
+                    if (nextMaturity == Long.MAX_VALUE || leader != null) {
+                        nanos = entityAvailable.awaitNanos(nanos);
+                    } else {
+                        Thread thisThread = Thread.currentThread();
+                        long delay = Math.min(nanos,
+                                TimeUnit.MILLISECONDS.toNanos(nextMaturity - clock.millis()));
+                        leader = thisThread;
+                        leaderWakeAt = nextMaturity;
+                        try {
+                            nanos -= delay - entityAvailable.awaitNanos(delay);
+                        } finally {
+                            if (leader == thisThread) {
+                                leader = null;
+                                leaderWakeAt = Long.MAX_VALUE;
+                            }
+                        }
+                    }
+                } finally {
+                    waitMutex.unlock();
+                }
+            }
+        } finally {
+            /*
+            With the leader gone, pass the watch on to one other waiter if there's anything left to watch. An entry
+            enqueued after the look signals anyway.
+             */
+            boolean watch = waiting > 1 && nextMaturity() != Long.MAX_VALUE;
+            waitMutex.lock();
+            waiting--;
+            if (watch && leader == null && waiting > 0) {
+                wakeups++;
+                entityAvailable.signal();
+            }
+            waitMutex.unlock();
         }
-        while (readResponse == null) {
+    }
+
+    /**
+     * Read up to max mature entries in one go.
+     * Mature entries are pulled from the time queue and put back on it together with the one new maturity date.
+     * Each shard visited is drained under a single hold of its lock, starting with the thread's own shard.
+     * Unlike read this does not throw when nothing is mature, the batch is simply empty.
+     *
+     * @param max the most entries to hand out
+     * @param timeout milliseconds to add to the maturity date of every entry handed out
+     * @return a ReadBatchResponse holding between 0 and max entries.
+     * @throws NoEntityException if the queue has been deleted
+     */
+    public ReadBatchResponse readBatch(int max, long timeout) throws NoEntityException {
+        ReadBatchResponse batch = pullBatch(max, timeout);
+        if (batch == null) {
+            throw new NoEntityException();
+        }
+        return batch;
+    }
+
+    /*
+    The batch read, returning null if the queue has been deleted.
+     */
+    private ReadBatchResponse pullBatch(int max, long timeout) {
+        long start = metrics == null ? 0 : System.nanoTime();
+        QueueEvents.Batch event = QueueEvents.beginBatch();
+        QueueShard[] shards = shards();
+        ReadBatchResponse batch = new ReadBatchResponse(this, max);
+        int home = homeShard(shards);
+        for (int i = 0; i < shards.length && batch.count < max; i++) {
+            QueueShard shard = shards[(home + i) % shards.length];
+            ArrayList<byte[]> taken;
+            shard.acquire();
             try {
-                timeResponse = tq.getEntryAfter();
+                if (queueDisabled) {
+                    return null;
+                }
+                shard.readMature(batch, max, timeout, clock.millis());
+                taken = shard.takeDeadLetters();
+            } finally {
+                shard.lock.unlock();
+            }
+            moveDeadLetters(taken);
+        }
+        if (batch.count > 0) {
+            signalRearmed(clock.millis() + timeout);
+        }
+        if (metrics != null) {
+            if (batch.count > 0) {
+                metrics.read.add(batch.count);
+            } else {
+                metrics.emptyReads.increment();
+            }
+            metrics.readLatency.record(System.nanoTime() - start);
+        }
+        commitBatch(event, "readBatch", batch.count);
+        return batch;
+    }
 
-            } catch (TimeQueueException e) {
-                qMutex.release();
-                throw new NoEntityException();
+    /*
+    End a batch's flight recorder event, keeping it if the batch was slow enough to pass the threshold.
+     */
+    private void commitBatch(QueueEvents.Batch event, String operation, int entries) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.queue = queueName;
+            event.operation = operation;
+            event.entries = entries;
+            event.commit();
+        }
+    }
+
+    /*
+    Read from the thread's own shard, stealing from the others in turn when it has nothing mature. Null is returned
+    if no shard has anything mature or the queue is disabled.
+     */
+    private ReadResponse readAny(long timeout) {
+        long start = metrics == null ? 0 : System.nanoTime();
+        QueueShard[] shards = shards();
+        int home = homeShard(shards);
+        ReadResponse readResponse = null;
+        for (int i = 0; i < shards.length && readResponse == null; i++) {
+            QueueShard shard = shards[(home + i) % shards.length];
+            long now;
+            ArrayList<byte[]> taken;
+            shard.acquire();
+            try {
+                if (queueDisabled) {
+                    return null;
+                }
+                now = clock.millis();
+                readResponse = shard.readMature(timeout, now);
+                taken = shard.takeDeadLetters();
+            } finally {
+                shard.lock.unlock();
             }
-            if (qEntityMap.containsKey(timeResponse.queueEntryId)) {
-                readResponse = new ReadResponse(this, timeResponse.queueEntryId,
-                        qEntityMap.get(timeResponse.queueEntryId));
+            moveDeadLetters(taken);
+            if (readResponse != null) {
+                signalRearmed(now + timeout);
             }
         }
-        /*
-        Before we leave here we have to put the entity back on the time queue with the new timeout value.
-        We must have dequeued an entry as we'd have thrown an exception if there was nothing to return.
-         */
-        tq.add(timeResponse.queueEntryId, timeout);
-        qMutex.release();
+        if (metrics != null) {
+            if (readResponse != null) {
+                metrics.read.increment();
+            } else {
+                metrics.emptyReads.increment();
+            }
+            metrics.readLatency.record(System.nanoTime() - start);
+        }
         return readResponse;
     }
+
+    private void checkPriority(int priority) {
+        if (priority < 0 || priority >= config.priorityLevels) {
+            throw new IllegalArgumentException("Priority " + priority + " is not a level of queue " + queueName);
+        }
+    }
+
+    /*
+    Put the objects of entries read too many times on the dead letter queue. This is done holding no lock of this
+    queue's, neither a shard lock nor the waitMutex, as the enqueue takes the dead letter queue's locks and queues
+    that are each other's dead letter queues would otherwise take them in opposite orders and deadlock. The entries
+    have already been counted out of this queue, so they go in whatever the dead letter queue's budget says. Should
+    that queue have been deleted since the entries were taken out they come back to this one, as new entries ready
+    at once, and count as misses rather than dead letters. They are only lost if this queue has gone too.
+     */
+    private void moveDeadLetters(ArrayList<byte[]> deadLetters) {
+        if (deadLetters == null || deadLetters.isEmpty()) {
+            return;
+        }
+        QueueId deadLetterQueue = getQueueIfPresent(config.deadLetterQueue);
+        try {
+            if (deadLetterQueue != null) {
+                deadLetterQueue.enqueueAll(deadLetters, clock.millis(), 0, true);
+                return;
+            }
+        } catch (MissingQueueIdException e) {
+            /*
+            Deleted since it was looked up.
+             */
+        }
+        if (metrics != null) {
+            metrics.deadLettered.add(-deadLetters.size());
+            metrics.deadLetterMisses.add(deadLetters.size());
+        }
+        try {
+            enqueueAll(deadLetters, clock.millis(), 0, true);
+        } catch (MissingQueueIdException e) {
+            /*
+            This queue has been deleted as well.
+             */
+        }
+    }
+
+    /*
+    The earliest maturity over all the shards.
+     */
+    long nextMaturity() {
+        long earliest = Long.MAX_VALUE;
+        for (QueueShard shard : shards()) {
+            shard.lock.lock();
+            try {
+                earliest = Math.min(earliest, shard.tq.getNextMaturity());
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return earliest;
+    }
+
+    /*
+    Make room in the budget by deleting the shard's entries that mature soonest, one at a time, until the room
+    wanted can be taken. Returns null once it has been, or the budget still full should the shard run out of entries
+    first. The caller holds the shard lock.
+     */
+    private MemoryBudget shedFor(QueueShard shard, long bytes, int entries) {
+        MemoryBudget full = budget.tryReserve(bytes, entries);
+        TimeEntry[] soonest = new TimeEntry[1];
+        while (full != null) {
+            soonest[0] = null;
+            shard.tq.visitAscending(entry -> {
+                soonest[0] = entry;
+                return false;
+            });
+            if (soonest[0] == null) {
+                return full;
+            }
+            shard.tq.remove(soonest[0]);
+            shard.releaseEntry(soonest[0]);
+            full = budget.tryReserve(bytes, entries);
+        }
+        return null;
+    }
+
+    /*
+    Wake as many long poll readers as there are entries newly mature, if anyone is waiting at all.
+     */
+    private void signalWaiters(int count) {
+        if (waiting == 0) {
+            return;
+        }
+        waitMutex.lock();
+        wakeups++;
+        for (int i = Math.min(count, waiting); i > 0; i--) {
+            entityAvailable.signal();
+        }
+        waitMutex.unlock();
+    }
+
+    /*
+    Wake long poll readers for n entries just enqueued to mature at the time given. Entries mature already wake a
+    waiter each. Later ones need only the leader's watch brought forward, should they mature before it wakes.
+     */
+    private void signalEnqueued(int n, long maturityTime) {
+        tellListeners(maturityTime);
+        if (maturityTime <= clock.millis()) {
+            signalWaiters(n);
+        } else {
+            signalRearmed(maturityTime);
+        }
+    }
+
+    /*
+    An entry read was put back to mature at the time given. Should that be before the leader means to wake then
+    the leader is stood down and a waiter woken to take up the watch for the new earliest time.
+     */
+    private void signalRearmed(long maturityTime) {
+        tellListeners(maturityTime);
+        if (waiting == 0 || maturityTime >= leaderWakeAt) {
+            return;
+        }
+        waitMutex.lock();
+        if (maturityTime < leaderWakeAt) {
+            leader = null;
+            leaderWakeAt = Long.MAX_VALUE;
+            wakeups++;
+            entityAvailable.signal();
+        }
+        waitMutex.unlock();
+    }
+
+    private void tellListeners(long maturityTime) {
+        LongConsumer[] listeners = maturityListeners;
+        for (LongConsumer listener : listeners) {
+            listener.accept(maturityTime);
+        }
+    }
+
+    synchronized void addMaturityListener(LongConsumer listener) {
+        LongConsumer[] listeners = Arrays.copyOf(maturityListeners, maturityListeners.length + 1);
+        listeners[listeners.length - 1] = listener;
+        maturityListeners = listeners;
+    }
+
+    synchronized void removeMaturityListener(LongConsumer listener) {
+        ArrayList<LongConsumer> listeners = new ArrayList<LongConsumer>(Arrays.asList(maturityListeners));
+        listeners.remove(listener);
+        maturityListeners = listeners.toArray(new LongConsumer[0]);
+    }
+
+    private QueueShard pickShard() {
+        QueueShard[] shards = shards();
+        if (shards.length == 1) {
+            return shards[0];
+        }
+        return shards[ThreadLocalRandom.current().nextInt(shards.length)];
+    }
+
+    private int homeShard(QueueShard[] shards) {
+        return (int) (Thread.currentThread().getId() % shards.length);
+    }
+
+    /**
+     * Write a checkpoint of a durable queue's live entries and trim its log.
+     * Reads, enqueues and deletes carry on while it's written, each shard is only held for a chunk at a time.
+     * @throws IOException if the checkpoint can't be written, in which case the log is left as it was
+     */
+    public void checkpoint() throws IOException {
+        QueueShard[] shards = shards();
+        if (wal == null) {
+            throw new IllegalStateException("Queue " + queueName + " is not durable");
+        }
+        wal.checkpoint(shards);
+    }
+
+    /**
+     * The queue's metrics, or null if it was made without them.
+     * @return the metrics
+     */
+    public QueueMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * How the entries of the queue stand now: how many are ready, in flight and delayed, and how long the oldest
+     * ready one has waited. Each shard is held while it's counted, for a time in proportion to the maturity times
+     * that have passed since it was last looked at.
+     * @return the depth figures
+     */
+    public QueueDepth getDepth() {
+        QueueDepth depth = new QueueDepth();
+        for (QueueShard shard : shards()) {
+            shard.lock.lock();
+            try {
+                shard.addDepth(depth, clock.millis());
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return depth;
+    }
+
+    /**
+     * An estimate of the memory the queue takes beyond the bytes of its objects, summed over the shards. It counts
+     * the entries, the slot tables, the time indexes and, for a queue keeping its objects off the heap, the slab
+     * memory not holding object bytes. Divided by getSize it gives the cost of an entry, for working out the
+     * memory a backlog will need. See Footprint for how the sizes are reckoned.
+     * @return the estimated bytes
+     */
+    public long estimatedOverheadBytes() {
+        long bytes = 0;
+        for (QueueShard shard : shards()) {
+            shard.lock.lock();
+            try {
+                bytes += shard.estimatedOverheadBytes();
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * The queue's budget, with the room it takes up now. Reading the figures is cheap, a producer may check them
+     * before every enqueue.
+     * @return the budget
+     */
+    public MemoryBudget getBudget() {
+        return budget;
+    }
+
+    /**
+     * Figures on the off heap storage, summed over the shards. All zero if the queue keeps its objects on the heap.
+     * @return the slab figures
+     */
+    public SlabStats getSlabStats() {
+        SlabStats stats = new SlabStats();
+        for (QueueShard shard : shards()) {
+            if (shard.payloads == null) {
+                continue;
+            }
+            shard.lock.lock();
+            try {
+                shard.payloads.addTo(stats);
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * How the objects of the queue split between memory and the spill files, summed over the shards.
+     * @return the spill figures
+     */
+    public SpillStats getSpillStats() {
+        SpillStats stats = new SpillStats();
+        for (QueueShard shard : shards()) {
+            shard.lock.lock();
+            try {
+                stats.residentBytes += shard.residentBytes;
+                if (shard.spill != null) {
+                    stats.spilledBytes += shard.spill.getSpilledBytes();
+                    stats.spilledEntries += shard.spill.getSpilledCount();
+                    stats.failedSpills += shard.failedSpills;
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return stats;
+    }
+
+    /*
+    The queue's shards, made on first use along with the lock long poll readers wait on. A durable queue opens its
+    log here and puts back whatever entries the log holds.
+     */
+    private QueueShard[] shards() {
+        QueueShard[] made = shards;
+        if (made != null) {
+            return made;
+        }
+        synchronized (this) {
+            if (shards == null) {
+                if (config.walDirectory != null) {
+                    try {
+                        wal = new WriteAheadLog(new File(config.walDirectory), config.shards, config);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Can't open the log of queue " + queueName, e);
+                    }
+                }
+                made = new QueueShard[config.shards];
+                for (int i = 0; i < made.length; i++) {
+                    made[i] = new QueueShard(this, i, made.length, config, wal);
+                }
+                if (wal != null) {
+                    try {
+                        wal.recover(made);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Can't recover queue " + queueName + " from its log", e);
+                    }
+                }
+                waitMutex = new ReentrantLock();
+                entityAvailable = waitMutex.newCondition();
+                shards = made;
+                if (metrics != null) {
+                    metrics.register();
+                }
+            }
+            return shards;
+        }
+    }
+
+    /*
+    The number of entries on the queue, read from each shard without its lock so a little out of date while the
+    queue is busy.
+     */
+    public int getSize() {
+        QueueShard[] shards = this.shards;
+        if (shards == null) {
+            return 0;
+        }
+        int size = 0;
+        for (QueueShard shard : shards) {
+            size += shard.entryCount;
+        }
+        return size;
+    }
+
     /*
     Instrumentation...
+    With more than one shard this is the sum of each shard's most entries, which is never less than the true
+    most the queue held at once.
      */
     public int getMaxEntries() {
+        int maxEntries = 0;
+        QueueShard[] shards = this.shards;
+        if (shards == null) {
+            return 0;
+        }
+        for (QueueShard shard : shards) {
+            maxEntries += shard.maxEntries;
+        }
         return maxEntries;
     }
 }
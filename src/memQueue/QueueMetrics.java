@@ -0,0 +1,134 @@
+package memQueue;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts and timings of the work done on a queue, see QueueConfig.metrics.
+ * <p>
+ * The counters are LongAdders and the timings LatencyHistograms, both striped so threads recording at once rarely
+ * touch the same memory. Enqueue, read and dequeue are timed from call to return, an enqueue on a durable queue
+ * including the wait for its record to reach disk. Reads are timed per look through the shards, so a long poll
+ * adds one timing for each time it looks rather than for the whole of its wait, and every look that finds nothing
+ * counts as an empty read. Lock wait times every take of a shard lock by these calls, 0 when the lock was free.
+ * A redelivery is a read of an entry read before. A dead letter is an entry taken out for having been read too
+ * many times, see QueueConfig.maxReceives, and a dead letter miss one handed out or put back instead for want of
+ * its dead letter queue.
+ * <p>
+ * The depth is counted as entries are enqueued, handed out and deleted, with each shard keeping its delayed and in
+ * flight entries counted by the time they mature. So getDepth takes each shard lock only long enough to read a few
+ * counts, drop the maturity times passed since it last looked and read the head of its time queue, however many
+ * entries are delayed or in flight.
+ * <p>
+ * A queue made without metrics has none of this, the calls that would record check for a null and go on, so leaving
+ * metrics off costs nothing but that check.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class QueueMetrics implements QueueMetricsMXBean {
+    private final QueueId queue;
+    private ObjectName objectName = null;
+    final LongAdder enqueued = new LongAdder();
+    final LongAdder read = new LongAdder();
+    final LongAdder dequeued = new LongAdder();
+    final LongAdder redelivered = new LongAdder();
+    final LongAdder emptyReads = new LongAdder();
+    final LongAdder deadLettered = new LongAdder();
+    final LongAdder deadLetterMisses = new LongAdder();
+    final LatencyHistogram enqueueLatency = new LatencyHistogram();
+    final LatencyHistogram readLatency = new LatencyHistogram();
+    final LatencyHistogram dequeueLatency = new LatencyHistogram();
+    final LatencyHistogram lockWait = new LatencyHistogram();
+
+    QueueMetrics(QueueId queue) {
+        this.queue = queue;
+    }
+
+    public long getEnqueueCount() {
+        return enqueued.sum();
+    }
+
+    public long getReadCount() {
+        return read.sum();
+    }
+
+    public long getDequeueCount() {
+        return dequeued.sum();
+    }
+
+    public long getRedeliveryCount() {
+        return redelivered.sum();
+    }
+
+    public long getEmptyReadCount() {
+        return emptyReads.sum();
+    }
+
+    public long getDeadLetterCount() {
+        return deadLettered.sum();
+    }
+
+    public long getDeadLetterMissCount() {
+        return deadLetterMisses.sum();
+    }
+
+    public LatencySnapshot getEnqueueLatency() {
+        return enqueueLatency.snapshot();
+    }
+
+    public LatencySnapshot getReadLatency() {
+        return readLatency.snapshot();
+    }
+
+    public LatencySnapshot getDequeueLatency() {
+        return dequeueLatency.snapshot();
+    }
+
+    public LatencySnapshot getLockWait() {
+        return lockWait.snapshot();
+    }
+
+    public QueueDepth getDepth() {
+        return queue.getDepth();
+    }
+
+    /*
+    Make the metrics visible through JMX. Should an MBean of the same name be left from an earlier queue of the name
+    it is replaced. Failing to register doesn't stop the queue working.
+     */
+    void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName name = new ObjectName("memQueue:type=Queue,name=" + ObjectName.quote(queue.getQueueName()));
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        objectName = null;
+    }
+
+    public String toString() {
+        return String.format("%d enqueued, %d read, %d redelivered, %d dequeued, %d empty reads, %d dead letters, "
+                + "%d dead letter misses, %s", getEnqueueCount(), getReadCount(), getRedeliveryCount(),
+                getDequeueCount(), getEmptyReadCount(), getDeadLetterCount(), getDeadLetterMissCount(), getDepth());
+    }
+}
@@ -0,0 +1,34 @@
+package memQueue;
+
+/**
+ * The view of a queue's metrics given through JMX. Each queue made with metrics on is registered with the platform
+ * MBean server as memQueue:type=Queue,name=the queue's name until it's deleted. See QueueMetrics.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public interface QueueMetricsMXBean {
+    long getEnqueueCount();
+
+    long getReadCount();
+
+    long getDequeueCount();
+
+    long getRedeliveryCount();
+
+    long getEmptyReadCount();
+
+    long getDeadLetterCount();
+
+    long getDeadLetterMissCount();
+
+    LatencySnapshot getEnqueueLatency();
+
+    LatencySnapshot getReadLatency();
+
+    LatencySnapshot getDequeueLatency();
+
+    LatencySnapshot getLockWait();
+
+    QueueDepth getDepth();
+}
@@ -0,0 +1,317 @@
+package memQueue;
+
+import readResponse.ReadBatchResponse;
+import readResponse.ReadResponse;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+
+/**
+ * A queue as a Flow.Publisher, for reactive pipelines to consume with backpressure.
+ * <p>
+ * Each subscriber is a consumer of its own, as a reader is, so two subscribers to the same queue share its entries
+ * rather than each getting them all. A subscriber is handed a QueueSubscription and is never given more entries
+ * than it has asked for through request. Entries are read, with the publisher's timeout, only as there's demand
+ * for them, so an entry isn't hidden and counting down its timeout while it waits for a slow subscriber.
+ * <p>
+ * Nothing polls. While a subscription has demand and nothing is mature, it listens to the queue for entries
+ * enqueued or put back and sets a timer for the earliest maturity on the queue. One timer thread is shared by every
+ * subscription. Entries are handed to onNext on the publisher's executor, the common ForkJoinPool by default, and
+ * never on an enqueuing thread.
+ * <p>
+ * A subscriber acks an entry done with through its QueueSubscription, which deletes it, or releases it to have it
+ * handed out again straight away. Cancelling the subscription releases every entry handed out and not yet acked or
+ * released. An entry left alone past the timeout is handed out again as any read entry is.
+ * <p>
+ * Deleting the queue completes its subscriptions.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class QueuePublisher implements Flow.Publisher<ReadResponse> {
+    /*
+    Made the first time a timer is needed, as with the shared CoarseClock.
+     */
+    private static class Timer {
+        static final ScheduledThreadPoolExecutor TIMER = timer();
+
+        private static ScheduledThreadPoolExecutor timer() {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, task -> {
+                Thread thread = new Thread(task, "memQueue-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.setRemoveOnCancelPolicy(true);
+            return timer;
+        }
+    }
+
+    private final QueueId queue;
+    private final long timeout;
+    private final int batchSize;
+    private final Executor executor;
+
+    /**
+     * A publisher of the queue's entries, read with the timeout given, handing them to subscribers on the common
+     * ForkJoinPool.
+     * @param queue the queue to read
+     * @param timeout milliseconds an entry stays hidden once handed out
+     */
+    public QueuePublisher(QueueId queue, long timeout) {
+        this(queue, timeout, 64, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param queue the queue to read
+     * @param timeout milliseconds an entry stays hidden once handed out
+     * @param batchSize the most entries read at a time
+     * @param executor what subscribers are handed their entries on
+     */
+    public QueuePublisher(QueueId queue, long timeout, int batchSize, Executor executor) {
+        if (timeout < 0 || batchSize < 1) {
+            throw new IllegalArgumentException("A publisher's timeout may not be negative nor its batch size below 1");
+        }
+        this.queue = queue;
+        this.timeout = timeout;
+        this.batchSize = batchSize;
+        this.executor = executor;
+    }
+
+    public void subscribe(Flow.Subscriber<? super ReadResponse> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("A subscriber may not be null");
+        }
+        QueueSubscription subscription = new QueueSubscription(subscriber);
+        subscriber.onSubscribe(subscription);
+        queue.addMaturityListener(subscription.listener);
+        subscription.schedule();
+    }
+
+    /**
+     * A subscription to the queue, through which the subscriber acks or releases the entries it has been given.
+     * <p>
+     * Every call to the subscriber is made from a drain run on the executor. A counter of runs asked for lets only
+     * one drain run at a time, and has the one running go round again for any asked for while it ran, so none are
+     * missed and the calls never overlap.
+     */
+    public class QueueSubscription implements Flow.Subscription {
+        private final Flow.Subscriber<? super ReadResponse> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger drains = new AtomicInteger();
+        /*
+        The entries handed out and neither acked nor released, by when they were read, and the same in the order read
+        for the drain to drop them as their timeout runs out. Past it they're the queue's to hand out again and
+        no longer this subscription's to give back.
+         */
+        private final ConcurrentHashMap<Long, Long> handedOut = new ConcurrentHashMap<Long, Long>();
+        private final ArrayDeque<long[]> readOrder = new ArrayDeque<long[]>();
+        private volatile boolean cancelled = false;
+        private volatile Throwable badRequest = null;
+        private boolean done = false;
+        /*
+        The maturity the timer is set for and the timer itself, only touched by the drain. Long.MAX_VALUE with no
+        timer set.
+         */
+        private volatile long armedAt = Long.MAX_VALUE;
+        private ScheduledFuture<?> armed = null;
+        /*
+        Set while the drain reads and looks for the earliest maturity, so an entry landing after the read and maybe
+        after the look isn't missed.
+         */
+        private volatile boolean looking = false;
+        /*
+        An entry enqueued or put back to mature before the timer is set to go off wakes the drain, should there be
+        demand for it. The queue being deleted always does.
+         */
+        final LongConsumer listener = maturityTime -> {
+            if (maturityTime == Long.MIN_VALUE || demand.get() > 0 && (looking || maturityTime < armedAt)) {
+                schedule();
+            }
+        };
+
+        QueueSubscription(Flow.Subscriber<? super ReadResponse> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException("A subscriber must request at least one entry");
+            } else {
+                demand.accumulateAndGet(n, (current, more) -> current + more < 0 ? Long.MAX_VALUE : current + more);
+            }
+            schedule();
+        }
+
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        /**
+         * Delete an entry handed to the subscriber.
+         * @param readResponse the entry as handed to onNext
+         * @throws NoEntityException if the entry is no longer on the queue, most often as it was handed out again
+         * having timed out and someone else deleted it
+         */
+        public void ack(ReadResponse readResponse) throws NoEntityException {
+            handedOut.remove(readResponse.receipt);
+            queue.dequeue(readResponse.receipt);
+        }
+
+        /**
+         * Have an entry handed to the subscriber handed out again straight away.
+         * @param readResponse the entry as handed to onNext
+         * @throws NoEntityException if the entry is no longer on the queue
+         */
+        public void release(ReadResponse readResponse) throws NoEntityException {
+            handedOut.remove(readResponse.receipt);
+            queue.changeVisibility(readResponse.receipt, 0);
+        }
+
+        /*
+        The entries handed out and neither acked nor released, counting any whose timeout has run out since the drain
+        last ran.
+         */
+        public int getHandedOut() {
+            return handedOut.size();
+        }
+
+        void schedule() {
+            if (drains.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            do {
+                if (!done) {
+                    deliver();
+                }
+                missed = drains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        /*
+        Hand out entries while there's demand, and when there's demand and nothing mature set the timer.
+         */
+        private void deliver() {
+            while (!cancelled && badRequest == null && demand.get() > 0) {
+                ReadBatchResponse batch;
+                /*
+                Taken before the read, so an entry is never thought held longer than the queue holds it for.
+                 */
+                long readAt = queue.clock.millis();
+                dropTimedOut(readAt);
+                looking = true;
+                try {
+                    batch = queue.readBatch((int) Math.min(demand.get(), batchSize), timeout);
+                } catch (NoEntityException e) {
+                    break;
+                }
+                if (batch.count == 0) {
+                    arm(queue.nextMaturity());
+                    looking = false;
+                    return;
+                }
+                looking = false;
+                for (int i = 0; i < batch.count; i++) {
+                    ReadResponse readResponse = batch.get(i);
+                    handedOut.put(readResponse.receipt, readAt);
+                    readOrder.add(new long[] {readResponse.receipt, readAt});
+                    if (cancelled) {
+                        continue;
+                    }
+                    if (demand.get() != Long.MAX_VALUE) {
+                        demand.decrementAndGet();
+                    }
+                    try {
+                        subscriber.onNext(readResponse);
+                    } catch (RuntimeException e) {
+                        /*
+                        A subscriber mustn't throw. One that does is taken as having cancelled.
+                         */
+                        cancelled = true;
+                    }
+                }
+            }
+            if (cancelled) {
+                finish();
+            } else if (badRequest != null) {
+                finish();
+                subscriber.onError(badRequest);
+            } else if (queue.isDeleted()) {
+                finish();
+                subscriber.onComplete();
+            }
+        }
+
+        /*
+        Set the timer to go off at the maturity given, unless already set for it and yet to go off. At or before
+        now it goes off in a millisecond, as a timing wheel may report a maturity a little before it can be read.
+         */
+        private void arm(long maturityTime) {
+            if (maturityTime == armedAt && armed != null && !armed.isDone()) {
+                return;
+            }
+            disarm();
+            if (maturityTime != Long.MAX_VALUE) {
+                long delay = Math.max(1, maturityTime - queue.clock.millis());
+                armed = Timer.TIMER.schedule(this::schedule, delay, TimeUnit.MILLISECONDS);
+                armedAt = maturityTime;
+            }
+        }
+
+        private void disarm() {
+            if (armed != null) {
+                armed.cancel(false);
+                armed = null;
+            }
+            armedAt = Long.MAX_VALUE;
+        }
+
+        /*
+        Forget the entries read at least a timeout ago, unless read again since.
+         */
+        private void dropTimedOut(long now) {
+            while (!readOrder.isEmpty() && now - readOrder.peek()[1] >= timeout) {
+                long[] read = readOrder.poll();
+                handedOut.remove(read[0], read[1]);
+            }
+        }
+
+        /*
+        Stop listening and give back every entry still handed out and inside its timeout. One past it may well have
+        been read by someone else by now, and is left alone.
+         */
+        private void finish() {
+            done = true;
+            queue.removeMaturityListener(listener);
+            disarm();
+            for (Map.Entry<Long, Long> held : handedOut.entrySet()) {
+                if (queue.clock.millis() - held.getValue() >= timeout) {
+                    continue;
+                }
+                try {
+                    queue.changeVisibility(held.getKey(), 0);
+                } catch (NoEntityException e) {
+                    /*
+                    Deleted already, or the queue has gone.
+                     */
+                }
+            }
+            handedOut.clear();
+            readOrder.clear();
+        }
+    }
+}
@@ -0,0 +1,912 @@
+package memQueue;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import readResponse.ReadBatchResponse;
+import readResponse.ReadResponse;
+
+/**
+ * One independent part of a QueueId.
+ * <p>
+ * A shard holds its own table of entries, its own time index and its own lock. A queue made of several shards
+ * spreads its entries over them so threads working on different shards never contend. A queue of one shard is the
+ * plain queue.
+ * <p>
+ * Shard i of n gives out the sequence numbers i + 1, i + 1 + n, i + 1 + 2n and so on, so every receipt is unique
+ * across the queue and the shard owning an entry can be worked out from its receipt alone.
+ * <p>
+ * Every method here other than the constructor expects the caller to hold the shard's lock.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+class QueueShard {
+    /*
+    Objects gathered into one write to the spill files.
+     */
+    static final int SPILL_GROUP_BYTES = 1 << 20;
+
+    final QueueId queue;
+    final ReentrantLock lock;
+    TimeIndex tq;
+    /*
+    Null unless the queue keeps its objects off the heap.
+     */
+    final SlabPayloadStore payloads;
+    /*
+    Null unless the queue is durable. walPosition is where this shard's last record went in the log.
+     */
+    final WriteAheadLog wal;
+    long walPosition = 0;
+    /*
+    Null unless the queue keeps metrics.
+     */
+    private final QueueMetrics metrics;
+    private final int index;
+    /*
+    Null unless the queue may spill objects to disk. residentBytes counts the object bytes held in memory, whether on
+    the heap or off it. earliestSpilled is no later than the maturity of the soonest entry whose object is on disk.
+    failedSpills counts the groups that couldn't be written out.
+     */
+    final SpillStore spill;
+    private final long spillThreshold;
+    private final long readAheadMillis;
+    private final int readAheadEntries;
+    long residentBytes = 0;
+    private long earliestSpilled = Long.MAX_VALUE;
+    int failedSpills = 0;
+    private TimeEntry[] entitySlots;
+    private int slotsUsed = 0;
+    private int[] freeSlots;
+    private int freeCount = 0;
+    private final int sequenceStride;
+    private long nextSequence;
+    /*
+    The entries put back from the log, gathered until they can go on the time queue in one go.
+     */
+    private ArrayList<TimeEntry> restoring = null;
+    /*
+    The redelivery backoff and the limit on receives, see QueueConfig. deadLetters gathers the objects of the
+    entries taken out for the dead letter queue while the lock is held, for the queue to hand on once it's let go.
+     */
+    private final long backoffMillis;
+    private final double backoffMultiplier;
+    private final long backoffMaxMillis;
+    private final int maxReceives;
+    private final String deadLetterQueue;
+    private ArrayList<byte[]> deadLetters = null;
+    int entryCount = 0;
+    int maxEntries = 0;
+    /*
+    The entries yet to mature, delayed ones that have never been handed out and in flight ones that have, counted by
+    the time they mature as {delayed, in flight}. Every entry maturing after countedTo is in here and in one of the
+    two counts, the rest are ready. See catchUp and addDepth.
+     */
+    private final TreeMap<Long, int[]> pending = new TreeMap<Long, int[]>();
+    private long countedTo = Long.MIN_VALUE;
+    int delayedCount = 0;
+    int inFlightCount = 0;
+
+    QueueShard(QueueId queue, int index, int shardCount, QueueConfig config, WriteAheadLog wal) {
+        this.wal = wal;
+        this.queue = queue;
+        metrics = queue.metrics;
+        this.index = index;
+        lock = new ReentrantLock();
+        TimeIndex[] levels = new TimeIndex[config.priorityLevels];
+        for (int level = 0; level < levels.length; level++) {
+            if (config.timeIndex == TimeIndexKind.TIMING_WHEEL) {
+                levels[level] = new TimingWheel(UUID.randomUUID().toString(), config.clock);
+            } else {
+                levels[level] = new TimeDistQueue(UUID.randomUUID().toString(), config.clock);
+            }
+        }
+        tq = levels.length == 1 ? levels[0]
+                : new PriorityTimeIndex(levels, config.priorityAgingMillis, config.clock);
+        payloads = config.offHeapPayloads ? new SlabPayloadStore(config.slabBytes) : null;
+        if (config.spillDirectory != null) {
+            spill = new SpillStore(new File(config.spillDirectory), config.spillFileBytes);
+        } else {
+            spill = null;
+        }
+        spillThreshold = Math.max(1, config.spillThresholdBytes / shardCount);
+        readAheadMillis = config.spillReadAheadMillis;
+        readAheadEntries = Math.max(1, config.spillReadAheadEntries);
+        backoffMillis = config.redeliveryBackoffMillis;
+        backoffMultiplier = config.redeliveryBackoffMultiplier;
+        backoffMaxMillis = config.redeliveryBackoffMaxMillis;
+        maxReceives = config.maxReceives;
+        deadLetterQueue = config.deadLetterQueue;
+        entitySlots = new TimeEntry[16];
+        freeSlots = new int[16];
+        sequenceStride = shardCount;
+        nextSequence = index + 1;
+    }
+
+    /*
+    Take the shard lock, timing the wait should the queue keep metrics. A wait for a lock that was held is also a
+    LockWait flight recorder event.
+     */
+    void acquire() {
+        if (lock.tryLock()) {
+            if (metrics != null) {
+                metrics.lockWait.record(0);
+            }
+            return;
+        }
+        QueueEvents.LockWait event = null;
+        if (QueueEvents.on()) {
+            event = new QueueEvents.LockWait();
+            event.begin();
+        }
+        long start = metrics == null ? 0 : System.nanoTime();
+        lock.lock();
+        if (metrics != null) {
+            metrics.lockWait.record(System.nanoTime() - start);
+        }
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.queue = queue.getQueueName();
+            event.shard = index;
+            event.commit();
+        }
+    }
+
+    /*
+    The shard of n that gave out the receipt.
+     */
+    static int shardOf(long receipt, int shardCount) {
+        return (int) ((Receipt.sequence(receipt) - 1) % shardCount);
+    }
+
+    /*
+    Take a slot for a new entry, make its receipt and put the entry in the slot. Freed slots are used before the
+    table grows. Should the queue keep its objects off the heap the object is copied into the store. On a durable
+    queue the entry is logged. The caller has taken room for the entry in the queue's budget beforehand and puts
+    the entry on the time queue after. An entry that matures later than now is counted as delayed.
+
+    The slot is only taken once the entry has been logged, so should the log fail the shard is left as it was.
+     */
+    TimeEntry allocateEntry(byte[] object, long maturityTime, int priority, long now) {
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[freeCount - 1];
+        } else {
+            if (slotsUsed == entitySlots.length) {
+                ensureSlotCapacity(slotsUsed + 1);
+            }
+            slot = slotsUsed;
+        }
+        TimeEntry entry;
+        if (payloads != null && object != null) {
+            entry = new TimeEntry(Receipt.make(nextSequence, slot), null, maturityTime);
+            entry.payload = payloads.store(object);
+            entry.payloadLength = object.length;
+        } else {
+            entry = new TimeEntry(Receipt.make(nextSequence, slot), object, maturityTime);
+        }
+        if (wal != null) {
+            try {
+                walPosition = wal.logEnqueue(entry.receipt, maturityTime, priority, object);
+            } catch (RuntimeException e) {
+                if (entry.payload != TimeEntry.NO_PAYLOAD) {
+                    payloads.free(entry.payload, entry.payloadLength);
+                }
+                throw e;
+            }
+            entry.walSegment = WriteAheadLog.segmentOf(walPosition);
+        }
+        if (freeCount > 0) {
+            freeCount--;
+        } else {
+            slotsUsed++;
+        }
+        entry.priority = (byte) priority;
+        catchUp(now);
+        pending(entry, 1);
+        if (object != null) {
+            residentBytes += object.length;
+        }
+        nextSequence += sequenceStride;
+        entitySlots[slot] = entry;
+        entryCount++;
+        if (entryCount > maxEntries) {
+            maxEntries = entryCount;
+        }
+        return entry;
+    }
+
+    /*
+    Put an entry recovered from the log back in the slot its receipt names. The sequence numbers this shard gives
+    out from here on start beyond the entry's. The entry goes on the time queue once finishRestore is called.
+    Should a checkpoint have caught a later entry in the slot, one enqueued after this entry was deleted, the
+    later one stays and this one is dropped. The log will go on to delete this one anyway.
+     */
+    void restoreEntry(TimeEntry entry) {
+        int slot = Receipt.slot(entry.receipt);
+        ensureSlotCapacity(slot + 1);
+        slotsUsed = Math.max(slotsUsed, slot + 1);
+        TimeEntry occupant = entitySlots[slot];
+        if (occupant != null) {
+            if (Receipt.sequence(occupant.receipt) > Receipt.sequence(entry.receipt)) {
+                return;
+            }
+            discardRestored(occupant);
+        }
+        if (payloads != null && entry.object != null) {
+            entry.payload = payloads.store(entry.object);
+            entry.payloadLength = entry.object.length;
+            entry.object = null;
+        }
+        residentBytes += residentLength(entry);
+        queue.budget.add(MemoryBudget.ENTRY_OVERHEAD_BYTES + objectLength(entry), 1);
+        entitySlots[slot] = entry;
+        entryCount++;
+        maxEntries = Math.max(maxEntries, entryCount);
+        nextSequence = Math.max(nextSequence, Receipt.sequence(entry.receipt) + sequenceStride);
+        if (restoring == null) {
+            restoring = new ArrayList<TimeEntry>();
+        }
+        restoring.add(entry);
+    }
+
+    /*
+    Take out an entry put back while recovering, the log having gone on to delete it.
+     */
+    void discardRestored(TimeEntry entry) {
+        dropObject(entry);
+        entitySlots[Receipt.slot(entry.receipt)] = null;
+        entryCount--;
+    }
+
+    /*
+    Once every recovered entry is back, put them all on the time queue together, ordered by maturity and then by
+    the order they were first enqueued in, and put the slots left empty below the highest one used on the free list.
+    Entries dropped along the way are left out. Each entry is counted as delayed or in flight as it stands now the
+    log has had its say.
+     */
+    void finishRestore() {
+        if (restoring != null) {
+            ArrayList<TimeEntry> restored = new ArrayList<TimeEntry>(entryCount);
+            catchUp(queue.clock.millis());
+            for (TimeEntry entry : restoring) {
+                if (entitySlots[Receipt.slot(entry.receipt)] == entry) {
+                    restored.add(entry);
+                    pending(entry, 1);
+                }
+            }
+            restoring = null;
+            restored.sort(Comparator.comparingLong((TimeEntry entry) -> entry.timeWhenAvailable)
+                    .thenComparingLong(entry -> Receipt.sequence(entry.receipt)));
+            tq.addAllSorted(restored);
+            spillIfOver();
+        }
+        freeCount = 0;
+        for (int slot = slotsUsed - 1; slot >= 0; slot--) {
+            if (entitySlots[slot] == null) {
+                freeSlots[freeCount++] = slot;
+            }
+        }
+    }
+
+    /*
+    Write out the entries in up to maxSlots slots from cursor[0] on for a checkpoint, moving the cursor past them.
+    Returns the number of entries written.
+     */
+    int snapshot(int[] cursor, int maxSlots, DataOutputStream out) throws IOException {
+        int end = Math.min(slotsUsed, cursor[0] + maxSlots);
+        int count = 0;
+        byte[] copy = null;
+        for (int slot = cursor[0]; slot < end; slot++) {
+            TimeEntry entry = entitySlots[slot];
+            if (entry == null) {
+                continue;
+            }
+            out.writeLong(entry.receipt);
+            out.writeLong(entry.timeWhenAvailable);
+            out.writeInt(entry.receiveCount);
+            out.writeByte(entry.priority);
+            if (entry.spilledAt != SpillStore.NOT_SPILLED) {
+                out.writeInt(entry.payloadLength);
+                out.write(spill.read(entry.spilledAt, entry.payloadLength));
+            } else if (entry.payload != TimeEntry.NO_PAYLOAD) {
+                if (copy == null || copy.length < entry.payloadLength) {
+                    copy = new byte[Math.max(entry.payloadLength, 256)];
+                }
+                payloadView(entry).get(copy, 0, entry.payloadLength);
+                out.writeInt(entry.payloadLength);
+                out.write(copy, 0, entry.payloadLength);
+            } else if (entry.object != null) {
+                out.writeInt(entry.object.length);
+                out.write(entry.object);
+            } else {
+                out.writeInt(-1);
+            }
+            count++;
+        }
+        cursor[0] = end;
+        return count;
+    }
+
+    /*
+    Add this shard's figures to the depth. The delayed and in flight entries are counted as they change, and those
+    that have matured since the shard was last looked at are first taken off the counts by catchUp, so nothing is
+    walked but the few maturity times passed. The earliest maturity on the time queue, if past, gives the oldest
+    ready age.
+     */
+    void addDepth(QueueDepth depth, long now) {
+        catchUp(now);
+        long earliest = tq.getNextMaturity();
+        long oldest = earliest == Long.MAX_VALUE ? 0 : Math.max(0, now - earliest);
+        depth.add(entryCount - delayedCount - inFlightCount, inFlightCount, delayedCount, oldest);
+    }
+
+    /*
+    An estimate of what the shard takes beyond the bytes of its objects: the slot table and free list at their
+    present size, an entry for each live entry, the header of each object's byte array held on the heap, the time
+    index's own structures, the counts of pending entries by maturity and, should the objects be off the heap, the
+    slab memory not holding object bytes.
+     */
+    long estimatedOverheadBytes() {
+        long bytes = Footprint.refArray(entitySlots.length) + Footprint.intArray(freeSlots.length)
+                + (long) entryCount * Footprint.TIME_ENTRY + tq.estimatedOverheadBytes()
+                + (long) pending.size() * (Footprint.TREE_NODE + Footprint.BOXED_LONG + Footprint.intArray(2));
+        if (payloads != null) {
+            SlabStats stats = new SlabStats();
+            payloads.addTo(stats);
+            bytes += stats.reservedBytes - stats.payloadBytes;
+        } else {
+            int onHeap = entryCount - (spill == null ? 0 : spill.getSpilledCount());
+            bytes += (long) onHeap * Footprint.ARRAY_HEADER;
+        }
+        return bytes;
+    }
+
+    int slotsInUse() {
+        return slotsUsed;
+    }
+
+    TimeEntry slotEntry(int slot) {
+        return entitySlots[slot];
+    }
+
+    /*
+    The entry the receipt names, or null if the slot is out of range, empty or now holds some other entry.
+     */
+    TimeEntry lookupEntry(long receipt) {
+        int slot = Receipt.slot(receipt);
+        if (slot >= slotsUsed) {
+            return null;
+        }
+        TimeEntry entry = entitySlots[slot];
+        if (entry == null || entry.receipt != receipt) {
+            return null;
+        }
+        return entry;
+    }
+
+    /*
+    Empty the entry's slot and put it on the free list, freeing its chunk should the object be off the heap or its
+    place in the spill files should it be on disk. On a durable queue the delete is logged. The caller must have
+    taken the entry off the time queue. Should the log fail the entry is put back on it, as it was.
+     */
+    void releaseEntry(TimeEntry entry) {
+        if (wal != null) {
+            try {
+                walPosition = wal.logDequeue(entry.receipt, entry.walSegment);
+            } catch (RuntimeException e) {
+                tq.add(entry);
+                throw e;
+            }
+        }
+        dropObject(entry);
+        int slot = Receipt.slot(entry.receipt);
+        entitySlots[slot] = null;
+        freeSlots[freeCount++] = slot;
+        entryCount--;
+        pending(entry, -1);
+    }
+
+    /*
+    Count every entry that has matured by now as ready, taking the maturity times passed since last time off the
+    pending counts.
+     */
+    private void catchUp(long now) {
+        if (now <= countedTo) {
+            return;
+        }
+        countedTo = now;
+        Map.Entry<Long, int[]> first;
+        while ((first = pending.firstEntry()) != null && first.getKey() <= now) {
+            pending.pollFirstEntry();
+            delayedCount -= first.getValue()[0];
+            inFlightCount -= first.getValue()[1];
+        }
+    }
+
+    /*
+    Add the entry to, or with -1 take it from, the pending counts, as delayed if it has never been handed out and
+    in flight if it has. An entry maturing by countedTo is ready and not counted. Called either side of any change
+    to the entry's maturity or receive count.
+     */
+    private void pending(TimeEntry entry, int n) {
+        pending(entry.timeWhenAvailable, entry.receiveCount > 0, n);
+    }
+
+    private void pending(long maturityTime, boolean inFlight, int n) {
+        if (maturityTime <= countedTo || n == 0) {
+            return;
+        }
+        int[] counts = pending.get(maturityTime);
+        if (counts == null) {
+            counts = new int[2];
+            pending.put(maturityTime, counts);
+        }
+        if (inFlight) {
+            counts[1] += n;
+            inFlightCount += n;
+        } else {
+            counts[0] += n;
+            delayedCount += n;
+        }
+        if (counts[0] == 0 && counts[1] == 0) {
+            pending.remove(maturityTime);
+        }
+    }
+
+    /*
+    Let go of the entry's object wherever it is kept and give back the entry's room in the queue's budget.
+     */
+    private void dropObject(TimeEntry entry) {
+        queue.budget.release(MemoryBudget.ENTRY_OVERHEAD_BYTES + objectLength(entry), 1);
+        if (entry.spilledAt != SpillStore.NOT_SPILLED) {
+            spill.release(entry.spilledAt, entry.payloadLength);
+            entry.spilledAt = SpillStore.NOT_SPILLED;
+            return;
+        }
+        residentBytes -= residentLength(entry);
+        if (entry.payload != TimeEntry.NO_PAYLOAD) {
+            payloads.free(entry.payload, entry.payloadLength);
+            entry.payload = TimeEntry.NO_PAYLOAD;
+        }
+    }
+
+    /*
+    The length of the entry's object wherever it's kept.
+     */
+    private static int objectLength(TimeEntry entry) {
+        if (entry.spilledAt != SpillStore.NOT_SPILLED || entry.payload != TimeEntry.NO_PAYLOAD) {
+            return entry.payloadLength;
+        }
+        return entry.object == null ? 0 : entry.object.length;
+    }
+
+    private static int residentLength(TimeEntry entry) {
+        if (entry.payload != TimeEntry.NO_PAYLOAD) {
+            return entry.payloadLength;
+        }
+        return entry.object == null ? 0 : entry.object.length;
+    }
+
+    /*
+    Should the shard hold more object bytes than its share of the spill threshold, write out the objects of the
+    entries maturing furthest off until it's back under three quarters of it. The gap means a shard sitting at the
+    threshold spills in groups now and then rather than an object on every enqueue. Each group is written with one
+    write. The entries stay where they are on the time queue.
+
+    An off heap object that has been handed out is left where it is. Its reader may still hold a view of the chunk,
+    good until the entry is deleted, and a freed chunk is the first one reused. Entries read with a long timeout
+    mature furthest off, so without this they'd be the first spilled.
+
+    Should a group fail to be written its objects are put back and the spilling stops there, to be tried again on a
+    later enqueue. The enqueue that got here has already gone in and isn't failed for it. The failure is counted in
+    the queue's SpillStats.
+     */
+    void spillIfOver() {
+        if (spill == null || residentBytes <= spillThreshold) {
+            return;
+        }
+        long target = spillThreshold - (spillThreshold >> 2);
+        ArrayList<TimeEntry> group = new ArrayList<TimeEntry>();
+        ArrayList<byte[]> objects = new ArrayList<byte[]>();
+        long[] groupBytes = new long[1];
+        try {
+            tq.visitDescending(entry -> {
+                if (residentBytes - groupBytes[0] <= target) {
+                    return false;
+                }
+                int length = residentLength(entry);
+                boolean viewed = entry.payload != TimeEntry.NO_PAYLOAD && entry.receiveCount > 0;
+                if (entry.spilledAt == SpillStore.NOT_SPILLED && length > 0 && !viewed) {
+                    group.add(entry);
+                    objects.add(takeObject(entry));
+                    groupBytes[0] += length;
+                    if (groupBytes[0] >= SPILL_GROUP_BYTES) {
+                        spillGroup(group, objects);
+                        groupBytes[0] = 0;
+                    }
+                }
+                return true;
+            });
+            spillGroup(group, objects);
+        } catch (IllegalStateException e) {
+            failedSpills++;
+        }
+    }
+
+    private void spillGroup(ArrayList<TimeEntry> group, ArrayList<byte[]> objects) {
+        if (group.isEmpty()) {
+            return;
+        }
+        long[] positions;
+        try {
+            positions = spill.spill(objects);
+        } catch (IllegalStateException e) {
+            for (int i = 0; i < group.size(); i++) {
+                putBack(group.get(i), objects.get(i));
+            }
+            group.clear();
+            objects.clear();
+            throw e;
+        }
+        for (int i = 0; i < positions.length; i++) {
+            TimeEntry entry = group.get(i);
+            int length = objects.get(i).length;
+            entry.spilledAt = positions[i];
+            entry.payloadLength = length;
+            residentBytes -= length;
+            earliestSpilled = Math.min(earliestSpilled, entry.timeWhenAvailable);
+        }
+        group.clear();
+        objects.clear();
+    }
+
+    /*
+    The entry's object as bytes, let go of in memory.
+     */
+    private byte[] takeObject(TimeEntry entry) {
+        byte[] object;
+        if (entry.payload != TimeEntry.NO_PAYLOAD) {
+            object = new byte[entry.payloadLength];
+            payloadView(entry).get(object);
+            payloads.free(entry.payload, entry.payloadLength);
+            entry.payload = TimeEntry.NO_PAYLOAD;
+        } else {
+            object = entry.object;
+            entry.object = null;
+        }
+        return object;
+    }
+
+    /*
+    Give an entry back the object takeObject took, where it was kept before.
+     */
+    private void putBack(TimeEntry entry, byte[] object) {
+        if (payloads != null) {
+            entry.payload = payloads.store(object);
+        } else {
+            entry.object = object;
+        }
+    }
+
+    /*
+    Read a spilled object back into memory, off the heap again should the queue keep its objects there.
+     */
+    private void faultIn(TimeEntry entry) {
+        byte[] object = spill.load(entry.spilledAt, entry.payloadLength);
+        entry.spilledAt = SpillStore.NOT_SPILLED;
+        if (payloads != null) {
+            entry.payload = payloads.store(object);
+        } else {
+            entry.object = object;
+        }
+        residentBytes += object.length;
+    }
+
+    /*
+    Called with each entry pulled for a read, off the time queue and at the maturity it was read at. The entry's own
+    object is read back in should it be on disk. And once the spilled entries are within the read ahead window of
+    the one read, the next of them are read back in too, walking up the time queue from its head. That way a
+    consumer working through the backlog finds its objects already in memory rather than waiting on the disk entry
+    by entry. The walk is bounded in the entries read, in the entries passed over and by the spill threshold, so
+    reading ahead never undoes the spilling.
+
+    Should the entry's own object fail to be read back the entry goes back on the time queue, where it was, and the
+    read fails. A failure further up only ends the walk. That entry fails its own read once it's reached.
+     */
+    private void readAhead(TimeEntry pulled) {
+        if (spill == null) {
+            return;
+        }
+        boolean missed = pulled.spilledAt != SpillStore.NOT_SPILLED;
+        if (!missed && pulled.timeWhenAvailable + readAheadMillis < earliestSpilled) {
+            return;
+        }
+        QueueEvents.SpillFault event = null;
+        if (missed) {
+            if (QueueEvents.on()) {
+                event = new QueueEvents.SpillFault();
+                event.begin();
+            }
+            try {
+                faultIn(pulled);
+            } catch (IllegalStateException e) {
+                tq.add(pulled);
+                throw e;
+            }
+        }
+        int[] budget = {readAheadEntries, readAheadEntries * 16, 0};
+        long[] stop = {Long.MAX_VALUE};
+        try {
+            tq.visitAscending(entry -> {
+                if (entry.spilledAt != SpillStore.NOT_SPILLED) {
+                    if (budget[0]-- == 0 || residentBytes + entry.payloadLength > spillThreshold) {
+                        stop[0] = entry.timeWhenAvailable;
+                        return false;
+                    }
+                    faultIn(entry);
+                    budget[2]++;
+                } else if (budget[1]-- == 0) {
+                    stop[0] = entry.timeWhenAvailable;
+                    return false;
+                }
+                return true;
+            });
+            earliestSpilled = stop[0];
+        } catch (IllegalStateException e) {
+            /*
+            earliestSpilled is left as it was, so the next read tries again.
+             */
+        }
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.queue = queue.getQueueName();
+                event.objects = budget[2] + 1;
+                event.commit();
+            }
+        }
+    }
+
+    /*
+    Move an entry on the time queue to a new maturity. Should its object be on disk the read ahead is told it may now
+    be needed sooner.
+     */
+    void changeMaturity(TimeEntry entry, long maturityTime) {
+        tq.remove(entry);
+        pending(entry, -1);
+        entry.timeWhenAvailable = maturityTime;
+        tq.add(entry);
+        pending(entry, 1);
+        if (entry.spilledAt != SpillStore.NOT_SPILLED) {
+            earliestSpilled = Math.min(earliestSpilled, maturityTime);
+        }
+        if (wal != null) {
+            wal.logVisibility(entry.receipt, maturityTime, entry.receiveCount);
+        }
+    }
+
+    /*
+    Make room for n more entries without the slot table having to grow part way through adding them.
+     */
+    void reserve(int n) {
+        ensureSlotCapacity(slotsUsed + n - freeCount);
+    }
+
+    /*
+    Grow the slot table, and the free list alongside it, so at least size slots exist. The table doubles so a run
+    of single enqueues grows it only now and then, and a large group grows it once.
+     */
+    private void ensureSlotCapacity(int size) {
+        if (size <= entitySlots.length) {
+            return;
+        }
+        if (size > Receipt.MAX_SLOTS) {
+            throw new IllegalStateException("Queue " + queue.getQueueName() + " is full");
+        }
+        int capacity = entitySlots.length;
+        while (capacity < size) {
+            capacity = (int) Math.min((long) capacity << 1, Receipt.MAX_SLOTS);
+        }
+        entitySlots = Arrays.copyOf(entitySlots, capacity);
+        freeSlots = Arrays.copyOf(freeSlots, capacity);
+    }
+
+    /*
+    Take the earliest mature entry off the time queue and put it back with the new timeout value. Null is returned
+    if nothing is mature. Being mature the entry was counted as ready, and it's counted as in flight once back.
+     */
+    ReadResponse readMature(long timeout, long now) {
+        catchUp(now);
+        TimeEntry timeResponse;
+        do {
+            try {
+                timeResponse = tq.getEntryAfter(now);
+            } catch (TimeQueueException e) {
+                return null;
+            }
+        } while (deadLettered(timeResponse));
+        readAhead(timeResponse);
+        timeResponse.receiveCount++;
+        long backoff = 0;
+        if (timeResponse.receiveCount > 1) {
+            redelivered(timeResponse, now);
+            backoff = backoff(timeResponse.receiveCount);
+        }
+        timeResponse.timeWhenAvailable = now + timeout + backoff;
+        tq.add(timeResponse);
+        pending(timeResponse, 1);
+        if (wal != null) {
+            wal.logVisibility(timeResponse.receipt, timeResponse.timeWhenAvailable, timeResponse.receiveCount);
+        }
+        if (timeResponse.payload != TimeEntry.NO_PAYLOAD) {
+            return new ReadResponse(queue, timeResponse.receipt, payloadView(timeResponse));
+        }
+        return new ReadResponse(queue, timeResponse.receipt, timeResponse.object);
+    }
+
+    /*
+    The time added to the timeout of an entry being handed out for the receiveCount'th time.
+     */
+    private long backoff(int receiveCount) {
+        if (backoffMillis == 0 || receiveCount < 2) {
+            return 0;
+        }
+        return (long) Math.min(backoffMillis * Math.pow(backoffMultiplier, receiveCount - 2), backoffMaxMillis);
+    }
+
+    /*
+    Should the entry, just pulled off the time queue, have been handed out as many times as it may be, take it out
+    of the shard rather than hand it out again and answer true. Its object is kept for the dead letter queue, as is
+    without a copy when it's a byte array on the heap. An entry is only taken out while there's a dead letter queue
+    to move it to, otherwise it's handed out as usual, a dead letter queue named but missing being counted.
+     */
+    private boolean deadLettered(TimeEntry entry) {
+        if (maxReceives == 0 || entry.receiveCount < maxReceives || deadLetterQueue == null) {
+            return false;
+        }
+        if (QueueId.getQueueIfPresent(deadLetterQueue) == null) {
+            if (metrics != null) {
+                metrics.deadLetterMisses.increment();
+            }
+            return false;
+        }
+        byte[] object;
+        if (entry.spilledAt != SpillStore.NOT_SPILLED) {
+            try {
+                object = spill.read(entry.spilledAt, entry.payloadLength);
+            } catch (IllegalStateException e) {
+                tq.add(entry);
+                throw e;
+            }
+        } else if (entry.payload != TimeEntry.NO_PAYLOAD) {
+            object = new byte[entry.payloadLength];
+            payloadView(entry).get(object);
+        } else {
+            object = entry.object;
+        }
+        if (deadLetters == null) {
+            deadLetters = new ArrayList<byte[]>();
+        }
+        deadLetters.add(object);
+        releaseEntry(entry);
+        if (metrics != null) {
+            metrics.deadLettered.increment();
+        }
+        return true;
+    }
+
+    /*
+    The objects gathered for the dead letter queue since last asked, or null if there are none.
+     */
+    ArrayList<byte[]> takeDeadLetters() {
+        ArrayList<byte[]> taken = deadLetters;
+        deadLetters = null;
+        return taken;
+    }
+
+    /*
+    Count an entry being handed out again, and note it for the flight recorder with how long it had been mature.
+    Called before the entry's maturity is moved on.
+     */
+    private void redelivered(TimeEntry entry, long now) {
+        if (metrics != null) {
+            metrics.redelivered.increment();
+        }
+        if (!QueueEvents.on()) {
+            return;
+        }
+        QueueEvents.Redelivery event = new QueueEvents.Redelivery();
+        if (event.isEnabled()) {
+            event.queue = queue.getQueueName();
+            event.receipt = entry.receipt;
+            event.receiveCount = entry.receiveCount;
+            event.overdue = now - entry.timeWhenAvailable;
+            event.commit();
+        }
+    }
+
+    /*
+    A read only view of an off heap object, good until the entry is deleted.
+     */
+    ByteBuffer payloadView(TimeEntry entry) {
+        return payloads.view(entry.payload, entry.payloadLength);
+    }
+
+    /*
+    Add mature entries to the batch until it's full or nothing more is mature, then put them all back on the time
+    queue with the one new maturity. They only go back once the pulling is done, as with a timeout of 0 they would
+    otherwise be mature again and the same entry could be handed out twice in the one batch. Should the read fail
+    part way, on an object that can't be read back from disk, those pulled so far still go back, to be handed out
+    again once their timeout runs out.
+     */
+    void readMature(ReadBatchResponse batch, int max, long timeout, long now) {
+        TimeEntry timeResponse;
+        ArrayList<TimeEntry> rearm = new ArrayList<TimeEntry>(max - batch.count);
+        ArrayList<TimeEntry> backedOff = null;
+        catchUp(now);
+        try {
+            while (batch.count < max) {
+                try {
+                    timeResponse = tq.getEntryAfter(now);
+                } catch (TimeQueueException e) {
+                    break;
+                }
+                if (deadLettered(timeResponse)) {
+                    continue;
+                }
+                readAhead(timeResponse);
+                timeResponse.receiveCount++;
+                long backoff = 0;
+                if (timeResponse.receiveCount > 1) {
+                    redelivered(timeResponse, now);
+                    backoff = backoff(timeResponse.receiveCount);
+                }
+                if (timeResponse.payload != TimeEntry.NO_PAYLOAD) {
+                    batch.add(timeResponse.receipt, payloadView(timeResponse));
+                } else {
+                    batch.add(timeResponse.receipt, timeResponse.object);
+                }
+                if (backoff == 0) {
+                    rearm.add(timeResponse);
+                } else {
+                    /*
+                    Entries backed off each go back at a maturity of their own.
+                     */
+                    timeResponse.timeWhenAvailable = now + timeout + backoff;
+                    if (backedOff == null) {
+                        backedOff = new ArrayList<TimeEntry>();
+                    }
+                    backedOff.add(timeResponse);
+                }
+            }
+        } finally {
+            tq.addAllAt(rearm, now + timeout);
+            pending(now + timeout, true, rearm.size());
+            if (backedOff != null) {
+                for (TimeEntry entry : backedOff) {
+                    tq.add(entry);
+                    pending(entry, 1);
+                }
+                rearm.addAll(backedOff);
+            }
+            if (wal != null) {
+                for (TimeEntry entry : rearm) {
+                    wal.logVisibility(entry.receipt, entry.timeWhenAvailable, entry.receiveCount);
+                }
+            }
+        }
+    }
+}
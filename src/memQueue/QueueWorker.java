@@ -0,0 +1,282 @@
+package memQueue;
+
+import readResponse.ReadBatchResponse;
+import readResponse.ReadResponse;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Runs a handler over the entries of a queue, so the caller writes what to do with an entry and not the loop of
+ * reading, deleting and retrying around it.
+ * <p>
+ * A single dispatcher thread long polls the queue in batches, see QueueId.readBatch, and hands each entry to the
+ * handler on a thread of its own. What the handler answers decides what happens to the entry, see Outcome. A
+ * semaphore holds one permit per handler that may run at once and the dispatcher takes a permit for each entry
+ * before reading it, so entries are only read when there's a handler free for them. An entry is never left hidden
+ * and counting down its timeout while it waits for a handler.
+ * <p>
+ * Handlers run on virtual threads where the Java runtime has them, Java 21 on, so thousands of handlers blocked on
+ * I/O cost little more than their stacks. On an earlier runtime they run on a cached pool of daemon platform threads,
+ * one per handler running, which does the same job at a higher cost per thread.
+ * <p>
+ * shutdown stops the reading and waits for the handlers running to finish. Entries read and not finished in time
+ * are left to their timeouts and handed out again, to this worker's successor or whatever else reads the queue.
+ * <p>
+ * A receipt names an entry, not one reading of it. A handler taking longer than WorkerConfig.visibilityTimeoutMillis
+ * has its entry handed out again while it's still at it, and whichever of the two finishes first deletes the entry.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class QueueWorker implements AutoCloseable {
+    /*
+    How long the dispatcher waits before reading again after a read failed unexpectedly.
+     */
+    static final long FAILURE_BACKOFF_MILLIS = 1000;
+
+    private final QueueId queue;
+    private final Function<ReadResponse, Outcome> handler;
+    private final WorkerConfig config;
+    private final Semaphore capacity;
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final Thread dispatcher;
+    private volatile boolean running = true;
+
+    private final LongAdder succeeded = new LongAdder();
+    private final LongAdder retried = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder dispatchFailures = new LongAdder();
+    private volatile Throwable lastDispatchFailure = null;
+
+    /**
+     * Start running the handler over the queue.
+     * @param queue the queue to read
+     * @param handler what to do with each entry read
+     * @param config the worker's settings
+     */
+    public QueueWorker(QueueId queue, Function<ReadResponse, Outcome> handler, WorkerConfig config) {
+        if (config.concurrency < 1 || config.batchSize < 1) {
+            throw new IllegalArgumentException("A worker needs a concurrency and batch size of at least 1");
+        }
+        if (config.visibilityTimeoutMillis < 0 || config.retryDelayMillis < 0 || config.failureDelayMillis < 0
+                || config.pollWaitMillis < 0) {
+            throw new IllegalArgumentException("Worker timeouts and delays may not be negative");
+        }
+        this.queue = queue;
+        this.handler = handler;
+        this.config = config;
+        capacity = new Semaphore(config.concurrency);
+        ExecutorService virtualExecutor = config.virtualThreads ? virtualExecutor() : null;
+        virtual = virtualExecutor != null;
+        executor = virtual ? virtualExecutor : platformExecutor("memQueue-handler-" + queue.getQueueName());
+        dispatcher = new Thread(this::dispatch, "memQueue-worker-" + queue.getQueueName());
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /*
+    Executors.newVirtualThreadPerTaskExecutor is looked up rather than called as the build targets a runtime without
+    it. Before Java 21 it's either missing or, as a preview, refuses to run, and either way null is returned.
+     */
+    private static ExecutorService virtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService platformExecutor(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /*
+    Take a permit for the first entry, waiting if need be, then as many more as are free up to the batch size. The
+    permits of entries the read didn't fill are given straight back. Only this thread takes permits, so those found
+    free are certain to still be there when taken.
+
+    A read failing in any other way than the queue having gone is counted, kept for getLastDispatchFailure and passed
+    to the config's dispatchFailureHandler, and reading carries on after FAILURE_BACKOFF_MILLIS. So the worker
+    neither dies quietly nor spins on a fault that persists.
+     */
+    private void dispatch() {
+        while (running) {
+            int held = 0;
+            try {
+                capacity.acquire();
+                held = 1 + Math.min(capacity.availablePermits(), config.batchSize - 1);
+                if (!capacity.tryAcquire(held - 1)) {
+                    throw new IllegalStateException("Worker permits taken by other than the dispatcher");
+                }
+                ReadBatchResponse batch = queue.readBatch(held, config.visibilityTimeoutMillis,
+                        config.pollWaitMillis, TimeUnit.MILLISECONDS);
+                capacity.release(held - batch.count);
+                held = 0;
+                for (int i = 0; i < batch.count; i++) {
+                    ReadResponse readResponse = batch.get(i);
+                    try {
+                        executor.execute(() -> handle(readResponse));
+                    } catch (RejectedExecutionException e) {
+                        /*
+                        Shut down under us. The entry is left to time out.
+                         */
+                        capacity.release();
+                    }
+                }
+            } catch (NoEntityException e) {
+                /*
+                The queue has been deleted, there'll be nothing more to read.
+                 */
+                return;
+            } catch (InterruptedException e) {
+                /*
+                Shutting down. The read parks only when it has nothing in hand so no entry is dropped.
+                 */
+                return;
+            } catch (RuntimeException e) {
+                dispatchFailures.increment();
+                lastDispatchFailure = e;
+                capacity.release(held);
+                held = 0;
+                if (config.dispatchFailureHandler != null) {
+                    try {
+                        config.dispatchFailureHandler.accept(e);
+                    } catch (RuntimeException again) {
+                        /*
+                        The handler's own fault, not to stop the dispatcher.
+                         */
+                    }
+                }
+                try {
+                    Thread.sleep(FAILURE_BACKOFF_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            } finally {
+                capacity.release(held);
+            }
+        }
+    }
+
+    private void handle(ReadResponse readResponse) {
+        Outcome outcome;
+        try {
+            outcome = handler.apply(readResponse);
+        } catch (RuntimeException e) {
+            outcome = Outcome.FAILURE;
+        }
+        try {
+            if (outcome == Outcome.SUCCESS) {
+                queue.dequeue(readResponse.receipt);
+                succeeded.increment();
+            } else if (outcome == Outcome.RETRY) {
+                queue.changeVisibility(readResponse.receipt, config.retryDelayMillis);
+                retried.increment();
+            } else {
+                queue.changeVisibility(readResponse.receipt, config.failureDelayMillis);
+                failed.increment();
+            }
+        } catch (NoEntityException e) {
+            /*
+            Another reader finished the entry first, having been handed it once its timeout ran out, or the queue
+            has been deleted.
+             */
+            lost.increment();
+        } finally {
+            capacity.release();
+        }
+    }
+
+    /**
+     * Stop reading and wait for the handlers running to finish.
+     * @param maxWait longest time to wait for the handlers
+     * @param unit the unit of maxWait
+     * @return true if every handler finished, false if some were still running when maxWait ran out
+     * @throws InterruptedException
+     */
+    public boolean shutdown(long maxWait, TimeUnit unit) throws InterruptedException {
+        running = false;
+        dispatcher.interrupt();
+        dispatcher.join();
+        /*
+        With the dispatcher gone every permit missing is held by a running handler.
+         */
+        boolean drained = capacity.tryAcquire(config.concurrency, maxWait, unit);
+        if (drained) {
+            capacity.release(config.concurrency);
+        }
+        executor.shutdown();
+        return drained;
+    }
+
+    /*
+    Shut down, giving the handlers as long as an entry's timeout to finish. After that their entries are handed out
+    again anyway. Interrupted, it stops waiting and leaves the thread's interrupt set.
+     */
+    public void close() {
+        try {
+            shutdown(config.visibilityTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /*
+    False once the dispatcher has stopped, having been shut down or found the queue deleted, or died of an Error.
+     */
+    public boolean isDispatching() {
+        return dispatcher.isAlive();
+    }
+
+    /*
+    The reads that failed unexpectedly, and the latest failure, null if none has.
+     */
+    public long getDispatchFailures() {
+        return dispatchFailures.sum();
+    }
+
+    public Throwable getLastDispatchFailure() {
+        return lastDispatchFailure;
+    }
+
+    public int getRunning() {
+        return config.concurrency - capacity.availablePermits();
+    }
+
+    public long getSucceeded() {
+        return succeeded.sum();
+    }
+
+    public long getRetried() {
+        return retried.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /*
+    Entries whose handler finished after the entry had already been deleted, see NoEntityException above.
+     */
+    public long getLost() {
+        return lost.sum();
+    }
+}
@@ -0,0 +1,59 @@
+package memQueue;
+
+/**
+ * Receipts: the compact handles by which queue entries are known.
+ * <p>
+ * A receipt is a long made of two parts. The low SLOT_BITS bits are the slot the entry sits in on its queue's
+ * table of entries. The high bits are a sequence number the queue counts up by one for every entry it takes on.
+ * Finding an entry from its receipt is a matter of indexing the table by the slot and checking the receipt stored
+ * in the entry matches. Once an entry is deleted its slot is reused, but under a new sequence number, so a receipt
+ * held onto from before can never find the new entry.
+ * <p>
+ * With 28 bits of slot a queue may hold up to 2^28 entries at once. The 36 bits of sequence number are good for
+ * 2^36 entries over the life of the queue before they wrap. No receipt is ever 0, so 0 may be used to mean none.
+ * <p>
+ * Receipts are handed around as plain longs. Where a string is wanted, toString gives 16 hex digits and parse
+ * turns those back into the receipt.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public final class Receipt {
+    public static final int SLOT_BITS = 28;
+    public static final int MAX_SLOTS = 1 << SLOT_BITS;
+    static final long SLOT_MASK = MAX_SLOTS - 1;
+
+    private Receipt() {
+    }
+
+    static long make(long sequence, int slot) {
+        return (sequence << SLOT_BITS) | slot;
+    }
+
+    static int slot(long receipt) {
+        return (int) (receipt & SLOT_MASK);
+    }
+
+    static long sequence(long receipt) {
+        return receipt >>> SLOT_BITS;
+    }
+
+    public static String toString(long receipt) {
+        String hex = Long.toHexString(receipt);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /*
+    The receipt written out by toString, or 0 if the string isn't one.
+     */
+    public static long parse(String receipt) {
+        if (receipt == null || receipt.length() != 16) {
+            return 0;
+        }
+        try {
+            return Long.parseUnsignedLong(receipt, 16);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package memQueue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Storage for queued objects outside the Java heap.
+ * <p>
+ * Rather than keep each object as a byte array the store copies it into a chunk of a slab, a large direct
+ * ByteBuffer. The garbage collector sees a handful of slabs however many objects are queued, so heap size and
+ * collection pauses no longer grow with the depth of the queue.
+ * <p>
+ * Chunks come in size classes, powers of two from MIN_CHUNK bytes up to the size of a slab. An object takes a chunk
+ * of the smallest class it fits in. Each slab is carved into chunks of one class only. A freed chunk goes on the free
+ * list of its class and is handed out again before any new slab is made, so a queue holding steady at some depth
+ * stops allocating altogether. Slabs are never given back, they are kept for the next burst.
+ * <p>
+ * An object too big for a slab gets a direct buffer of its own which is dropped as soon as the entry is deleted.
+ * <p>
+ * A chunk is known by a handle, the slab number in the high 32 bits and the offset into the slab in the low 32.
+ * <p>
+ * There's no locking here. A store belongs to one QueueShard and is only used under that shard's lock.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+class SlabPayloadStore {
+    static final int MIN_CHUNK_BITS = 4;
+    static final int MIN_CHUNK = 1 << MIN_CHUNK_BITS;
+
+    private final int slabBytes;
+    private final int classCount;
+    /*
+    The slabs by number, and the size class each is carved into, or -1 for an object with a buffer of its own.
+    A dropped large buffer leaves a null behind and its number goes on freeSlabNumbers for reuse.
+     */
+    private ArrayList<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+    private int[] slabClass = new int[16];
+    private int[] freeSlabNumbers = new int[16];
+    private int freeSlabCount = 0;
+    /*
+    Per size class the free chunk handles, used as a stack, and the next chunk not yet handed out of the newest
+    slab of that class.
+     */
+    private long[][] freeChunks;
+    private int[] freeChunkCount;
+    private int[] carveSlab;
+    private int[] carveOffset;
+
+    private long slabBytesReserved = 0;
+    private long chunkBytesUsed = 0;
+    private long payloadBytes = 0;
+    private int liveChunks = 0;
+
+    SlabPayloadStore(int slabBytes) {
+        if (slabBytes < MIN_CHUNK || Integer.bitCount(slabBytes) != 1) {
+            throw new IllegalArgumentException("The slab size must be a power of two of at least " + MIN_CHUNK);
+        }
+        this.slabBytes = slabBytes;
+        classCount = Integer.numberOfTrailingZeros(slabBytes) - MIN_CHUNK_BITS + 1;
+        freeChunks = new long[classCount][16];
+        freeChunkCount = new int[classCount];
+        carveSlab = new int[classCount];
+        carveOffset = new int[classCount];
+        Arrays.fill(carveSlab, -1);
+    }
+
+    /*
+    The size class an object of length bytes goes in, or -1 if it's too big for a slab.
+     */
+    int sizeClass(int length) {
+        if (length > slabBytes) {
+            return -1;
+        }
+        if (length <= MIN_CHUNK) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_CHUNK_BITS;
+    }
+
+    /*
+    Copy the object into a chunk and hand back the chunk's handle.
+     */
+    long store(byte[] object) {
+        int length = object.length;
+        int sizeClass = sizeClass(length);
+        long handle;
+        if (sizeClass < 0) {
+            int slab = newSlab(-1, length);
+            handle = (long) slab << 32;
+            slabBytesReserved += length;
+            chunkBytesUsed += length;
+        } else {
+            handle = takeChunk(sizeClass);
+            chunkBytesUsed += MIN_CHUNK << sizeClass;
+        }
+        ByteBuffer slab = slabs.get((int) (handle >>> 32)).duplicate();
+        slab.position((int) handle);
+        slab.put(object);
+        payloadBytes += length;
+        liveChunks++;
+        return handle;
+    }
+
+    /*
+    A read only view of the length bytes held in the chunk. The view shares the slab so it is only good until the
+    chunk is freed.
+     */
+    ByteBuffer view(long handle, int length) {
+        ByteBuffer view = slabs.get((int) (handle >>> 32)).asReadOnlyBuffer();
+        int offset = (int) handle;
+        view.limit(offset + length).position(offset);
+        return view.slice();
+    }
+
+    /*
+    Give the chunk back. An object with a buffer of its own has the buffer dropped.
+     */
+    void free(long handle, int length) {
+        int slab = (int) (handle >>> 32);
+        int sizeClass = slabClass[slab];
+        if (sizeClass < 0) {
+            slabs.set(slab, null);
+            if (freeSlabCount == freeSlabNumbers.length) {
+                freeSlabNumbers = Arrays.copyOf(freeSlabNumbers, freeSlabCount * 2);
+            }
+            freeSlabNumbers[freeSlabCount++] = slab;
+            slabBytesReserved -= length;
+            chunkBytesUsed -= length;
+        } else {
+            long[] free = freeChunks[sizeClass];
+            if (freeChunkCount[sizeClass] == free.length) {
+                free = Arrays.copyOf(free, free.length * 2);
+                freeChunks[sizeClass] = free;
+            }
+            free[freeChunkCount[sizeClass]++] = handle;
+            chunkBytesUsed -= MIN_CHUNK << sizeClass;
+        }
+        payloadBytes -= length;
+        liveChunks--;
+    }
+
+    /*
+    Add this store's figures to the totals in stats.
+     */
+    void addTo(SlabStats stats) {
+        for (ByteBuffer slab : slabs) {
+            if (slab != null) {
+                stats.slabs++;
+            }
+        }
+        stats.reservedBytes += slabBytesReserved;
+        stats.usedBytes += chunkBytesUsed;
+        stats.payloadBytes += payloadBytes;
+        stats.liveChunks += liveChunks;
+    }
+
+    /*
+    A chunk of the class, off the free list if there's one there, otherwise carved from the class's newest slab,
+    making a new slab should that one be used up.
+     */
+    private long takeChunk(int sizeClass) {
+        if (freeChunkCount[sizeClass] > 0) {
+            return freeChunks[sizeClass][--freeChunkCount[sizeClass]];
+        }
+        int chunkBytes = MIN_CHUNK << sizeClass;
+        if (carveSlab[sizeClass] < 0 || carveOffset[sizeClass] + chunkBytes > slabBytes) {
+            carveSlab[sizeClass] = newSlab(sizeClass, slabBytes);
+            carveOffset[sizeClass] = 0;
+            slabBytesReserved += slabBytes;
+        }
+        long handle = ((long) carveSlab[sizeClass] << 32) | carveOffset[sizeClass];
+        carveOffset[sizeClass] += chunkBytes;
+        return handle;
+    }
+
+    private int newSlab(int sizeClass, int bytes) {
+        ByteBuffer slab = ByteBuffer.allocateDirect(bytes);
+        int number;
+        if (freeSlabCount > 0) {
+            number = freeSlabNumbers[--freeSlabCount];
+            slabs.set(number, slab);
+        } else {
+            number = slabs.size();
+            slabs.add(slab);
+            if (number == slabClass.length) {
+                slabClass = Arrays.copyOf(slabClass, number * 2);
+            }
+        }
+        slabClass[number] = sizeClass;
+        return number;
+    }
+}
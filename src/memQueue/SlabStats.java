@@ -0,0 +1,40 @@
+package memQueue;
+
+/**
+ * Figures on the off heap storage of a queue, see QueueConfig.offHeapPayloads.
+ * <p>
+ * reservedBytes is the direct memory taken by slabs. usedBytes is the part of that in chunks holding an object and
+ * payloadBytes the part of those chunks the objects actually fill. The rest of a chunk is lost to rounding up to its
+ * size class, and the rest of the reserved memory is free chunks waiting to be reused.
+ * <p>
+ * As with ReadResponse the fields are made public so getters and setters are not necessary.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class SlabStats {
+    public int slabs = 0;
+    public int liveChunks = 0;
+    public long reservedBytes = 0;
+    public long usedBytes = 0;
+    public long payloadBytes = 0;
+
+    /*
+    The share of the reserved memory in chunks holding an object.
+     */
+    public double occupancy() {
+        return reservedBytes == 0 ? 0 : (double) usedBytes / reservedBytes;
+    }
+
+    /*
+    The share of the chunks in use lost to rounding objects up to their size class.
+     */
+    public double fragmentation() {
+        return usedBytes == 0 ? 0 : 1 - (double) payloadBytes / usedBytes;
+    }
+
+    public String toString() {
+        return String.format("%d slabs, %d objects, %d of %d bytes in use, %.1f%% occupied, %.1f%% fragmented",
+                slabs, liveChunks, usedBytes, reservedBytes, occupancy() * 100, fragmentation() * 100);
+    }
+}
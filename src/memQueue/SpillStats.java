@@ -0,0 +1,25 @@
+package memQueue;
+
+/**
+ * Figures on how the objects of a queue split between memory and its spill files, see QueueConfig.spillDirectory.
+ * <p>
+ * residentBytes is the object bytes held in memory, on the heap or off it. spilledBytes and spilledEntries are the
+ * bytes and the count of the objects written out to disk and not yet read back or deleted. failedSpills counts the
+ * times a group of objects couldn't be written out, most often as the disk is full, and was kept in memory instead.
+ * <p>
+ * As with ReadResponse the fields are made public so getters and setters are not necessary.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class SpillStats {
+    public long residentBytes = 0;
+    public long spilledBytes = 0;
+    public int spilledEntries = 0;
+    public int failedSpills = 0;
+
+    public String toString() {
+        return String.format("%d bytes in memory, %d objects of %d bytes on disk, %d failed spills",
+                residentBytes, spilledEntries, spilledBytes, failedSpills);
+    }
+}
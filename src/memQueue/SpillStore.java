@@ -0,0 +1,274 @@
+package memQueue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Files holding objects moved out of memory, the spill tier of a QueueShard.
+ * <p>
+ * When a shard holds more object bytes than it's allowed, the objects of the entries maturing furthest off are
+ * written out here and dropped from memory. The entry itself stays on the time index with its receipt and maturity,
+ * only its object is away. As the entry nears maturity the object is read back in.
+ * <p>
+ * The files are append only. Objects spilled together are gathered into one buffer and written with a single
+ * write. A file is written up to its size and then a new one begun. Each file counts the objects in it not yet read
+ * back or deleted, and once that is zero and the file is no longer being written the file is deleted. So the space
+ * on disk is given back as the backlog drains, without ever rewriting a file.
+ * <p>
+ * Where an object went is kept in the entry as a position, the file number in the high 32 bits and the offset in the
+ * low 32.
+ * <p>
+ * The spill tier is scratch space and not part of a durable queue's log. Each store makes a directory of its own,
+ * named spill followed by a random number, under the spill directory configured, and removes it with its files when
+ * the queue is deleted. While in use the directory's lock file is held locked. A store left behind by a process
+ * that died, or by a queue never deleted before its process exited, no longer has its lock held, and is removed by
+ * the next store made under the same spill directory. There's no locking of the store's own data, a store belongs
+ * to one shard and is only used under its lock.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+class SpillStore {
+    static final long NOT_SPILLED = -1;
+
+    /*
+    One spill file. Files that have been deleted leave a null in the list.
+     */
+    static final class SpillFile {
+        final File file;
+        final FileChannel channel;
+        long length = 0;
+        int live = 0;
+
+        SpillFile(File file) throws IOException {
+            this.file = file;
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+    }
+
+    static final String LOCK_FILE = "lock";
+    /*
+    The directories of this process's stores. Their lock files aren't so much as opened by a sweep, as closing any
+    channel on a file may let go of every lock the process holds on it.
+     */
+    private static final Set<File> OWN = ConcurrentHashMap.newKeySet();
+
+    private final File directory;
+    private final FileChannel lockChannel;
+    private final int fileBytes;
+    private ArrayList<SpillFile> files = new ArrayList<SpillFile>();
+    private SpillFile current = null;
+    private ByteBuffer gather;
+    private long spilledBytes = 0;
+    private int spilledCount = 0;
+
+    SpillStore(File parent, int fileBytes) {
+        this.fileBytes = fileBytes;
+        try {
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Can't make spill directory " + parent);
+            }
+            sweep(parent);
+            File made;
+            FileChannel channel;
+            /*
+            Should another store's sweep get to the new directory before it's locked, make another.
+             */
+            do {
+                made = Files.createTempDirectory(parent.toPath(), "spill").toFile().getAbsoluteFile();
+                OWN.add(made);
+                channel = new RandomAccessFile(new File(made, LOCK_FILE), "rw").getChannel();
+                if (channel.tryLock() == null || !made.isDirectory()) {
+                    channel.close();
+                    OWN.remove(made);
+                    made = null;
+                }
+            } while (made == null);
+            directory = made;
+            lockChannel = channel;
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't make spill directory in " + parent, e);
+        }
+        gather = ByteBuffer.allocateDirect(1 << 16);
+    }
+
+    /*
+    Write a group of objects out, handing back the position of each.
+     */
+    long[] spill(ArrayList<byte[]> objects) {
+        long[] positions = new long[objects.size()];
+        int total = 0;
+        for (byte[] object : objects) {
+            total += object.length;
+        }
+        if (current == null || current.length + total > fileBytes) {
+            current = newFile();
+        }
+        if (gather.capacity() < total) {
+            gather = ByteBuffer.allocateDirect(Integer.highestOneBit(total) << 1);
+        }
+        gather.clear();
+        int fileNumber = files.size() - 1;
+        for (int i = 0; i < positions.length; i++) {
+            positions[i] = ((long) fileNumber << 32) | (current.length + gather.position());
+            gather.put(objects.get(i));
+        }
+        gather.flip();
+        try {
+            while (gather.hasRemaining()) {
+                current.channel.write(gather, current.length + gather.position());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write spill file " + current.file, e);
+        }
+        current.length += total;
+        current.live += positions.length;
+        spilledBytes += total;
+        spilledCount += positions.length;
+        return positions;
+    }
+
+    /*
+    Read an object back in, letting go of its place in the file.
+     */
+    byte[] load(long position, int length) {
+        byte[] object = read(position, length);
+        release(position, length);
+        return object;
+    }
+
+    /*
+    A copy of an object, left where it is.
+     */
+    byte[] read(long position, int length) {
+        SpillFile spillFile = files.get((int) (position >>> 32));
+        byte[] object = new byte[length];
+        ByteBuffer into = ByteBuffer.wrap(object);
+        try {
+            while (into.hasRemaining()) {
+                if (spillFile.channel.read(into, (position & 0xffffffffL) + into.position()) < 0) {
+                    throw new IOException("Spill file " + spillFile.file + " is short");
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't read spill file " + spillFile.file, e);
+        }
+        return object;
+    }
+
+    /*
+    The object at the position is no longer needed, its entry having been deleted or the object read back.
+     */
+    void release(long position, int length) {
+        int fileNumber = (int) (position >>> 32);
+        SpillFile spillFile = files.get(fileNumber);
+        spilledBytes -= length;
+        spilledCount--;
+        if (--spillFile.live == 0 && spillFile != current) {
+            close(spillFile);
+            files.set(fileNumber, null);
+        }
+    }
+
+    long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    int getSpilledCount() {
+        return spilledCount;
+    }
+
+    /*
+    Remove every file and the directory. Used when the queue is deleted.
+     */
+    void delete() {
+        for (SpillFile spillFile : files) {
+            if (spillFile != null) {
+                close(spillFile);
+            }
+        }
+        files.clear();
+        current = null;
+        try {
+            lockChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        new File(directory, LOCK_FILE).delete();
+        directory.delete();
+        OWN.remove(directory);
+    }
+
+    /*
+    Remove the stores under the spill directory whose lock nobody holds. A store of this process is passed over, and
+    one of another live process fails the tryLock. A store without a lock file is passed over too, as it may be one
+    just being made.
+     */
+    private static void sweep(File parent) {
+        File[] stores = parent.listFiles((dir, name) -> name.startsWith("spill"));
+        if (stores == null) {
+            return;
+        }
+        for (File store : stores) {
+            File lockFile = new File(store, LOCK_FILE);
+            if (OWN.contains(store.getAbsoluteFile()) || !lockFile.isFile()) {
+                continue;
+            }
+            try (FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel()) {
+                FileLock lock = channel.tryLock();
+                if (lock == null) {
+                    continue;
+                }
+                File[] files = store.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (!file.equals(lockFile)) {
+                            file.delete();
+                        }
+                    }
+                }
+                lockFile.delete();
+                store.delete();
+            } catch (OverlappingFileLockException | IOException e) {
+                /*
+                Not ours to remove.
+                 */
+            }
+        }
+    }
+
+    /*
+    Begin a new file. The one being written until now is deleted straight away if nothing in it is still needed.
+     */
+    private SpillFile newFile() {
+        if (current != null && current.live == 0) {
+            close(current);
+            files.set(files.size() - 1, null);
+        }
+        try {
+            SpillFile spillFile = new SpillFile(new File(directory, String.format("%08x.spill", files.size())));
+            files.add(spillFile);
+            return spillFile;
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't make spill file in " + directory, e);
+        }
+    }
+
+    private void close(SpillFile spillFile) {
+        try {
+            spillFile.channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        spillFile.file.delete();
+    }
+}
@@ -0,0 +1,124 @@
+package memQueue;
+
+import java.util.function.Predicate;
+
+/**
+ * A FIFO list of time entries.
+ * <p>
+ * The entries are linked through their own prev and next fields so adding to, taking from and removing out of the
+ * middle of the list costs no allocation and no search. The list is circular with the bucket itself standing in as
+ * the sentinel entry at its head and tail, which is why a bucket is a TimeEntry. That lets an entry be unlinked
+ * knowing nothing but the entry: when its neighbours turn out to be one and the same they must be the sentinel and
+ * the bucket is now empty. An entry may only be on one list at a time.
+ * <p>
+ * The key is for the index owning the bucket to find it again: the maturity time on a TimeDistQueue, the wheel and
+ * slot on a TimingWheel.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+class TimeBucket extends TimeEntry {
+    long key;
+
+    TimeBucket(long key) {
+        super(null, 0, 0);
+        this.key = key;
+        prev = this;
+        next = this;
+    }
+
+    boolean isEmpty() {
+        return next == this;
+    }
+
+    TimeEntry peekFirst() {
+        return next == this ? null : next;
+    }
+
+    void addLast(TimeEntry tE) {
+        tE.prev = prev;
+        tE.next = this;
+        prev.next = tE;
+        prev = tE;
+    }
+
+    TimeEntry pollFirst() {
+        TimeEntry tE = next;
+        if (tE == this) {
+            return null;
+        }
+        unlink(tE);
+        return tE;
+    }
+
+    /*
+    Move every entry of the other list onto the end of this one, leaving the other list empty.
+     */
+    void appendAll(TimeBucket other) {
+        if (other.isEmpty()) {
+            return;
+        }
+        TimeEntry first = other.next;
+        TimeEntry last = other.prev;
+        first.prev = prev;
+        prev.next = first;
+        last.next = this;
+        prev = last;
+        other.next = other;
+        other.prev = other;
+    }
+
+    /*
+    Detach the whole chain, returning its first entry. The entries stay linked to one another through next, with
+    the last one's next set to null.
+     */
+    TimeEntry takeAll() {
+        if (isEmpty()) {
+            return null;
+        }
+        TimeEntry first = next;
+        prev.next = null;
+        next = this;
+        prev = this;
+        return first;
+    }
+
+    /*
+    Hand each entry to the visitor, first to last or last to first, for as long as it answers true. Returns false
+    if the visitor asked to stop. The visitor must not add or remove entries.
+     */
+    boolean visitForward(Predicate<TimeEntry> visitor) {
+        for (TimeEntry tE = next; tE != this; tE = tE.next) {
+            if (!visitor.test(tE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean visitBackward(Predicate<TimeEntry> visitor) {
+        for (TimeEntry tE = prev; tE != this; tE = tE.prev) {
+            if (!visitor.test(tE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    Take an entry off whatever list it is on. If that leaves the list empty the list is returned so its owner may
+    tidy up, otherwise null is returned.
+     */
+    static TimeBucket unlink(TimeEntry tE) {
+        TimeEntry before = tE.prev;
+        TimeEntry after = tE.next;
+        before.next = after;
+        after.prev = before;
+        tE.prev = null;
+        tE.next = null;
+        if (before == after) {
+            return (TimeBucket) before;
+        }
+        return null;
+    }
+}
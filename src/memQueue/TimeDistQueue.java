@@ -1,63 +1,147 @@
 package memQueue;
 
-import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.function.Predicate;
 
 /**
  * A FIFO based on  time values.
  * This distributes multiple TimeEntries on a sorted map via the time of maturity.
- * Since a sorted map requires unique keys, the value for the map is an array list of those
+ * Since a sorted map requires unique keys, the value for the map is a list of those
  * elements that have a common maturity date.
  * <p>
  * Since the time is expressed as a long we need not have another compartor. The natural comparator
  * for a long will be adequate.
  * <p>
- * Adding to this map is looking to see if there's anything at that time value key. If not then a new array
+ * Adding to this map is looking to see if there's anything at that time value key. If not then a new
  * list is established and the first element is added. If there is one then we add the new entry as the
  * last entry thereby preserving as much as possible the FIFO nature of the list.
+ * <p>
+ * The lists are TimeBuckets, linked through the entries themselves. Taking the first entry off a list or taking
+ * a deleted entry out of the middle of one is done in constant time.
+ * <p>
+ * The earliest list is kept to hand rather than looked up in the map on every read. With millions of entries
+ * scheduled far ahead the map is deep, but a read of the mature head only goes down it once per distinct maturity.
  *
  * @author tonyaiello
  * @version 1.0
  */
 
-public class TimeDistQueue {
-    private TreeMap<Long, ArrayList<TimeEntry>> teMap = null;
+public class TimeDistQueue implements TimeIndex {
+    private TreeMap<Long, TimeBucket> teMap = null;
+    /*
+    The list under the first key, or null when that's not known and must be looked up.
+     */
+    private TimeBucket head = null;
     private String name;
+    private final QueueClock clock;
 
 
     public TimeDistQueue(String name) {
+        this(name, QueueClock.monotonic());
+    }
+
+    /*
+    An index reading the time from the clock given when it isn't handed the time.
+     */
+    public TimeDistQueue(String name, QueueClock clock) {
         this.name = name;
-        teMap = new TreeMap<Long, ArrayList<TimeEntry>>();
+        this.clock = clock;
+        teMap = new TreeMap<Long, TimeBucket>();
     }
 
-    private void addEntry(String entity, long maturityTime) {
-        TimeEntry tE = new TimeEntry(entity, maturityTime);
-        /*
-        If this timeWhenAvailable is already on the map then just add this entry. If not then a new
-        key of when this entity is made available is added to the map,
-         */
-        if (teMap.containsKey(tE.timeWhenAvailable)) {
-            ArrayList teList = teMap.get(tE.timeWhenAvailable);
-            teList.add(teList.size(), tE);
-        }
-        /*
-        Otherwise we need to create an array list and add it and the maturity date
-        to the map.
-         */
-        else {
-            ArrayList teList = new ArrayList<TimeEntry>();
-            teList.add(tE);
-            teMap.put(tE.timeWhenAvailable, teList);
+    /*
+    If this timeWhenAvailable is already on the map then just add this entry. If not then a new
+    key of when this entity is made available is added to the map,
+     */
+    private TimeBucket bucketFor(long maturityTime) {
+        TimeBucket teList = teMap.get(maturityTime);
+        if (teList == null) {
+            teList = new TimeBucket(maturityTime);
+            teMap.put(maturityTime, teList);
+            if (head != null && maturityTime < head.key) {
+                head = teList;
+            }
         }
+        return teList;
     }
 
     public void add(String entity) {
-        addEntry(entity, 0);
+        add(new TimeEntry(entity, 0, clock.millis()));
     }
     public void add(String entity, long timeout) {
-        addEntry(entity, timeout );
+        add(new TimeEntry(entity, timeout, clock.millis()));
+    }
+    public void add(TimeEntry tE) {
+        bucketFor(tE.timeWhenAvailable).addLast(tE);
+    }
+    /*
+    Add a group of entities sharing one timeout. They all mature at the same time so they all go on the one list,
+    in the order given.
+     */
+    public void addAll(Collection<String> entities, long timeout) {
+        if (entities.isEmpty()) {
+            return;
+        }
+        long now = clock.millis();
+        TimeBucket teList = bucketFor(now + timeout);
+        for (String entity : entities) {
+            teList.addLast(new TimeEntry(entity, timeout, now));
+        }
+    }
+    public void addAllAt(List<TimeEntry> entries, long maturityTime) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        TimeBucket teList = bucketFor(maturityTime);
+        for (TimeEntry tE : entries) {
+            tE.timeWhenAvailable = maturityTime;
+            teList.addLast(tE);
+        }
+    }
+    /*
+    Add entries already in order of maturity. Each run sharing a maturity is looked up on the map once and linked
+    onto its list in one pass, rather than a map lookup per entry.
+     */
+    public void addAllSorted(List<TimeEntry> entries) {
+        TimeBucket teList = null;
+        for (TimeEntry tE : entries) {
+            if (teList == null || teList.key != tE.timeWhenAvailable) {
+                teList = bucketFor(tE.timeWhenAvailable);
+            }
+            teList.addLast(tE);
+        }
+    }
+    public void visitAscending(Predicate<TimeEntry> visitor) {
+        for (TimeBucket teList : teMap.values()) {
+            if (!teList.visitForward(visitor)) {
+                return;
+            }
+        }
+    }
+    public void visitDescending(Predicate<TimeEntry> visitor) {
+        for (TimeBucket teList : teMap.descendingMap().values()) {
+            if (!teList.visitBackward(visitor)) {
+                return;
+            }
+        }
+    }
+    /*
+    Unlink the entry from its list. Should that empty the list then the time value is removed as a key.
+     */
+    public void remove(TimeEntry tE) {
+        if (tE.next == null) {
+            return;
+        }
+        TimeBucket emptied = TimeBucket.unlink(tE);
+        if (emptied != null) {
+            teMap.remove(emptied.key);
+            if (emptied == head) {
+                head = null;
+            }
+        }
     }
     /*
     Examine the first key. If it's not less than the current time then there's no
@@ -70,6 +154,13 @@ public class TimeDistQueue {
     of the list.
      */
     public TimeEntry getEntryAfter() throws TimeQueueException {
+        return getEntryAfter(clock.millis());
+    }
+    /*
+    As above but judging maturity against the time given. Callers pulling a number of entries at once read the
+    clock just the one time.
+     */
+    public TimeEntry getEntryAfter(long now) throws TimeQueueException {
         TimeEntry returnTE = null;
 
         /*
@@ -83,34 +174,51 @@ public class TimeDistQueue {
         mature enough to return. Get the first entry as that's guarateed to have the smallest maturirt
         value. If the maturity date is greater than the current date then we still have nothing to return.
          */
-        Map.Entry<Long, ArrayList<TimeEntry>> teList = teMap.firstEntry();
-        if (teList.getKey() > System.currentTimeMillis()) {
+        TimeBucket teList = first();
+        if (teList.key > now) {
             throw new TimeQueueException();
         }
         /*
         Ok,so we have something to return. Pull off the first element. If that leaves the
         list empty then we remove the key.
          */
-        returnTE = teList.getValue().get(0);
-        teList.getValue().remove(0);
-        if (teList.getValue().isEmpty()) {
-            teMap.remove(teList.getKey());
+        returnTE = teList.pollFirst();
+        if (teList.isEmpty()) {
+            teMap.remove(teList.key);
+            head = null;
         }
         return returnTE;
     }
-    public void dumpTimeEntries() {
-        Iterator teIterator = teMap.entrySet().iterator();
+    /*
+    The maturity time of the earliest entry, or Long.MAX_VALUE when there's nothing on the map. Long polling
+    readers use this to know how long to sleep.
+     */
+    public long getNextMaturity() {
+        if (teMap.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        return first().key;
+    }
 
+    /*
+    The list under the first key. The map must not be empty.
+     */
+    private TimeBucket first() {
+        if (head == null) {
+            head = teMap.firstEntry().getValue();
+        }
+        return head;
+    }
+    public void dumpTimeEntries() {
         if (teMap.isEmpty()) {
             System.out.println("Empty map!");
             return;
         }
-        while (teIterator.hasNext()) {
-            Map.Entry<Long, ArrayList<TimeEntry>> teList = (Map.Entry<Long, ArrayList<TimeEntry>>) teIterator.next();
+        for (Map.Entry<Long, TimeBucket> teList : teMap.entrySet()) {
             System.out.println();
             System.out.println("Key: " + teList.getKey());
-            for (TimeEntry te : teList.getValue()) {
-                System.out.println(te.queueEntryId);
+            for (TimeEntry te = teList.getValue().peekFirst(); te != teList.getValue(); te = te.next) {
+                System.out.println(te.getQueueEntryId());
             }
         }
     }
@@ -118,5 +226,11 @@ public class TimeDistQueue {
         return teMap.size();
     }
 
-}
 
+    /*
+    Each distinct maturity costs a tree node, its boxed key and a bucket.
+     */
+    public long estimatedOverheadBytes() {
+        return (long) teMap.size() * (Footprint.TREE_NODE + Footprint.BOXED_LONG + Footprint.TIME_BUCKET);
+    }
+}
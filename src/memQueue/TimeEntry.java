@@ -4,14 +4,44 @@ package memQueue;
  * Entries in the list of UU-identified objects.
  * <p>
  * Each entry has the UUID of the object and the time at which it will be available for use.
+ * <p>
+ * Entries on a QueueId are known by a Receipt rather than a UUID string and leave queueEntryId unset.
+ * <p>
+ * An entry is also the whole record of a queued object. It holds the object itself, the number of times it has been
+ * handed out by a read, and the links that place it on its list in the time index. A QueueId maps the id straight
+ * to the entry so a delete can take it off the time index there and then, and a read puts the very same entry back
+ * with its new maturity rather than making another.
  *
  * @author tonyaiello
  * @version 1.0
  */
 
 public class TimeEntry {
+    static final long NO_PAYLOAD = -1;
     String queueEntryId;
+    long receipt = 0;
     long timeWhenAvailable;
+    byte[] object = null;
+    /*
+    When the queue keeps its objects off the heap, object is null and these say where the bytes are.
+     */
+    long payload = NO_PAYLOAD;
+    int payloadLength = 0;
+    /*
+    On a durable queue the log segment holding the entry's ENQUEUE record.
+     */
+    int walSegment = -1;
+    /*
+    Where the object was written when spilled out of memory, its length then being in payloadLength.
+     */
+    long spilledAt = SpillStore.NOT_SPILLED;
+    int receiveCount = 0;
+    /*
+    The entry's priority level, 0 being the lowest. Only looked at by a PriorityTimeIndex.
+     */
+    byte priority = 0;
+    TimeEntry prev = null;
+    TimeEntry next = null;
 
 
     /**
@@ -26,10 +56,30 @@ public class TimeEntry {
      */
     public TimeEntry(String queueUUID, long timeout) {
         queueEntryId = queueUUID;
-        timeWhenAvailable = System.currentTimeMillis() + timeout;
+        timeWhenAvailable = QueueClock.monotonic().millis() + timeout;
+    }
+
+    /*
+    As above but taking the current time from the caller. Entries created in a group share the one clock read.
+     */
+    TimeEntry(String queueUUID, long timeout, long now) {
+        queueEntryId = queueUUID;
+        timeWhenAvailable = now + timeout;
+    }
+
+    /*
+    An entry for a queue, known by its receipt, holding the object and maturing at the time given.
+     */
+    TimeEntry(long receipt, byte[] object, long maturityTime) {
+        this.receipt = receipt;
+        this.object = object;
+        timeWhenAvailable = maturityTime;
     }
 
     public String getQueueEntryId() {
+        if (queueEntryId == null) {
+            return Receipt.toString(receipt);
+        }
         return queueEntryId;
     }
 }
@@ -0,0 +1,92 @@
+package memQueue;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * The time index of a queue: entity ids ordered by the time they mature.
+ * <p>
+ * A QueueId keeps the maturity of each of its entities here. The TimeDistQueue, a tree map keyed by maturity time,
+ * is the original structure. The TimingWheel is an alternative for queues with very many entries in flight. Which
+ * one a queue uses is chosen when it is created, see QueueConfig.
+ * <p>
+ * Entries sharing a maturity time are handed out in the order they were added.
+ * <p>
+ * The entries are linked onto the index through their own fields, see TimeBucket. So an entry may be put on, taken
+ * off and put back on again without any allocation, and one that is deleted may be taken out of the middle of the
+ * index directly.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public interface TimeIndex {
+
+    /*
+    Add an entity that is immediately mature.
+     */
+    void add(String entity);
+
+    /*
+    Add an entity that matures timeout milliseconds from now.
+     */
+    void add(String entity, long timeout);
+
+    /*
+    Add a group of entities that all mature timeout milliseconds from now, keeping them in the order given.
+     */
+    void addAll(Collection<String> entities, long timeout);
+
+    /*
+    Put an entry on the index at the maturity time it holds. The entry must not already be on the index.
+     */
+    void add(TimeEntry tE);
+
+    /*
+    Put a group of entries on the index all maturing at the time given, keeping them in the order given.
+     */
+    void addAllAt(List<TimeEntry> entries, long maturityTime);
+
+    /*
+    Put a group of entries on the index at the maturity times they hold. The entries must come in order of maturity,
+    those sharing a maturity in the order they should be handed out. Used to build an index in one go.
+     */
+    void addAllSorted(List<TimeEntry> entries);
+
+    /*
+    Hand the entries to the visitor soonest maturing first, or latest first, for as long as it answers true. The
+    visitor may look at and change an entry's other fields but must not add to or take from the index, nor change
+    a maturity. An index may give the order only roughly where telling it exactly would cost more than a walk of its
+    lists.
+     */
+    void visitAscending(Predicate<TimeEntry> visitor);
+
+    void visitDescending(Predicate<TimeEntry> visitor);
+
+    /*
+    Take an entry off the index wherever it is.
+     */
+    void remove(TimeEntry tE);
+
+    /*
+    Remove and return the earliest entry if it is mature. If nothing is mature a TimeQueueException is thrown.
+     */
+    TimeEntry getEntryAfter() throws TimeQueueException;
+
+    /*
+    As above but judging maturity against the time given rather than reading the clock.
+     */
+    TimeEntry getEntryAfter(long now) throws TimeQueueException;
+
+    /*
+    The time the earliest entry matures, or Long.MAX_VALUE when there are no entries. An index may answer with a
+    time a little earlier than the true one. A caller that sleeps until then and finds nothing mature simply asks
+    again.
+     */
+    long getNextMaturity();
+
+    /*
+    An estimate of the heap taken by the index's own structures, leaving out the entries on it. See Footprint.
+     */
+    long estimatedOverheadBytes();
+}
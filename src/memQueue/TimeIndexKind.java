@@ -0,0 +1,18 @@
+package memQueue;
+
+/**
+ * The kinds of time index a queue may be built on.
+ * <p>
+ * TREE_MAP is the TimeDistQueue, a sorted map from maturity time to the entries sharing it.
+ * TIMING_WHEEL is the TimingWheel, a hierarchical timing wheel with constant time insert and expiry.
+ * <p>
+ * A queue holding very many entries scheduled well ahead, see QueueId.enqueueAt, is better on the wheel. The tree
+ * map grows deeper with every distinct maturity, and each enqueue at the head pays for that depth.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public enum TimeIndexKind {
+    TREE_MAP,
+    TIMING_WHEEL
+}
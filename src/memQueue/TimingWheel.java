@@ -0,0 +1,351 @@
+package memQueue;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * A hierarchical timing wheel of time entries.
+ * <p>
+ * This is an alternative to the TimeDistQueue for queues holding a great many entries. Rather than a sorted map
+ * keyed by maturity time the entries are dropped into the slots of a set of wheels, one millisecond tick per slot
+ * on the lowest wheel. Adding an entry is a matter of working out its slot and linking it onto the end of that
+ * slot's list, so it costs the same however many entries are held. Entries sharing a tick keep the order they were
+ * added in.
+ * <p>
+ * There are four wheels of 256 slots. A slot on wheel 0 is one tick, a slot on wheel 1 is 256 ticks, on wheel 2
+ * 65536 ticks and on wheel 3 2^24 ticks, so together they span 2^32 milliseconds, about 49 days. Anything further
+ * out than that goes on the overflow list.
+ * <p>
+ * An entry is placed on the lowest wheel whose current turn it falls in. So an entry maturing in the same 256 tick
+ * turn as the current tick goes on wheel 0, one maturing in a later turn of wheel 0 but the same turn of wheel 1
+ * goes on wheel 1, and so on. As the current tick reaches the start of a slot on a higher wheel the entries there
+ * are cascaded down onto the lower wheels. When the current tick passes a slot on wheel 0 the entries there are
+ * mature and the whole slot is moved onto the ready list in one step. An entry is cascaded at most once per wheel,
+ * which is what makes expiry constant time once amortized.
+ * <p>
+ * Each wheel keeps a bitmap of the slots holding entries so empty stretches of time are skipped over rather than
+ * stepped through a tick at a time. A deleted entry is unlinked from its slot directly, clearing the slot's bit if
+ * it was the last one there.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class TimingWheel implements TimeIndex {
+    static final int WHEEL_BITS = 8;
+    static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    static final int LEVELS = 4;
+
+    private String name;
+    private final QueueClock clock;
+    private TimeBucket[][] wheels;
+    private long[][] occupied;
+    private TimeBucket ready;
+    private TimeBucket overflow;
+    /*
+    Every tick before this one has been expired onto the ready list.
+     */
+    private long currentTick;
+    private int size = 0;
+
+    public TimingWheel(String name) {
+        this(name, QueueClock.monotonic());
+    }
+
+    /*
+    A wheel starting at the clock's present time and reading the time from it when it isn't handed the time.
+     */
+    public TimingWheel(String name, QueueClock clock) {
+        this(name, clock, clock.millis());
+    }
+
+    TimingWheel(String name, long startTick) {
+        this(name, QueueClock.monotonic(), startTick);
+    }
+
+    private TimingWheel(String name, QueueClock clock, long startTick) {
+        this.name = name;
+        this.clock = clock;
+        wheels = new TimeBucket[LEVELS][WHEEL_SIZE];
+        occupied = new long[LEVELS][WHEEL_SIZE / 64];
+        ready = new TimeBucket(-1);
+        overflow = new TimeBucket(-1);
+        currentTick = startTick;
+    }
+
+    public void add(String entity) {
+        place(new TimeEntry(entity, 0, clock.millis()));
+        size++;
+    }
+
+    public void add(String entity, long timeout) {
+        place(new TimeEntry(entity, timeout, clock.millis()));
+        size++;
+    }
+
+    public void addAll(Collection<String> entities, long timeout) {
+        long now = clock.millis();
+        for (String entity : entities) {
+            place(new TimeEntry(entity, timeout, now));
+        }
+        size += entities.size();
+    }
+
+    public void add(TimeEntry tE) {
+        place(tE);
+        size++;
+    }
+
+    public void addAllAt(List<TimeEntry> entries, long maturityTime) {
+        for (TimeEntry tE : entries) {
+            tE.timeWhenAvailable = maturityTime;
+            place(tE);
+        }
+        size += entries.size();
+    }
+
+    public void addAllSorted(List<TimeEntry> entries) {
+        for (TimeEntry tE : entries) {
+            place(tE);
+        }
+        size += entries.size();
+    }
+
+    /*
+    Walk the ready list, then each wheel from the lowest up taking its slots in order from the current one, then the
+    overflow list. Every entry on a wheel matures before any on the wheel above, but within a slot of a higher wheel
+    the entries are in the order they were added rather than by maturity, so the order is only exact on wheel 0.
+     */
+    public void visitAscending(Predicate<TimeEntry> visitor) {
+        if (!ready.visitForward(visitor)) {
+            return;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            int from = (int) (currentTick >> (WHEEL_BITS * level)) & WHEEL_MASK;
+            for (int slot = nextOccupied(level, from); slot >= 0; slot = nextOccupied(level, slot + 1)) {
+                if (!wheels[level][slot].visitForward(visitor)) {
+                    return;
+                }
+            }
+        }
+        overflow.visitForward(visitor);
+    }
+
+    public void visitDescending(Predicate<TimeEntry> visitor) {
+        if (!overflow.visitBackward(visitor)) {
+            return;
+        }
+        for (int level = LEVELS - 1; level >= 0; level--) {
+            int from = (int) (currentTick >> (WHEEL_BITS * level)) & WHEEL_MASK;
+            for (int slot = WHEEL_MASK; slot >= from; slot--) {
+                if (isOccupied(level, slot) && !wheels[level][slot].visitBackward(visitor)) {
+                    return;
+                }
+            }
+        }
+        ready.visitBackward(visitor);
+    }
+
+    /*
+    Unlink the entry from its slot, or from the ready or overflow list. Should that empty a slot its bit is cleared.
+     */
+    public void remove(TimeEntry tE) {
+        if (tE.next == null) {
+            return;
+        }
+        TimeBucket emptied = TimeBucket.unlink(tE);
+        if (emptied != null && emptied.key >= 0) {
+            int level = (int) emptied.key >> WHEEL_BITS;
+            int slot = (int) emptied.key & WHEEL_MASK;
+            occupied[level][slot >> 6] &= ~(1L << slot);
+        }
+        size--;
+    }
+
+    public TimeEntry getEntryAfter() throws TimeQueueException {
+        return getEntryAfter(clock.millis());
+    }
+
+    public TimeEntry getEntryAfter(long now) throws TimeQueueException {
+        if (now >= currentTick) {
+            advance(now + 1);
+        }
+        TimeEntry tE = ready.pollFirst();
+        if (tE == null) {
+            throw new TimeQueueException();
+        }
+        size--;
+        return tE;
+    }
+
+    /*
+    Exact when the earliest entry is on the ready list or wheel 0. When it's on a higher wheel or the overflow list
+    the start of its slot is given instead, which is no later than the true time.
+     */
+    public long getNextMaturity() {
+        if (!ready.isEmpty()) {
+            return ready.peekFirst().timeWhenAvailable;
+        }
+        return nextEvent();
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /*
+    Put an entry on the lowest wheel whose current turn it falls in. Anything already due goes straight on the
+    ready list.
+     */
+    private void place(TimeEntry tE) {
+        long tick = tE.timeWhenAvailable;
+        if (tick < currentTick) {
+            ready.addLast(tE);
+            return;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            int turnShift = WHEEL_BITS * (level + 1);
+            if ((tick >> turnShift) == (currentTick >> turnShift)) {
+                int slot = (int) (tick >> (WHEEL_BITS * level)) & WHEEL_MASK;
+                TimeBucket bucket = wheels[level][slot];
+                if (bucket == null) {
+                    bucket = new TimeBucket((level << WHEEL_BITS) | slot);
+                    wheels[level][slot] = bucket;
+                }
+                bucket.addLast(tE);
+                occupied[level][slot >> 6] |= 1L << slot;
+                return;
+            }
+        }
+        overflow.addLast(tE);
+    }
+
+    /*
+    Move the current tick up to target, expiring every tick before it onto the ready list. Only the ticks at which
+    something happens are visited: a wheel 0 slot holding entries, or the start of a higher slot that has entries
+    to cascade.
+     */
+    private void advance(long target) {
+        while (true) {
+            long event = nextEvent();
+            if (event >= target) {
+                if (target > currentTick) {
+                    moveTo(target);
+                }
+                return;
+            }
+            if (event > currentTick) {
+                moveTo(event);
+            }
+            int slot = (int) currentTick & WHEEL_MASK;
+            if (isOccupied(0, slot)) {
+                occupied[0][slot >> 6] &= ~(1L << slot);
+                ready.appendAll(wheels[0][slot]);
+            }
+            moveTo(currentTick + 1);
+        }
+    }
+
+    /*
+    Set the current tick. Arriving at the start of a slot on a higher wheel means that slot's entries are now
+    in the current turn of the wheel below, so they are cascaded down, highest wheel first. Doing this on arrival
+    means entries added from here on land behind the ones that were already waiting.
+     */
+    private void moveTo(long tick) {
+        currentTick = tick;
+        if ((tick & WHEEL_MASK) != 0) {
+            return;
+        }
+        if ((tick & ((1L << (WHEEL_BITS * LEVELS)) - 1)) == 0 && !overflow.isEmpty()) {
+            cascade(overflow.takeAll());
+        }
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((tick & ((1L << (WHEEL_BITS * level)) - 1)) == 0) {
+                int slot = (int) (tick >> (WHEEL_BITS * level)) & WHEEL_MASK;
+                if (isOccupied(level, slot)) {
+                    occupied[level][slot >> 6] &= ~(1L << slot);
+                    cascade(wheels[level][slot].takeAll());
+                }
+            }
+        }
+    }
+
+    /*
+    Re-place a detached chain of entries against the current tick.
+     */
+    private void cascade(TimeEntry tE) {
+        while (tE != null) {
+            TimeEntry next = tE.next;
+            place(tE);
+            tE = next;
+        }
+    }
+
+    /*
+    The next tick at or after the current one at which something happens, or Long.MAX_VALUE if nothing is held.
+    On wheel 0 the current slot is still to be expired so the search starts there. On the higher wheels the current
+    slot was cascaded on arriving in it so the search starts at the one after it. Every entry on a wheel is due before
+    any entry on the wheel above, so the first wheel with anything to offer gives the answer.
+     */
+    private long nextEvent() {
+        for (int level = 0; level < LEVELS; level++) {
+            int levelShift = WHEEL_BITS * level;
+            int turnShift = levelShift + WHEEL_BITS;
+            int from = (int) (currentTick >> levelShift) & WHEEL_MASK;
+            if (level > 0) {
+                from++;
+            }
+            int slot = nextOccupied(level, from);
+            if (slot >= 0) {
+                return ((currentTick >> turnShift) << turnShift) | ((long) slot << levelShift);
+            }
+        }
+        if (!overflow.isEmpty()) {
+            int turnShift = WHEEL_BITS * LEVELS;
+            return ((currentTick >> turnShift) + 1) << turnShift;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private boolean isOccupied(int level, int slot) {
+        return (occupied[level][slot >> 6] & (1L << slot)) != 0;
+    }
+
+    /*
+    The first occupied slot of the wheel at or after from, or -1 if there is none.
+     */
+    private int nextOccupied(int level, int from) {
+        if (from >= WHEEL_SIZE) {
+            return -1;
+        }
+        long[] bits = occupied[level];
+        int word = from >> 6;
+        long w = bits[word] & (-1L << from);
+        while (true) {
+            if (w != 0) {
+                return (word << 6) + Long.numberOfTrailingZeros(w);
+            }
+            if (++word == bits.length) {
+                return -1;
+            }
+            w = bits[word];
+        }
+    }
+
+    /*
+    The wheels and their occupancy bits are a fixed cost. Buckets are made the first time a slot is used and kept.
+     */
+    public long estimatedOverheadBytes() {
+        long bytes = Footprint.refArray(LEVELS) + Footprint.refArray(LEVELS) + 2 * Footprint.TIME_BUCKET;
+        for (int level = 0; level < LEVELS; level++) {
+            bytes += Footprint.refArray(WHEEL_SIZE) + Footprint.longArray(WHEEL_SIZE / 64);
+            for (TimeBucket bucket : wheels[level]) {
+                if (bucket != null) {
+                    bytes += Footprint.TIME_BUCKET;
+                }
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,44 @@
+package memQueue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock that only moves when told to, see QueueClock.
+ * <p>
+ * A queue made with one treats the time it gives as now. Advancing it by an hour makes everything that was due in
+ * the hour mature at once, with nobody waiting. Waits measured by the queue itself, the long poll in read and the
+ * wait for room in a budget, still pass in real time.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class VirtualClock implements QueueClock {
+    private volatile long now;
+
+    /*
+    A clock starting at the present wall clock time, so times taken from the wall clock still make sense against it.
+     */
+    public VirtualClock() {
+        this(System.currentTimeMillis());
+    }
+
+    public VirtualClock(long startMillis) {
+        now = startMillis;
+    }
+
+    public long millis() {
+        return now;
+    }
+
+    public synchronized void set(long millis) {
+        now = millis;
+    }
+
+    public synchronized void advance(long millis) {
+        now += millis;
+    }
+
+    public void advance(long duration, TimeUnit unit) {
+        advance(unit.toMillis(duration));
+    }
+}
@@ -0,0 +1,50 @@
+package memQueue;
+
+import java.util.function.Consumer;
+
+/**
+ * The settings a QueueWorker is created with.
+ * <p>
+ * As with QueueConfig the fields are made public so getters and setters are not necessary, and they're read once
+ * when the worker is made.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class WorkerConfig {
+    /*
+    The most handlers running at once. Entries are only read when there's a handler free to take them.
+     */
+    public int concurrency = 256;
+    /*
+    The most entries read at a time.
+     */
+    public int batchSize = 32;
+    /*
+    The timeout entries are read with. A handler should finish well inside it, as an entry whose timeout runs out
+    is handed out to another handler while the first is still at it.
+     */
+    public long visibilityTimeoutMillis = 30000;
+    /*
+    How long an entry stays hidden after its handler answers RETRY, and after it answers FAILURE or throws.
+     */
+    public long retryDelayMillis = 0;
+    public long failureDelayMillis = 30000;
+    /*
+    How long a read waits for entries before looking again.
+     */
+    public long pollWaitMillis = 1000;
+    /*
+    Run handlers on virtual threads where the Java runtime has them. Without them, or with this off, handlers run on
+    a pool of platform threads growing to the concurrency.
+     */
+    public boolean virtualThreads = true;
+    /*
+    Told, on the dispatcher thread, of each read that fails unexpectedly, before the dispatcher backs off. Null, the
+    default, leaves the failures to be found through getDispatchFailures and getLastDispatchFailure.
+     */
+    public Consumer<Throwable> dispatchFailureHandler = null;
+
+    public WorkerConfig() {
+    }
+}
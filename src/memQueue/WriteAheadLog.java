@@ -0,0 +1,562 @@
+package memQueue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A write ahead log making a queue survive a restart.
+ * <p>
+ * Every change to a durable queue is appended to the log as a record: an ENQUEUE holding the receipt, maturity and
+ * object, a VISIBILITY when a read sets a new maturity, and a DEQUEUE when the entry is deleted. Replaying the
+ * records in order gives back the entries that were live, with their receipts, objects and maturities, and the
+ * number of times each had been handed out. An ENQUEUE has no receive count to give and holds the entry's priority
+ * in its place.
+ * <p>
+ * The log is a run of segment files in the queue's directory, each memory mapped, so appending a record is a copy
+ * into the mapping. A record that won't fit in the current segment starts a new one. A record is laid out as its
+ * length, a CRC32 of the rest, then the type, receipt, time, receive count, object length and object. A length of
+ * zero, the end of the file or a bad CRC marks the end of a segment, so a record half written when the process died
+ * is dropped on recovery rather than read as garbage.
+ * <p>
+ * Group commit:
+ * Appending doesn't wait for the disk. A caller wanting its record durable calls awaitDurable with the position the
+ * append handed back. The first caller to find nothing being synced becomes the syncer. It forces every segment
+ * written since the last sync to disk and then wakes everyone whose records that covered. Callers arriving while it
+ * forces wait and are covered by the next sync, so a single force serves however many callers piled up. The syncer
+ * may also hold off for up to the sync interval, or until the sync batch of records has built up, so as to gather
+ * more per force. Enqueues and dequeues wait for their record to be durable. VISIBILITY records are not waited on,
+ * losing one in a crash only means the entry may be handed out again sooner.
+ * <p>
+ * Reclaiming:
+ * Each segment counts the live entries whose ENQUEUE it holds. A DEQUEUE counts its entry off. Once a segment's
+ * count is zero, the DEQUEUE doing that is durable and every segment before it is also gone, the segment's file is
+ * deleted. Only ever removing the oldest segment matters as later records refer back to entries in earlier ones.
+ * A segment dropped out of order could take with it the DEQUEUE of an entry in an older segment still kept.
+ * <p>
+ * Checkpoints:
+ * A long lived entry holds on to its segment, and so every segment after it, for as long as it lives. A Checkpoint
+ * gets around that. Once a checkpoint is on disk every segment before its tail is deleted whatever it holds, and the
+ * entries those segments held count against the checkpoint instead. The checkpoint stands in front of the oldest
+ * segment, so no segment is reclaimed while the checkpoint still holds live entries. The next checkpoint takes them
+ * over. On opening, the newest checkpoint is loaded and only the segments of its tail are replayed.
+ * <p>
+ * A position in the log is the segment number in the high 32 bits and the offset into the segment in the low 32.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+class WriteAheadLog {
+    static final byte ENQUEUE = 1;
+    static final byte VISIBILITY = 2;
+    static final byte DEQUEUE = 3;
+
+    static final int MAGIC = 0x54514c47;
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 16;
+    /*
+    Length and CRC, then type, receipt, time, receive count and object length.
+     */
+    static final int RECORD_PREFIX = 8;
+    static final int RECORD_FIXED = 1 + 8 + 8 + 4 + 4;
+
+    /*
+    One file of the log. Only the segment being written and those not yet synced have a mapping.
+     */
+    static final class Segment {
+        final int number;
+        final File file;
+        MappedByteBuffer map;
+        FileChannel channel;
+        int live = 0;
+        long releasedAt = 0;
+        /*
+        Set once a checkpoint covers everything here. The segment is deleted as soon as it's synced.
+         */
+        boolean superseded = false;
+
+        Segment(int number, File file) {
+            this.number = number;
+            this.file = file;
+        }
+    }
+
+    private final File directory;
+    private final int shards;
+    private final int segmentBytes;
+    private final long syncNanos;
+    private final int syncBatch;
+
+    private final ReentrantLock walLock = new ReentrantLock();
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    private final Condition syncDue = walLock.newCondition();
+    private final Condition synced = walLock.newCondition();
+    private final ArrayList<Segment> segments = new ArrayList<Segment>();
+    private final CRC32 crc = new CRC32();
+    private Segment current;
+    private long appendPosition;
+    private long durablePosition;
+    private int firstUnsynced = 0;
+    private int pendingRecords = 0;
+    private boolean syncing = false;
+    /*
+    Set once the log has been deleted. A caller still waiting on a record has nothing left to wait for.
+     */
+    private boolean deleted = false;
+    private long syncCount = 0;
+    /*
+    The live entries held by the checkpoint rather than a segment, and where the last DEQUEUE of one was logged.
+     */
+    private int checkpointLive = 0;
+    private long checkpointReleasedAt = 0;
+
+    /*
+    Open the log in the directory. Nothing is read until recover is called.
+     */
+    WriteAheadLog(File directory, int shards, QueueConfig config) throws IOException {
+        this.directory = directory;
+        this.shards = shards;
+        segmentBytes = config.walSegmentBytes;
+        syncNanos = TimeUnit.MILLISECONDS.toNanos(config.walSyncIntervalMillis);
+        syncBatch = config.walSyncBatch;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't make log directory " + directory);
+        }
+    }
+
+    /*
+    Put the queue's shards back as the log left them: load the newest checkpoint straight into the shards, replay
+    the segments of its tail over them and then start a new segment to write to. Entries go back in the slots their
+    receipts name, so the slot tables serve as the index of receipts while replaying. Once done each shard builds
+    its time index in one go.
+     */
+    void recover(QueueShard[] queueShards) throws IOException {
+        int next = 0;
+        File checkpoint = Checkpoint.latest(directory);
+        if (checkpoint != null) {
+            next = Checkpoint.load(checkpoint, queueShards);
+        }
+        Checkpoint.deleteOthers(directory, checkpoint);
+        for (int number : existingSegments()) {
+            if (number < next) {
+                segmentFile(number).delete();
+                continue;
+            }
+            Segment segment = new Segment(number, segmentFile(number));
+            replay(segment, queueShards);
+            segments.add(segment);
+            next = number + 1;
+        }
+        for (QueueShard shard : queueShards) {
+            for (int slot = 0; slot < shard.slotsInUse(); slot++) {
+                TimeEntry entry = shard.slotEntry(slot);
+                if (entry == null) {
+                    continue;
+                }
+                Segment segment = segmentNumbered(entry.walSegment);
+                if (segment == null) {
+                    checkpointLive++;
+                } else {
+                    segment.live++;
+                }
+            }
+            shard.finishRestore();
+        }
+        current = newSegment(next, segmentBytes);
+        appendPosition = position(current.number, HEADER_BYTES);
+        durablePosition = appendPosition;
+        firstUnsynced = segments.size() - 1;
+        reclaim();
+    }
+
+    long logEnqueue(long receipt, long maturityTime, int priority, byte[] object) {
+        return append(ENQUEUE, receipt, maturityTime, priority, object, -1);
+    }
+
+    long logVisibility(long receipt, long maturityTime, int receiveCount) {
+        return append(VISIBILITY, receipt, maturityTime, receiveCount, null, -1);
+    }
+
+    /*
+    Log the delete and count the entry off the segment holding its ENQUEUE.
+     */
+    long logDequeue(long receipt, int segment) {
+        return append(DEQUEUE, receipt, 0, 0, null, segment);
+    }
+
+    static int segmentOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    /*
+    Wait until everything up to and including the record at position is on disk.
+     */
+    void awaitDurable(long position) {
+        boolean interrupted = false;
+        walLock.lock();
+        try {
+            while (!deleted && durablePosition <= position) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                try {
+                    long nanos = syncNanos;
+                    while (pendingRecords < syncBatch && nanos > 0) {
+                        try {
+                            nanos = syncDue.awaitNanos(nanos);
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                            break;
+                        }
+                    }
+                    sync();
+                } finally {
+                    syncing = false;
+                    synced.signalAll();
+                }
+                reclaim();
+            }
+        } finally {
+            walLock.unlock();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    long getSyncCount() {
+        walLock.lock();
+        try {
+            return syncCount;
+        } finally {
+            walLock.unlock();
+        }
+    }
+
+    int getSegmentCount() {
+        walLock.lock();
+        try {
+            return segments.size();
+        } finally {
+            walLock.unlock();
+        }
+    }
+
+    /*
+    Write a checkpoint of the shards and trim the log back to its tail. One checkpoint is written at a time.
+     */
+    void checkpoint(QueueShard[] queueShards) throws IOException {
+        checkpointLock.lock();
+        try {
+            int startSegment = beginCheckpoint();
+            File checkpoint = Checkpoint.write(directory, startSegment, queueShards);
+            finishCheckpoint(startSegment, checkpoint);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /*
+    Start a new segment for a checkpoint's tail to begin at, returning its number.
+     */
+    private int beginCheckpoint() {
+        walLock.lock();
+        try {
+            if ((int) appendPosition > HEADER_BYTES) {
+                current = newSegment(current.number + 1, segmentBytes);
+                appendPosition = position(current.number, HEADER_BYTES);
+            }
+            return current.number;
+        } finally {
+            walLock.unlock();
+        }
+    }
+
+    /*
+    The checkpoint whose tail starts at startSegment is on disk. The segments before the tail are superseded, the
+    entries they held are handed over to the checkpoint and the segments deleted once synced. Any older checkpoint
+    is deleted.
+     */
+    private void finishCheckpoint(int startSegment, File checkpoint) {
+        walLock.lock();
+        try {
+            for (Segment segment : segments) {
+                if (segment.number >= startSegment || segment.superseded) {
+                    continue;
+                }
+                segment.superseded = true;
+                checkpointLive += segment.live;
+                checkpointReleasedAt = Math.max(checkpointReleasedAt, segment.releasedAt);
+                segment.live = 0;
+            }
+            Checkpoint.deleteOthers(directory, checkpoint);
+            reclaim();
+        } finally {
+            walLock.unlock();
+        }
+    }
+
+    /*
+    Drop the whole log. Used when the queue is deleted. A sync under way has let the lock go while it forces, and
+    is waited out so the segments aren't closed under it.
+     */
+    void delete() {
+        walLock.lock();
+        try {
+            while (syncing) {
+                synced.awaitUninterruptibly();
+            }
+            deleted = true;
+            for (Segment segment : segments) {
+                closeSegment(segment);
+                segment.file.delete();
+            }
+            segments.clear();
+            firstUnsynced = 0;
+            Checkpoint.deleteOthers(directory, null);
+            directory.delete();
+        } finally {
+            walLock.unlock();
+        }
+    }
+
+    private long append(byte type, long receipt, long time, int receiveCount, byte[] object, int releases) {
+        int objectLength = object == null ? -1 : object.length;
+        int bodyBytes = RECORD_FIXED + Math.max(objectLength, 0);
+        walLock.lock();
+        try {
+            int offset = (int) appendPosition;
+            if (offset + RECORD_PREFIX + bodyBytes > current.map.capacity()) {
+                current = newSegment(current.number + 1,
+                        Math.max(segmentBytes, HEADER_BYTES + RECORD_PREFIX + bodyBytes));
+                offset = HEADER_BYTES;
+            }
+            ByteBuffer map = current.map;
+            int bodyAt = offset + RECORD_PREFIX;
+            map.position(bodyAt);
+            map.put(type).putLong(receipt).putLong(time).putInt(receiveCount).putInt(objectLength);
+            if (object != null) {
+                map.put(object);
+            }
+            ByteBuffer body = map.duplicate();
+            body.limit(bodyAt + bodyBytes).position(bodyAt);
+            crc.reset();
+            crc.update(body);
+            map.putInt(offset + 4, (int) crc.getValue());
+            map.putInt(offset, bodyBytes);
+            long position = position(current.number, offset);
+            appendPosition = position(current.number, bodyAt + bodyBytes);
+            if (type == ENQUEUE) {
+                current.live++;
+            }
+            if (type == DEQUEUE) {
+                Segment released = segmentNumbered(releases);
+                if (released != null && !released.superseded) {
+                    released.live--;
+                    released.releasedAt = position;
+                } else {
+                    checkpointLive--;
+                    checkpointReleasedAt = position;
+                }
+            }
+            if (++pendingRecords >= syncBatch) {
+                syncDue.signal();
+            }
+            return position;
+        } finally {
+            walLock.unlock();
+        }
+    }
+
+    /*
+    Force every segment written since the last sync. Called holding the lock with syncing set. The lock is let go
+    while forcing so appends carry on, and whatever they add is left for the next sync.
+     */
+    private void sync() {
+        long target = appendPosition;
+        ArrayList<Segment> toForce = new ArrayList<Segment>(segments.subList(firstUnsynced, segments.size()));
+        pendingRecords = 0;
+        walLock.unlock();
+        try {
+            for (Segment segment : toForce) {
+                segment.map.force();
+            }
+        } finally {
+            walLock.lock();
+        }
+        /*
+        Segments before the last one forced are full and now on disk, their mappings aren't needed any more. Nothing
+        at or after firstUnsynced is deleted while the lock was let go so they are all still on the list.
+         */
+        Segment last = toForce.get(toForce.size() - 1);
+        for (Segment segment : toForce) {
+            if (segment != last) {
+                closeSegment(segment);
+            }
+        }
+        firstUnsynced = segments.indexOf(last);
+        durablePosition = target;
+        syncCount++;
+    }
+
+    /*
+    Delete the oldest segments for as long as they are covered by a checkpoint, or hold no live entry and the
+    DEQUEUE that emptied them is durable. Only synced segments are deleted, so none is pulled out from under a sync
+    in progress, and the segment being written is always kept.
+     */
+    private void reclaim() {
+        while (firstUnsynced > 0) {
+            Segment oldest = segments.get(0);
+            if (!oldest.superseded && (checkpointLive > 0 || checkpointReleasedAt >= durablePosition
+                    || oldest.live > 0 || oldest.releasedAt >= durablePosition)) {
+                return;
+            }
+            closeSegment(oldest);
+            oldest.file.delete();
+            segments.remove(0);
+            firstUnsynced--;
+        }
+    }
+
+    private Segment newSegment(int number, int capacity) {
+        Segment segment = new Segment(number, segmentFile(number));
+        try {
+            RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+            segment.channel = file.getChannel();
+            segment.map = segment.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't make log segment " + segment.file, e);
+        }
+        segment.map.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, shards);
+        segments.add(segment);
+        return segment;
+    }
+
+    private void closeSegment(Segment segment) {
+        segment.map = null;
+        if (segment.channel != null) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            segment.channel = null;
+        }
+    }
+
+    /*
+    Apply the records of an existing segment to the shards being recovered.
+     */
+    private void replay(Segment segment, QueueShard[] queueShards) throws IOException {
+        MappedByteBuffer map;
+        try (RandomAccessFile file = new RandomAccessFile(segment.file, "r")) {
+            map = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        }
+        if (map.limit() < HEADER_BYTES || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+            throw new IOException(segment.file + " is not a queue log segment");
+        }
+        if (map.getInt(8) != shards) {
+            throw new IOException(segment.file + " was written by a queue of " + map.getInt(8) + " shards");
+        }
+        int offset = HEADER_BYTES;
+        while (offset + RECORD_PREFIX + RECORD_FIXED <= map.limit()) {
+            int bodyBytes = map.getInt(offset);
+            int bodyAt = offset + RECORD_PREFIX;
+            if (bodyBytes < RECORD_FIXED || bodyAt + bodyBytes > map.limit()) {
+                break;
+            }
+            ByteBuffer body = map.duplicate();
+            body.limit(bodyAt + bodyBytes).position(bodyAt);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != map.getInt(offset + 4)) {
+                break;
+            }
+            map.position(bodyAt);
+            byte type = map.get();
+            long receipt = map.getLong();
+            long time = map.getLong();
+            int receiveCount = map.getInt();
+            int objectLength = map.getInt();
+            QueueShard shard = queueShards[QueueShard.shardOf(receipt, queueShards.length)];
+            TimeEntry entry = shard.lookupEntry(receipt);
+            if (type == ENQUEUE) {
+                if (entry == null) {
+                    byte[] object = null;
+                    if (objectLength >= 0) {
+                        object = new byte[objectLength];
+                        map.get(object);
+                    }
+                    entry = new TimeEntry(receipt, object, time);
+                    entry.walSegment = segment.number;
+                    entry.priority = (byte) receiveCount;
+                    shard.restoreEntry(entry);
+                } else {
+                    /*
+                    Already there from the checkpoint, which caught it after this record was written.
+                     */
+                    entry.walSegment = segment.number;
+                    entry.timeWhenAvailable = time;
+                    entry.receiveCount = 0;
+                }
+            } else if (type == VISIBILITY) {
+                if (entry != null) {
+                    entry.timeWhenAvailable = time;
+                    entry.receiveCount = receiveCount;
+                }
+            } else if (type == DEQUEUE) {
+                if (entry != null) {
+                    shard.discardRestored(entry);
+                }
+            }
+            offset = bodyAt + bodyBytes;
+        }
+    }
+
+    private Segment segmentNumbered(int number) {
+        if (segments.isEmpty()) {
+            return null;
+        }
+        int index = number - segments.get(0).number;
+        if (index < 0 || index >= segments.size()) {
+            return null;
+        }
+        return segments.get(index);
+    }
+
+    private int[] existingSegments() {
+        String[] names = directory.list();
+        if (names == null) {
+            return new int[0];
+        }
+        int[] numbers = new int[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (name.startsWith("segment-") && name.endsWith(".wal")) {
+                numbers[count++] = Integer.parseInt(name.substring(8, name.length() - 4), 16);
+            }
+        }
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    private File segmentFile(int number) {
+        return new File(directory, String.format("segment-%08x.wal", number));
+    }
+
+    private static long position(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+}
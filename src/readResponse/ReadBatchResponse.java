@@ -0,0 +1,70 @@
+package readResponse;
+
+import java.nio.ByteBuffer;
+import memQueue.QueueId;
+import memQueue.Receipt;
+
+/**
+ * ReadBatchResponse carries the entries handed out by a single batch read.
+ *
+ * Rather than one ReadResponse per entry the receipts and objects are kept in two parallel arrays. Entry i of the
+ * batch is receipts[i] with object objects[i]. Only the first count slots of the arrays are filled.
+ *
+ * From a queue keeping its objects off the heap the objects come as read only ByteBuffers instead, in buffers[i],
+ * and objects[i] is null. buffers is only made once the first such entry is added. As with ReadResponse a buffer is
+ * only good until its entry is deleted.
+ *
+ * As with ReadResponse the fields are made public so getters and setters are not necessary.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class ReadBatchResponse {
+    public QueueId queueId;
+    public int count;
+    public long[] receipts;
+    public byte[][] objects;
+    public ByteBuffer[] buffers = null;
+
+    public ReadBatchResponse(QueueId qId, int capacity) {
+        queueId = qId;
+        count = 0;
+        receipts = new long[capacity];
+        objects = new byte[capacity][];
+    }
+
+    /*
+    Append an entry to the batch. The arrays are sized by the reader so there's always room.
+     */
+    public void add(long receipt, byte[] entryObject) {
+        receipts[count] = receipt;
+        objects[count] = entryObject;
+        count++;
+    }
+
+    public void add(long receipt, ByteBuffer entryBuffer) {
+        if (buffers == null) {
+            buffers = new ByteBuffer[receipts.length];
+        }
+        receipts[count] = receipt;
+        buffers[count] = entryBuffer;
+        count++;
+    }
+
+    /*
+    The string form of the receipt of entry i.
+     */
+    public String getQueueEntityId(int i) {
+        return Receipt.toString(receipts[i]);
+    }
+
+    /*
+    Hand out entry i as a stand alone ReadResponse for those that would rather work one entry at a time.
+     */
+    public ReadResponse get(int i) {
+        if (buffers != null && buffers[i] != null) {
+            return new ReadResponse(queueId, receipts[i], buffers[i]);
+        }
+        return new ReadResponse(queueId, receipts[i], objects[i]);
+    }
+}
@@ -1,24 +1,112 @@
 package readResponse;
 
+import java.nio.ByteBuffer;
 import memQueue.QueueId;
+import memQueue.Receipt;
 
 /**
  * ReadResponse is the common structure for passing information between the packages.
  *
  * The fields are made public so getters and setters are not necessary.
  *
+ * The entry is identified by its receipt, a long. Its string form is only built if getQueueEntityId is called.
+ *
+ * A queue keeping its objects off the heap hands them out as a read only ByteBuffer over its own storage rather than
+ * as a byte array, so object is null and buffer is set. The buffer is only good until the entry is deleted, after
+ * which its memory goes to some other entry. Anything wanting the bytes for longer should copy them out with copyTo
+ * or getBytes. getBuffer, getLength, copyTo and getBytes work the same whichever way the object is held.
+ *
  * @author tonyaiello
  * @version 1.0
  */
 public class ReadResponse {
     public QueueId queueId;
-    public String queueEntityId;
+    public long receipt;
     public byte[] object;
+    public ByteBuffer buffer;
+    private String queueEntityId;
 
     public ReadResponse(QueueId qId, String qEntryId, byte[] entryObject) {
         queueId = qId;
         queueEntityId = qEntryId;
+        receipt = Receipt.parse(qEntryId);
         object = entryObject;
     }
-}
 
+    public ReadResponse(QueueId qId, long entryReceipt, byte[] entryObject) {
+        queueId = qId;
+        receipt = entryReceipt;
+        object = entryObject;
+    }
+
+    public ReadResponse(QueueId qId, long entryReceipt, ByteBuffer entryBuffer) {
+        queueId = qId;
+        receipt = entryReceipt;
+        buffer = entryBuffer;
+    }
+
+    /*
+    A read only view of the object. Each call gets a view of its own so position and limit may be changed freely.
+     */
+    public ByteBuffer getBuffer() {
+        if (buffer != null) {
+            return buffer.duplicate();
+        }
+        if (object == null) {
+            return null;
+        }
+        return ByteBuffer.wrap(object).asReadOnlyBuffer();
+    }
+
+    public int getLength() {
+        if (buffer != null) {
+            return buffer.remaining();
+        }
+        return object == null ? 0 : object.length;
+    }
+
+    /*
+    Copy the object into dst starting at offset, returning the number of bytes copied.
+     */
+    public int copyTo(byte[] dst, int offset) {
+        int length = getLength();
+        if (buffer != null) {
+            buffer.duplicate().get(dst, offset, length);
+        } else if (object != null) {
+            System.arraycopy(object, 0, dst, offset, length);
+        }
+        return length;
+    }
+
+    /*
+    Copy the object into dst at its position, which is moved on past it. Returns the number of bytes copied.
+     */
+    public int copyTo(ByteBuffer dst) {
+        int length = getLength();
+        if (buffer != null) {
+            dst.put(buffer.duplicate());
+        } else if (object != null) {
+            dst.put(object);
+        }
+        return length;
+    }
+
+    /*
+    The object as a byte array. For an object held off the heap this is a fresh copy.
+     */
+    public byte[] getBytes() {
+        if (buffer == null) {
+            return object;
+        }
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    public String getQueueEntityId() {
+        if (queueEntityId == null) {
+            queueEntityId = Receipt.toString(receipt);
+        }
+        return queueEntityId;
+    }
+}
@@ -0,0 +1,164 @@
+package memQueue;
+
+import org.junit.Test;
+import readResponse.ReadResponse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the lock free queue.
+ *
+ * The single threaded tests check the read, timeout and delete behaviour matches a QueueId. The stress tests run
+ * many producers and consumers at once and check no entry is ever handed out twice inside its timeout and no
+ * deleted entry is ever handed out again.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class LockFreeQueueTest {
+
+    @Test
+    public void readAndTimeout() throws Exception {
+        LockFreeQueue lfq = new LockFreeQueue("lfq");
+        long receipt = lfq.enqueue("A test message".getBytes());
+        ReadResponse readResponse = lfq.read(200);
+        assertEquals(receipt, readResponse.receipt);
+        assertEquals("A test message", new String(readResponse.object));
+        try {
+            lfq.read(0);
+            fail("The only entry should be invisible");
+        } catch (NoEntityException e) {
+            System.out.println("As expected, no mature entry");
+        }
+        Thread.sleep(250);
+        assertEquals(receipt, lfq.read(0).receipt);
+        lfq.dequeue(receipt);
+        try {
+            lfq.dequeue(receipt);
+            fail("The entry was already deleted");
+        } catch (NoEntityException e) {
+            System.out.println("Rightly refused a second delete");
+        }
+        try {
+            lfq.read(0);
+            fail("The queue should be empty");
+        } catch (NoEntityException e) {
+            System.out.println("Queue is now properly empty");
+        }
+        assertEquals(0, lfq.getSize());
+    }
+
+    /*
+    An entry deleted while waiting to be read is skipped over.
+     */
+    @Test
+    public void deleteWhileReady() throws Exception {
+        LockFreeQueue lfq = new LockFreeQueue("lfq");
+        long first = lfq.enqueue("first".getBytes());
+        long second = lfq.enqueue("second".getBytes());
+        lfq.dequeue(first);
+        assertEquals(second, lfq.read(1000).receipt);
+        lfq.dequeue(second);
+    }
+
+    @Test
+    public void stressNoRedeliveryInWindow() throws Exception {
+        stress(4, 4, 20000, 100, 5);
+    }
+
+    @Test
+    public void stressShortTimeouts() throws Exception {
+        stress(2, 8, 10000, 20, 3);
+    }
+
+    /*
+    Producers add perProducer entries each. Consumers read with the timeout given and one time in ackOneIn delete
+    what they get, otherwise they let the timeout run out so it is handed out again. Every delivery is noted with
+    the times just before and just after the read. The entry is claimed somewhere in that span, so two deliveries
+    of one entry that both fall inside a span shorter than the timeout must have been inside the one window. A slow
+    consumer can't cause a false report this way, only a real second delivery can. Likewise a delivery whose read
+    started after a delete of the entry had finished is a delivery of a deleted entry. The spans are read from the
+    queue's own clock so they're measured in the same milliseconds as its timeouts.
+     */
+    private void stress(int producers, int consumers, int perProducer, long timeout, int ackOneIn)
+            throws Exception {
+        final LockFreeQueue lfq = new LockFreeQueue("stress");
+        final int total = producers * perProducer;
+        final ConcurrentHashMap<Long, List<long[]>> deliveries = new ConcurrentHashMap<Long, List<long[]>>();
+        final ConcurrentHashMap<Long, Long> acked = new ConcurrentHashMap<Long, Long>();
+        final AtomicInteger redeliveredAfterAck = new AtomicInteger();
+        Thread[] threads = new Thread[producers + consumers];
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    lfq.enqueue(new byte[16]);
+                }
+            });
+        }
+        final long deadline = System.currentTimeMillis() + 60000;
+        for (int c = 0; c < consumers; c++) {
+            threads[producers + c] = new Thread(() -> {
+                while (acked.size() < total && System.currentTimeMillis() < deadline) {
+                    long startNanos = System.nanoTime();
+                    long start = QueueClock.monotonic().millis();
+                    ReadResponse readResponse;
+                    try {
+                        readResponse = lfq.read(timeout);
+                    } catch (NoEntityException e) {
+                        Thread.yield();
+                        continue;
+                    }
+                    long end = QueueClock.monotonic().millis();
+                    Long ackedAt = acked.get(readResponse.receipt);
+                    if (ackedAt != null && ackedAt < startNanos) {
+                        redeliveredAfterAck.incrementAndGet();
+                    }
+                    deliveries.computeIfAbsent(readResponse.receipt,
+                            r -> Collections.synchronizedList(new ArrayList<long[]>())).add(new long[]{start, end});
+                    if (ThreadLocalRandom.current().nextInt(ackOneIn) == 0) {
+                        try {
+                            lfq.dequeue(readResponse.receipt);
+                            acked.put(readResponse.receipt, System.nanoTime());
+                        } catch (NoEntityException e) {
+                            /*
+                            We were slow enough for it to time out and someone else deleted it.
+                             */
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        int doubleDeliveries = 0;
+        int redeliveries = 0;
+        for (List<long[]> spans : deliveries.values()) {
+            redeliveries += spans.size() - 1;
+            for (int i = 0; i < spans.size(); i++) {
+                for (int j = i + 1; j < spans.size(); j++) {
+                    long[] a = spans.get(i);
+                    long[] b = spans.get(j);
+                    if (Math.max(a[1], b[1]) - Math.min(a[0], b[0]) < timeout) {
+                        doubleDeliveries++;
+                    }
+                }
+            }
+        }
+        System.out.println("Stress: " + total + " entries, " + redeliveries + " handed out again");
+        assertEquals(0, doubleDeliveries);
+        assertEquals(0, redeliveredAfterAck.get());
+        assertEquals(total, acked.size());
+        assertEquals(0, lfq.getSize());
+    }
+}
@@ -0,0 +1,107 @@
+package memQueue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test routines for the priority index.
+ *
+ * As with the timing wheel these move time along by handing getEntryAfter a time of our choosing.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class PriorityTimeIndexTest {
+    private static final long NOW = 1000000;
+
+    private static PriorityTimeIndex index(int levels, long agingMillis) {
+        TimeIndex[] indexes = new TimeIndex[levels];
+        for (int level = 0; level < levels; level++) {
+            indexes[level] = new TimeDistQueue(UUID.randomUUID().toString());
+        }
+        return new PriorityTimeIndex(indexes, agingMillis);
+    }
+
+    private static TimeEntry entry(long receipt, int priority, long maturityTime) {
+        TimeEntry tE = new TimeEntry(receipt, null, maturityTime);
+        tE.priority = (byte) priority;
+        return tE;
+    }
+
+    /*
+    An urgent entry comes out ahead of a backlog of older bulk entries, and the bulk entries then come out in order.
+     */
+    @Test
+    public void highestLevelFirst() throws TimeQueueException {
+        PriorityTimeIndex index = index(8, 0);
+        ArrayList<TimeEntry> bulk = new ArrayList<TimeEntry>();
+        for (int i = 0; i < 1000; i++) {
+            bulk.add(entry(i + 1, 0, 0));
+        }
+        index.addAllAt(bulk, NOW - 100);
+        index.add(entry(5000, 7, NOW));
+        assertEquals(5000, index.getEntryAfter(NOW).receipt);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i + 1, index.getEntryAfter(NOW).receipt);
+        }
+        try {
+            index.getEntryAfter(NOW);
+            fail("The index should be empty");
+        } catch (TimeQueueException e) {
+        }
+        assertEquals(Long.MAX_VALUE, index.getNextMaturity());
+    }
+
+    /*
+    A higher level with nothing mature doesn't hold up a lower one.
+     */
+    @Test
+    public void immatureLevelPassedOver() throws TimeQueueException {
+        PriorityTimeIndex index = index(4, 0);
+        index.add(entry(1, 3, NOW + 1000));
+        index.add(entry(2, 1, NOW));
+        assertEquals(NOW, index.getNextMaturity());
+        assertEquals(2, index.getEntryAfter(NOW).receipt);
+        assertEquals(1, index.getEntryAfter(NOW + 1000).receipt);
+    }
+
+    /*
+    A low level entry kept waiting long enough past maturity is aged ahead of a higher level.
+     */
+    @Test
+    public void aging() throws TimeQueueException {
+        PriorityTimeIndex index = index(4, 10);
+        index.add(entry(1, 3, NOW));
+        index.add(entry(2, 0, NOW - 20));
+        assertEquals(1, index.getEntryAfter(NOW).receipt);
+        index.add(entry(3, 3, NOW));
+        index.add(entry(4, 0, NOW - 40));
+        assertEquals(4, index.getEntryAfter(NOW).receipt);
+    }
+
+    /*
+    Removing the last entry of a level empties it, and a mixed group keeps its order within each level.
+     */
+    @Test
+    public void removeAndMixedGroups() throws TimeQueueException {
+        PriorityTimeIndex index = index(4, 0);
+        TimeEntry only = entry(1, 2, NOW);
+        index.add(only);
+        index.remove(only);
+        assertEquals(Long.MAX_VALUE, index.getNextMaturity());
+        ArrayList<TimeEntry> group = new ArrayList<TimeEntry>();
+        group.add(entry(10, 1, 0));
+        group.add(entry(11, 1, 0));
+        group.add(entry(12, 3, 0));
+        group.add(entry(13, 1, 0));
+        index.addAllAt(group, NOW);
+        long[] expected = {12, 10, 11, 13};
+        for (long receipt : expected) {
+            assertEquals(receipt, index.getEntryAfter(NOW).receipt);
+        }
+    }
+}
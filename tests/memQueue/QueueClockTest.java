@@ -0,0 +1,85 @@
+package memQueue;
+
+import org.junit.Test;
+import readResponse.ReadResponse;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test routines for the clocks.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class QueueClockTest {
+
+    /*
+    The coarse clock follows its source a tick at a time and never goes back.
+     */
+    @Test
+    public void coarseClockTicks() throws Exception {
+        VirtualClock source = new VirtualClock(1000);
+        CoarseClock coarse = new CoarseClock(source, 1);
+        assertEquals(1000, coarse.millis());
+        source.advance(500);
+        Thread.sleep(50);
+        assertEquals(1500, coarse.millis());
+        source.set(1200);
+        Thread.sleep(50);
+        assertEquals(1500, coarse.millis());
+        coarse.stop();
+        long shared = QueueClock.coarse().millis();
+        Thread.sleep(50);
+        assertTrue(QueueClock.coarse().millis() > shared);
+    }
+
+    /*
+    The monotonic clock starts at the wall clock time and keeps step with it.
+     */
+    @Test
+    public void monotonicClockKeepsStep() {
+        MonotonicClock clock = new MonotonicClock();
+        assertTrue(Math.abs(clock.millis() - System.currentTimeMillis()) < 1000);
+        long last = clock.millis();
+        for (int i = 0; i < 100000; i++) {
+            long now = clock.millis();
+            assertTrue(now >= last);
+            last = now;
+        }
+    }
+
+    /*
+    A day of hourly timeouts and a delayed entry run through in no time on a virtual clock.
+     */
+    @Test
+    public void virtualDay() throws Exception {
+        VirtualClock clock = new VirtualClock();
+        QueueConfig config = new QueueConfig();
+        config.clock = clock;
+        config.timeIndex = TimeIndexKind.TIMING_WHEEL;
+        QueueId virtualQ = new QueueId("virtualclock", config);
+        byte[] object = new byte[] {1};
+        long receipt = virtualQ.enqueue(object);
+        long delayed = virtualQ.enqueue(new byte[] {2}, 90, TimeUnit.MINUTES);
+        long start = System.currentTimeMillis();
+        for (int hour = 0; hour < 24; hour++) {
+            ReadResponse readResponse = virtualQ.read(TimeUnit.HOURS.toMillis(1));
+            assertEquals(receipt, readResponse.receipt);
+            clock.advance(59, TimeUnit.MINUTES);
+            try {
+                readResponse = virtualQ.read(0);
+                assertEquals("Only the delayed entry may mature in the hour", delayed, readResponse.receipt);
+                virtualQ.dequeue(delayed);
+                assertEquals(1, hour);
+            } catch (NoEntityException e) {
+            }
+            clock.advance(1, TimeUnit.MINUTES);
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, virtualQ.getSize());
+        virtualQ.dequeue(receipt);
+        assertTrue(virtualQ.deleteQueue());
+    }
+}
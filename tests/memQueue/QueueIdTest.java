@@ -12,8 +12,28 @@ package memQueue;
 
 import org.junit.Assert;
 import org.junit.Test;
+import readResponse.ReadBatchResponse;
 import readResponse.ReadResponse;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static org.junit.Assert.*;
 
 public class QueueIdTest {
@@ -143,7 +163,7 @@ public class QueueIdTest {
         } catch (NoEntityException e) {
             e.printStackTrace();
         }
-        assertEquals(readResponse2.queueEntityId, readResponse.queueEntityId);
+        assertEquals(readResponse2.receipt, readResponse.receipt);
         /*
         Test that if we set the maturity out and try an immediat read we get nothing.
         Read and set the delay out, then sleep and try again expecting success
@@ -169,11 +189,11 @@ public class QueueIdTest {
             e.printStackTrace();
         }
         try {
-            aTestQ.dequeue(readResponse.queueEntityId);
+            aTestQ.dequeue(readResponse.receipt);
         } catch (NoEntityException e) {
             e.printStackTrace();
         }
-        assertEquals(readResponse2.queueEntityId, readResponse.queueEntityId);
+        assertEquals(readResponse2.receipt, readResponse.receipt);
         cleanup();
     }
 
@@ -197,7 +217,7 @@ public class QueueIdTest {
             e.printStackTrace();
         }
         try {
-            aTestQ.dequeue(dequeueResponse.queueEntityId);
+            aTestQ.dequeue(dequeueResponse.receipt);
         } catch (NoEntityException e) {
             e.printStackTrace();
         }
@@ -212,4 +232,1089 @@ public class QueueIdTest {
         cleanup();
     }
 
-}
\ No newline at end of file
+    /*
+    A long poll on an empty queue should come back with an exception once the wait runs out. When another thread
+    enqueues while we're parked we should be handed that entry well before the wait is up. Having read it with a
+    timeout we should then be woken again as it matures.
+     */
+    @Test
+    public void longPollRead() {
+        String testMsg = "A long poll message";
+        long start = System.currentTimeMillis();
+        try {
+            aTestQ.read(0, 50, TimeUnit.MILLISECONDS);
+            fail("Nothing should have been on the queue");
+        } catch (NoEntityException e) {
+            assertTrue(System.currentTimeMillis() - start >= 50);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        Thread enqueuer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+                aTestQ.enqueue(testMsg.getBytes());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        enqueuer.start();
+        ReadResponse readResponse = null;
+        start = System.currentTimeMillis();
+        try {
+            readResponse = aTestQ.read(200, 5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        assertEquals(testMsg, new String(readResponse.object));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        /*
+        The entry is invisible for the next 200ms. The long poll should hand it back once that's done.
+         */
+        ReadResponse readResponse2 = null;
+        start = System.currentTimeMillis();
+        try {
+            readResponse2 = aTestQ.read(0, 5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        assertEquals(readResponse.receipt, readResponse2.receipt);
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        try {
+            aTestQ.dequeue(readResponse.receipt);
+        } catch (NoEntityException e) {
+            e.printStackTrace();
+        }
+        cleanup();
+    }
+
+    /*
+    Enqueue a handful and pull them with batch reads. The first batch is capped at the size asked for, the second
+    gets the rest. Everything handed out is now invisible so a third batch is empty.
+     */
+    @Test
+    public void readBatch() {
+        byte[] testBuf = "A batch message".getBytes();
+        for (int i = 0; i < 5; i++) {
+            try {
+                bTestQ.enqueue(testBuf);
+            } catch (MissingQueueIdException e) {
+                e.printStackTrace();
+            }
+        }
+        ReadBatchResponse first = null, second = null, third = null;
+        try {
+            first = bTestQ.readBatch(3, 1000);
+            second = bTestQ.readBatch(3, 1000);
+            third = bTestQ.readBatch(3, 1000);
+        } catch (NoEntityException e) {
+            e.printStackTrace();
+        }
+        assertEquals(3, first.count);
+        assertEquals(2, second.count);
+        assertEquals(0, third.count);
+        for (ReadBatchResponse batch : new ReadBatchResponse[] {first, second}) {
+            for (int i = 0; i < batch.count; i++) {
+                try {
+                    bTestQ.dequeue(batch.receipts[i]);
+                } catch (NoEntityException e) {
+                    fail("Every entry in a batch should be unique and present");
+                }
+            }
+        }
+        cleanup();
+    }
+
+    /*
+    Enqueue a group, check the receipts are distinct and then remove them as a group along with an id that was never
+    there. Only that one should be reported as not removed.
+     */
+    @Test
+    public void enqueueAllDequeueAll() {
+        ArrayList<byte[]> objects = new ArrayList<byte[]>();
+        for (int i = 0; i < 100; i++) {
+            objects.add(("Message " + i).getBytes());
+        }
+        long[] receipts = null;
+        try {
+            receipts = cTestQ.enqueueAll(objects);
+        } catch (MissingQueueIdException e) {
+            e.printStackTrace();
+        }
+        assertEquals(100, receipts.length);
+        HashSet<Long> unique = new HashSet<Long>();
+        for (long receipt : receipts) {
+            unique.add(receipt);
+        }
+        assertEquals(100, unique.size());
+        ReadResponse readResponse = null;
+        try {
+            readResponse = cTestQ.read(1000);
+        } catch (NoEntityException e) {
+            e.printStackTrace();
+        }
+        assertEquals(receipts[0], readResponse.receipt);
+        assertEquals("Message 0", new String(readResponse.object));
+        ArrayList<String> toRemove = new ArrayList<String>();
+        for (long receipt : receipts) {
+            toRemove.add(Receipt.toString(receipt));
+        }
+        toRemove.add(1, "not-an-entity");
+        boolean[] removed = null;
+        try {
+            removed = cTestQ.dequeueAll(toRemove);
+        } catch (NoEntityException e) {
+            e.printStackTrace();
+        }
+        assertEquals(101, removed.length);
+        for (int i = 0; i < removed.length; i++) {
+            assertEquals(i != 1, removed[i]);
+        }
+        cleanup();
+    }
+
+    /*
+    A queue built on the timing wheel should behave just as one built on the tree map.
+     */
+    @Test
+    public void timingWheelQueue() {
+        QueueConfig config = new QueueConfig();
+        config.timeIndex = TimeIndexKind.TIMING_WHEEL;
+        QueueId wheelQ = null;
+        try {
+            wheelQ = new QueueId("wheeltest", config);
+        } catch (DuplicateQueueIdException e) {
+            e.printStackTrace();
+        }
+        ReadResponse readResponse = null, readResponse2 = null;
+        try {
+            wheelQ.enqueue("A wheel message".getBytes());
+            readResponse = wheelQ.read(100);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        assertEquals("A wheel message", new String(readResponse.object));
+        try {
+            wheelQ.read(0);
+            fail("The only entry should be invisible");
+        } catch (NoEntityException e) {
+            System.out.println("As expected, no mature entry");
+        }
+        try {
+            readResponse2 = wheelQ.read(0, 5, TimeUnit.SECONDS);
+            wheelQ.dequeue(readResponse2.receipt);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        assertEquals(readResponse.receipt, readResponse2.receipt);
+        assertTrue(wheelQ.deleteQueue());
+        cleanup();
+    }
+
+    /*
+    Once an entry is deleted its slot is reused. The old receipt must not reach the new entry.
+     */
+    @Test
+    public void staleReceipt() {
+        long first = 0, second = 0;
+        try {
+            first = aTestQ.enqueue("first".getBytes());
+            aTestQ.dequeue(first);
+            second = aTestQ.enqueue("second".getBytes());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        assertNotEquals(first, second);
+        try {
+            aTestQ.dequeue(first);
+            fail("A stale receipt should not find the new entry");
+        } catch (NoEntityException e) {
+            System.out.println("Stale receipt rightly refused");
+        }
+        ReadResponse readResponse = null;
+        try {
+            readResponse = aTestQ.read(0);
+            aTestQ.dequeue(readResponse.getQueueEntityId());
+        } catch (NoEntityException e) {
+            fail("The new entry should still be there");
+        }
+        assertEquals(second, readResponse.receipt);
+        assertEquals("second", new String(readResponse.object));
+        cleanup();
+    }
+
+    /*
+    Several producers and consumers on a sharded queue. Consumers long poll, read with a long timeout and dequeue
+    straight away, so every entry should be handed out exactly once and the queue end up empty.
+     */
+    @Test
+    public void shardedQueue() throws Exception {
+        QueueConfig config = new QueueConfig();
+        config.shards = 8;
+        final QueueId shardQ = new QueueId("shardtest", config);
+        final int perProducer = 5000;
+        final int threads = 4;
+        final ConcurrentHashMap<Long, Boolean> seen = new ConcurrentHashMap<Long, Boolean>();
+        final AtomicInteger duplicates = new AtomicInteger();
+        Thread[] workers = new Thread[threads * 2];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    try {
+                        shardQ.enqueue(new byte[8]);
+                    } catch (MissingQueueIdException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            workers[threads + t] = new Thread(() -> {
+                while (true) {
+                    ReadResponse readResponse;
+                    try {
+                        readResponse = shardQ.read(60000, 500, TimeUnit.MILLISECONDS);
+                        shardQ.dequeue(readResponse.receipt);
+                    } catch (Exception e) {
+                        break;
+                    }
+                    if (seen.put(readResponse.receipt, Boolean.TRUE) != null) {
+                        duplicates.incrementAndGet();
+                    }
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(0, duplicates.get());
+        assertEquals(threads * perProducer, seen.size());
+        assertTrue(shardQ.deleteQueue());
+        cleanup();
+    }
+
+    /*
+    Many threads racing to create the same names all end up with the one queue per name. A handle follows its name
+    on to a new queue once the old one is deleted.
+     */
+    @Test
+    public void registry() throws Exception {
+        final int names = 100;
+        final QueueId[][] found = new QueueId[8][names];
+        Thread[] threads = new Thread[found.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int row = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < names; i++) {
+                    found[row][i] = QueueId.getOrCreate("registry" + i);
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        for (int i = 0; i < names; i++) {
+            QueueId queueId = QueueId.getQueueIfPresent("registry" + i);
+            assertNotNull(queueId);
+            for (QueueId[] row : found) {
+                assertSame(queueId, row[i]);
+            }
+        }
+        assertNull(QueueId.getQueueIfPresent("registry" + names));
+        assertSame(aTestQ, QueueId.getOrCreate(aName));
+
+        QueueHandle handle = new QueueHandle("registry0");
+        QueueId first = handle.get();
+        assertSame(first, handle.get());
+        first.enqueue("queued".getBytes());
+        assertFalse(first.deleteQueue());
+        first.dequeue(first.read(0).receipt);
+        assertTrue(first.deleteQueue());
+        try {
+            handle.get();
+            fail("The queue was deleted");
+        } catch (MissingQueueIdException e) {
+            System.out.println("Handle rightly found the queue gone");
+        }
+        QueueId second = new QueueId("registry0");
+        assertSame(second, handle.get());
+        for (int i = 0; i < names; i++) {
+            assertTrue(QueueId.getQueue("registry" + i).deleteQueue());
+        }
+        cleanup();
+    }
+
+    /*
+    A queue keeping its objects off the heap. Objects come back as buffers holding what was enqueued, the caller's
+    array is copied rather than kept, and freed chunks are reused for the next objects of the same size.
+     */
+    @Test
+    public void offHeapPayloads() throws Exception {
+        QueueConfig config = new QueueConfig();
+        config.offHeapPayloads = true;
+        config.slabBytes = 1 << 12;
+        QueueId slabQ = new QueueId("slabtest", config);
+        byte[] message = "A test message".getBytes();
+        long receipt = slabQ.enqueue(message);
+        message[0] = 'X';
+        ReadResponse readResponse = slabQ.read(0);
+        assertEquals(receipt, readResponse.receipt);
+        assertNull(readResponse.object);
+        assertTrue(readResponse.getBuffer().isReadOnly());
+        assertEquals("A test message", new String(readResponse.getBytes()));
+        byte[] copy = new byte[20];
+        assertEquals(14, readResponse.copyTo(copy, 2));
+        assertEquals("A test message", new String(copy, 2, 14));
+
+        /*
+        A big object gets a buffer of its own, the rest share slabs.
+         */
+        byte[] big = new byte[10000];
+        big[9999] = 7;
+        long bigReceipt = slabQ.enqueue(big);
+        for (int i = 0; i < 100; i++) {
+            slabQ.enqueue(new byte[100]);
+        }
+        SlabStats stats = slabQ.getSlabStats();
+        assertEquals(102, stats.liveChunks);
+        assertEquals(14 + 10000 + 100 * 100, stats.payloadBytes);
+        int slabs = stats.slabs;
+
+        ReadBatchResponse batch = slabQ.readBatch(200, 60000);
+        assertEquals(102, batch.count);
+        for (int i = 0; i < batch.count; i++) {
+            if (batch.receipts[i] == bigReceipt) {
+                assertEquals(7, batch.get(i).getBytes()[9999]);
+            }
+            slabQ.dequeue(batch.receipts[i]);
+        }
+        stats = slabQ.getSlabStats();
+        assertEquals(0, stats.liveChunks);
+        assertEquals(0, stats.usedBytes);
+        for (int i = 0; i < 100; i++) {
+            slabQ.enqueue(new byte[100]);
+        }
+        assertEquals(slabs - 1, slabQ.getSlabStats().slabs);
+        System.out.println(slabQ.getSlabStats());
+        for (int i = 0; i < 100; i++) {
+            slabQ.dequeue(slabQ.read(0).receipt);
+        }
+        assertTrue(slabQ.deleteQueue());
+        cleanup();
+    }
+
+    /*
+    A queue spilling objects to disk past a small threshold. Enqueueing well past it keeps the bytes in memory
+    under the threshold with the rest on disk, on and off the heap alike.
+     */
+    @Test
+    public void spill() throws Exception {
+        for (boolean offHeap : new boolean[] {false, true}) {
+            File directory = Files.createTempDirectory("spilltest").toFile();
+            QueueConfig config = new QueueConfig();
+            config.offHeapPayloads = offHeap;
+            config.spillDirectory = directory.getPath();
+            config.spillThresholdBytes = 10000;
+            config.spillFileBytes = 20000;
+            config.spillReadAheadEntries = 50;
+            QueueId spillQ = new QueueId("spilltest", config);
+            HashMap<Long, Integer> sent = new HashMap<Long, Integer>();
+            for (int i = 0; i < 500; i++) {
+                byte[] message = new byte[100];
+                Arrays.fill(message, (byte) i);
+                sent.put(spillQ.enqueue(message), i);
+            }
+            SpillStats stats = spillQ.getSpillStats();
+            assertTrue(stats.residentBytes <= 10000);
+            assertEquals(500 * 100, stats.residentBytes + stats.spilledBytes);
+            assertTrue(stats.spilledEntries >= 400);
+
+            /*
+            Every object comes back as it went in, those on disk read back as the reads reach them, and memory
+            stays bounded throughout.
+             */
+            for (int i = 0; i < 500; i++) {
+                ReadResponse readResponse = spillQ.read(60000);
+                byte[] message = readResponse.getBytes();
+                assertEquals(100, message.length);
+                assertEquals((byte) (int) sent.remove(readResponse.receipt), message[99]);
+                spillQ.dequeue(readResponse.receipt);
+                assertTrue(spillQ.getSpillStats().residentBytes <= 10000);
+            }
+            assertTrue(sent.isEmpty());
+            stats = spillQ.getSpillStats();
+            assertEquals(0, stats.residentBytes);
+            assertEquals(0, stats.spilledEntries);
+            assertTrue(spillQ.deleteQueue());
+            assertEquals(0, directory.list().length);
+            directory.delete();
+        }
+        cleanup();
+    }
+
+    /*
+    An off heap object handed out stays as it was while its reader holds it, however much spilling goes on after,
+    rather than its chunk being freed and written over by the next enqueue.
+     */
+    @Test
+    public void spillKeepsReadBuffers() throws Exception {
+        File directory = Files.createTempDirectory("spilltest").toFile();
+        QueueConfig config = new QueueConfig();
+        config.offHeapPayloads = true;
+        config.spillDirectory = directory.getPath();
+        config.spillThresholdBytes = 10000;
+        QueueId spillQ = new QueueId("spillviewtest", config);
+        byte[] held = new byte[100];
+        Arrays.fill(held, (byte) 7);
+        spillQ.enqueue(held);
+        ReadResponse readResponse = spillQ.read(3600000);
+        ByteBuffer buffer = readResponse.buffer;
+        for (int i = 0; i < 500; i++) {
+            spillQ.enqueue(new byte[100]);
+        }
+        assertTrue(spillQ.getSpillStats().spilledEntries >= 400);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(7, buffer.get(i));
+        }
+        spillQ.dequeue(readResponse.receipt);
+        ReadBatchResponse rest = spillQ.readBatch(500, 0);
+        assertEquals(500, rest.count);
+        spillQ.dequeueAll(rest.receipts);
+        assertTrue(spillQ.deleteQueue());
+        directory.delete();
+        cleanup();
+    }
+
+    /*
+    Spill files that can't be written or read lose nothing. With the spill directory gone every enqueue still goes
+    in, its object kept in memory and the failure counted. With a spill file cut short a read of an entry whose
+    object is in it fails, batch or single, but the entries it pulled go back on the time queue. Once the file is
+    whole again every object comes back as it went in.
+     */
+    @Test
+    public void spillFailures() throws Exception {
+        File directory = Files.createTempDirectory("spilltest").toFile();
+        QueueConfig config = new QueueConfig();
+        config.spillDirectory = directory.getPath();
+        config.spillThresholdBytes = 10000;
+        config.spillFileBytes = 20000;
+        config.spillReadAheadEntries = 50;
+        QueueId spillQ = new QueueId("spillfailures", config);
+        HashMap<Long, Integer> sent = new HashMap<Long, Integer>();
+        sent.put(spillQ.enqueue(new byte[100]), 0);
+        File[] stores = directory.listFiles();
+        for (File store : stores) {
+            assertTrue(new File(store, SpillStore.LOCK_FILE).delete());
+            assertTrue(store.delete());
+        }
+        for (int i = 1; i < 300; i++) {
+            byte[] message = new byte[100];
+            Arrays.fill(message, (byte) i);
+            sent.put(spillQ.enqueue(message), i);
+        }
+        SpillStats stats = spillQ.getSpillStats();
+        assertEquals(300 * 100, stats.residentBytes);
+        assertEquals(0, stats.spilledEntries);
+        assertTrue(stats.failedSpills > 0);
+        for (File store : stores) {
+            assertTrue(store.mkdir());
+        }
+        byte[] last = new byte[100];
+        Arrays.fill(last, (byte) 300);
+        sent.put(spillQ.enqueue(last), 300);
+        assertTrue(spillQ.getSpillStats().spilledEntries > 0);
+
+        HashMap<File, byte[]> contents = new HashMap<File, byte[]>();
+        for (File store : stores) {
+            for (File file : store.listFiles((dir, name) -> name.endsWith(".spill"))) {
+                contents.put(file, Files.readAllBytes(file.toPath()));
+                Files.write(file.toPath(), new byte[0]);
+            }
+        }
+        try {
+            spillQ.readBatch(1000, 0);
+            fail("A batch read objects from a spill file cut short");
+        } catch (IllegalStateException e) {
+            System.out.println("As expected, the batch read failed");
+        }
+        try {
+            spillQ.read(60000);
+            fail("A read took an object from a spill file cut short");
+        } catch (IllegalStateException e) {
+            System.out.println("As expected, the read failed");
+        }
+        for (File file : contents.keySet()) {
+            Files.write(file.toPath(), contents.get(file));
+        }
+        for (int i = 0; i <= 300; i++) {
+            ReadResponse readResponse = spillQ.read(60000);
+            assertEquals((byte) (int) sent.remove(readResponse.receipt), readResponse.getBytes()[99]);
+            spillQ.dequeue(readResponse.receipt);
+        }
+        assertTrue(sent.isEmpty());
+        assertTrue(spillQ.deleteQueue());
+        directory.delete();
+        cleanup();
+    }
+
+    /*
+    A store left behind under the spill directory, its lock not held, is removed when the next store is made there.
+    A store in use, by another queue of this process, is left alone, and each queue's store goes once it's deleted.
+     */
+    @Test
+    public void spillSweep() throws Exception {
+        File directory = Files.createTempDirectory("spilltest").toFile();
+        File stale = new File(directory, "spill-stale");
+        assertTrue(stale.mkdir());
+        assertTrue(new File(stale, SpillStore.LOCK_FILE).createNewFile());
+        Files.write(new File(stale, "00000000.spill").toPath(), new byte[100]);
+        QueueConfig config = new QueueConfig();
+        config.spillDirectory = directory.getPath();
+        QueueId firstQ = new QueueId("spillsweepfirst", config);
+        firstQ.enqueue(new byte[100]);
+        assertFalse(stale.exists());
+        assertEquals(1, directory.list().length);
+        QueueId secondQ = new QueueId("spillsweepsecond", config);
+        secondQ.enqueue(new byte[100]);
+        assertEquals(2, directory.list().length);
+        firstQ.dequeue(firstQ.read(0).receipt);
+        assertTrue(firstQ.deleteQueue());
+        assertEquals(1, directory.list().length);
+        secondQ.dequeue(secondQ.read(0).receipt);
+        assertTrue(secondQ.deleteQueue());
+        assertEquals(0, directory.list().length);
+        directory.delete();
+        cleanup();
+    }
+
+    /*
+    A queue with an entry budget. An enqueue past the budget fails, and a delete makes room for the next. Every
+    entry counts for its object plus the fixed overhead.
+     */
+    @Test
+    public void budgets() throws Exception {
+        QueueConfig config = new QueueConfig();
+        config.budgetEntries = 10;
+        QueueId failQ = new QueueId("failtest", config);
+        byte[] message = new byte[100];
+        for (int i = 0; i < 10; i++) {
+            failQ.enqueue(message);
+        }
+        assertEquals(10, failQ.getBudget().getUsedEntries());
+        assertEquals(10 * (MemoryBudget.ENTRY_OVERHEAD_BYTES + 100), failQ.getBudget().getUsedBytes());
+        assertEquals(1.0, failQ.getBudget().getUsage(), 0.0001);
+        try {
+            failQ.enqueue(message);
+            fail("The budget should be full");
+        } catch (QueueFullException e) {
+            System.out.println(e.getMessage());
+        }
+        failQ.dequeue(failQ.read(0).receipt);
+        failQ.enqueue(message);
+
+        /*
+        Shedding deletes the entries maturing soonest.
+         */
+        config = new QueueConfig();
+        config.budgetEntries = 3;
+        config.budgetPolicy = BudgetPolicy.SHED;
+        QueueId shedQ = new QueueId("shedtest", config);
+        long[] receipts = new long[5];
+        for (int i = 0; i < 5; i++) {
+            receipts[i] = shedQ.enqueue(message);
+        }
+        assertEquals(3, shedQ.getBudget().getUsedEntries());
+        for (int i = 0; i < 2; i++) {
+            try {
+                shedQ.dequeue(receipts[i]);
+                fail("The entry should have been shed");
+            } catch (NoEntityException e) {
+            }
+        }
+        for (int i = 2; i < 5; i++) {
+            shedQ.dequeue(receipts[i]);
+        }
+        assertEquals(0, shedQ.getBudget().getUsedBytes());
+
+        /*
+        A blocked enqueue goes in once a delete makes room, or gives up after the wait.
+         */
+        config = new QueueConfig();
+        config.budgetEntries = 1;
+        config.budgetPolicy = BudgetPolicy.BLOCK;
+        config.budgetWaitMillis = 5000;
+        QueueId blockQ = new QueueId("blocktest", config);
+        long first = blockQ.enqueue(message);
+        Thread deleter = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+                blockQ.dequeue(first);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        deleter.start();
+        long start = System.currentTimeMillis();
+        long second = blockQ.enqueue(message);
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        deleter.join();
+        config.budgetWaitMillis = 50;
+        QueueId quickQ = new QueueId("quicktest", config);
+        quickQ.enqueue(message);
+        try {
+            quickQ.enqueue(message);
+            fail("The wait should have timed out");
+        } catch (QueueFullException e) {
+        }
+
+        /*
+        The global budget holds across queues.
+         */
+        MemoryBudget global = MemoryBudget.global();
+        long inUse = global.getUsedEntries();
+        global.setLimits(Long.MAX_VALUE, inUse);
+        try {
+            try {
+                shedQ.enqueue(message);
+                fail("The global budget should be full");
+            } catch (QueueFullException e) {
+            }
+            blockQ.dequeue(second);
+            shedQ.enqueue(message);
+        } finally {
+            global.setLimits(Long.MAX_VALUE, Long.MAX_VALUE);
+        }
+        cleanup();
+    }
+
+    /*
+    A queue keeping metrics counts its enqueues, reads, redeliveries, deletes and empty reads, times them, and
+    tells the entries ready apart from those in flight.
+     */
+    @Test
+    public void metrics() throws Exception {
+        QueueConfig config = new QueueConfig();
+        config.metrics = true;
+        QueueId metricQ = new QueueId("metrictest", config);
+        QueueMetrics metrics = metricQ.getMetrics();
+        for (int i = 0; i < 10; i++) {
+            metricQ.enqueue(new byte[10]);
+        }
+        metricQ.dequeue(metricQ.read(60000).receipt);
+        assertEquals(9, metricQ.readBatch(100, 0).count);
+        long single = metricQ.read(60000).receipt;
+        ReadBatchResponse inFlight = metricQ.readBatch(100, 60000);
+        assertEquals(8, inFlight.count);
+        try {
+            metricQ.read(0, 10, TimeUnit.MILLISECONDS);
+            fail("Nothing should be mature");
+        } catch (NoEntityException e) {
+        }
+        assertEquals(10, metrics.getEnqueueCount());
+        assertEquals(19, metrics.getReadCount());
+        assertEquals(9, metrics.getRedeliveryCount());
+        assertEquals(1, metrics.getDequeueCount());
+        assertTrue(metrics.getEmptyReadCount() >= 1);
+        assertEquals(10, metrics.getEnqueueLatency().getCount());
+        assertTrue(metrics.getLockWait().getCount() > 0);
+        QueueDepth depth = metricQ.getDepth();
+        assertEquals(0, depth.getReady());
+        assertEquals(9, depth.getInFlight());
+        System.out.println(metrics);
+
+        /*
+        The same figures through JMX.
+         */
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("memQueue:type=Queue,name=" + ObjectName.quote("metrictest"));
+        assertEquals(10L, server.getAttribute(name, "EnqueueCount"));
+        CompositeData jmxDepth = (CompositeData) server.getAttribute(name, "Depth");
+        assertEquals(9L, jmxDepth.get("inFlight"));
+        CompositeData latency = (CompositeData) server.getAttribute(name, "ReadLatency");
+        assertTrue((Long) latency.get("p99Nanos") > 0);
+        metricQ.dequeue(single);
+        metricQ.dequeueAll(Arrays.copyOf(inFlight.receipts, inFlight.count));
+        assertTrue(metricQ.deleteQueue());
+        assertFalse(server.isRegistered(name));
+
+        /*
+        Percentiles are never under the true value and over it by at most an eighth.
+         */
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long v = 1; v <= 100000; v++) {
+            histogram.record(v);
+        }
+        LatencySnapshot snapshot = histogram.snapshot();
+        assertEquals(100000, snapshot.getCount());
+        assertEquals(50000, snapshot.getMeanNanos());
+        assertTrue(snapshot.getP50Nanos() >= 50000 && snapshot.getP50Nanos() <= 50000 * 9 / 8);
+        assertTrue(snapshot.getP99Nanos() >= 99000 && snapshot.getP99Nanos() <= 100000);
+        assertEquals(100000, snapshot.percentile(100));
+        cleanup();
+    }
+
+    /*
+    The depth counts entries delayed, in flight and ready as they're enqueued, read, cancelled and deleted, on a
+    timing wheel with a backlog spread over the day as on a tree map. Once their time passes, delayed entries and
+    those whose timeout has run out count as ready without being read again.
+     */
+    @Test
+    public void depth() throws Exception {
+        VirtualClock clock = new VirtualClock();
+        QueueConfig config = new QueueConfig();
+        config.timeIndex = TimeIndexKind.TIMING_WHEEL;
+        config.clock = clock;
+        QueueId depthQ = new QueueId("depthtest", config);
+        long[] later = new long[1000];
+        for (int i = 0; i < later.length; i++) {
+            later[i] = depthQ.enqueue(new byte[] {1}, (i + 1) * 60L, TimeUnit.SECONDS);
+        }
+        long[] now = depthQ.enqueueAll(Arrays.asList(new byte[10][1]));
+        assertEquals(5, depthQ.readBatch(5, 60000).count);
+        QueueDepth depth = depthQ.getDepth();
+        assertEquals(1000, depth.getDelayed());
+        assertEquals(5, depth.getInFlight());
+        assertEquals(5, depth.getReady());
+        clock.advance(60, TimeUnit.SECONDS);
+        depth = depthQ.getDepth();
+        assertEquals(999, depth.getDelayed());
+        assertEquals(0, depth.getInFlight());
+        assertEquals(11, depth.getReady());
+        for (int i = 0; i < 100; i++) {
+            assertTrue(depthQ.cancel(later[i]));
+        }
+        depthQ.dequeueAll(now);
+        depth = depthQ.getDepth();
+        assertEquals(900, depth.getDelayed());
+        assertEquals(0, depth.getInFlight());
+        assertEquals(0, depth.getReady());
+        depthQ.dequeueAll(Arrays.copyOfRange(later, 100, later.length));
+        assertTrue(depthQ.deleteQueue());
+        cleanup();
+    }
+
+    /*
+    While recording, each entry handed out a second time, by read as by readBatch, makes a Redelivery event with
+    its receive count and how long it had been mature, never less than 0. Each of enqueueAll, readBatch and
+    dequeueAll makes a Batch event naming the queue.
+     */
+    @Test
+    public void flightRecorderEvents() throws Exception {
+        QueueId jfrQ = new QueueId("jfrtest");
+        File dump = File.createTempFile("queue", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("memQueue.Redelivery");
+            recording.enable("memQueue.Batch").withThreshold(Duration.ZERO);
+            recording.start();
+            ArrayList<byte[]> objects = new ArrayList<byte[]>();
+            for (int i = 0; i < 5; i++) {
+                objects.add(new byte[10]);
+            }
+            jfrQ.enqueueAll(objects);
+            jfrQ.readBatch(10, 0);
+            ReadBatchResponse batch = jfrQ.readBatch(10, 60000);
+            jfrQ.dequeueAll(Arrays.copyOf(batch.receipts, batch.count));
+            jfrQ.enqueue(new byte[10]);
+            jfrQ.read(0);
+            jfrQ.dequeue(jfrQ.read(60000).receipt);
+            recording.stop();
+            recording.dump(dump.toPath());
+        }
+        int redeliveries = 0;
+        HashSet<String> operations = new HashSet<String>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump.toPath())) {
+            if (event.getEventType().getName().equals("memQueue.Redelivery")) {
+                assertEquals(2, event.getInt("receiveCount"));
+                assertTrue(event.getLong("overdue") >= 0);
+                redeliveries++;
+            } else if (event.getEventType().getName().equals("memQueue.Batch")) {
+                assertEquals("jfrtest", event.getString("queue"));
+                operations.add(event.getString("operation"));
+            }
+        }
+        dump.delete();
+        assertEquals(6, redeliveries);
+        assertEquals(3, operations.size());
+        assertTrue(jfrQ.deleteQueue());
+        cleanup();
+    }
+
+    /*
+    The estimated overhead grows by at least a TimeEntry and at most a few hundred bytes per entry on the tree
+    map, and grows on the timing wheel and the lock free queue too.
+     */
+    @Test
+    public void footprint() throws Exception {
+        QueueConfig config = new QueueConfig();
+        config.shards = 1;
+        QueueId footQ = new QueueId("footprinttest", config);
+        long empty = footQ.estimatedOverheadBytes();
+        for (int i = 0; i < 1000; i++) {
+            footQ.enqueue(new byte[16]);
+        }
+        assertEquals(1000, footQ.getSize());
+        long full = footQ.estimatedOverheadBytes();
+        assertTrue(full - empty >= 1000L * Footprint.TIME_ENTRY);
+        assertTrue(full - empty <= 1000L * 250);
+        ReadBatchResponse batch;
+        do {
+            batch = footQ.readBatch(1000, 0);
+            footQ.dequeueAll(Arrays.copyOf(batch.receipts, batch.count));
+        } while (batch.count > 0);
+        assertEquals(0, footQ.getSize());
+        assertTrue(footQ.deleteQueue());
+
+        config.timeIndex = TimeIndexKind.TIMING_WHEEL;
+        QueueId wheelQ = new QueueId("footprintwheel", config);
+        long wheelEmpty = wheelQ.estimatedOverheadBytes();
+        long receipt = wheelQ.enqueue(new byte[16]);
+        assertTrue(wheelQ.estimatedOverheadBytes() > wheelEmpty);
+        wheelQ.dequeue(receipt);
+        assertTrue(wheelQ.deleteQueue());
+
+        LockFreeQueue lockFree = new LockFreeQueue("footprintlockfree");
+        lockFree.enqueue(new byte[16]);
+        assertTrue(lockFree.estimatedOverheadBytes() > 0);
+        cleanup();
+    }
+
+    /*
+    An entry read maxReceives times and not deleted is moved to the dead letter queue, object and all, when it
+    next matures, the read that comes upon it handing out the next entry instead. Until then each redelivery is
+    backed off. Batch reads dead letter the same way.
+     */
+    @Test
+    public void deadLetters() throws Exception {
+        QueueId deadQ = new QueueId("deadlettertest");
+        QueueConfig config = new QueueConfig();
+        config.redeliveryBackoffMillis = 50;
+        config.maxReceives = 2;
+        config.deadLetterQueue = "deadlettertest";
+        config.metrics = true;
+        QueueId poisonQ = new QueueId("poisontest", config);
+        byte[] poison = new byte[] {1};
+        poisonQ.enqueue(poison);
+        assertSame(poison, poisonQ.read(0).object);
+        assertSame(poison, poisonQ.read(0).object);
+        try {
+            poisonQ.read(0);
+            fail("A redelivered entry should be backed off");
+        } catch (NoEntityException e) {
+        }
+        Thread.sleep(60);
+        byte[] healthy = new byte[] {2};
+        long receipt = poisonQ.enqueue(healthy);
+        ReadResponse readResponse = poisonQ.read(60000);
+        assertSame(healthy, readResponse.object);
+        poisonQ.dequeue(receipt);
+        assertEquals(0, poisonQ.getSize());
+        assertEquals(1, poisonQ.getMetrics().getDeadLetterCount());
+        readResponse = deadQ.read(60000);
+        assertSame(poison, readResponse.object);
+        deadQ.dequeue(readResponse.receipt);
+
+        ArrayList<byte[]> objects = new ArrayList<byte[]>();
+        for (int i = 0; i < 3; i++) {
+            objects.add(new byte[] {(byte) i});
+        }
+        long[] receipts = poisonQ.enqueueAll(objects);
+        assertEquals(3, poisonQ.readBatch(10, 0).count);
+        assertEquals(3, poisonQ.readBatch(10, 0).count);
+        assertEquals(0, poisonQ.readBatch(10, 0).count);
+        poisonQ.dequeueAll(receipts);
+        assertTrue(poisonQ.deleteQueue());
+        assertTrue(deadQ.deleteQueue());
+        cleanup();
+    }
+
+    /*
+    An entry read too many times is never dropped for want of a dead letter queue. With none named it's handed out
+    as usual. With one named that doesn't exist it's handed out too and counted as a miss, then moved once the dead
+    letter queue is made.
+     */
+    @Test
+    public void deadLetterMissing() throws Exception {
+        QueueConfig config = new QueueConfig();
+        config.maxReceives = 1;
+        QueueId unnamedQ = new QueueId("nodeadletter", config);
+        long receipt = unnamedQ.enqueue(new byte[] {1});
+        for (int i = 0; i < 3; i++) {
+            assertEquals(receipt, unnamedQ.read(0).receipt);
+        }
+        assertEquals(1, unnamedQ.getSize());
+        unnamedQ.dequeue(receipt);
+        assertTrue(unnamedQ.deleteQueue());
+
+        config.deadLetterQueue = "missingdeadletter";
+        config.metrics = true;
+        QueueId missingQ = new QueueId("missingdeadlettertest", config);
+        byte[] poison = new byte[] {2};
+        receipt = missingQ.enqueue(poison);
+        assertEquals(receipt, missingQ.read(0).receipt);
+        assertEquals(receipt, missingQ.read(0).receipt);
+        assertEquals(1, missingQ.getSize());
+        assertEquals(0, missingQ.getMetrics().getDeadLetterCount());
+        assertEquals(1, missingQ.getMetrics().getDeadLetterMissCount());
+        QueueId deadQ = new QueueId("missingdeadletter");
+        try {
+            missingQ.read(0);
+            fail("The entry should have been moved to the dead letter queue");
+        } catch (NoEntityException e) {
+        }
+        assertEquals(0, missingQ.getSize());
+        assertEquals(1, missingQ.getMetrics().getDeadLetterCount());
+        ReadResponse readResponse = deadQ.read(60000);
+        assertSame(poison, readResponse.object);
+        deadQ.dequeue(readResponse.receipt);
+        assertTrue(missingQ.deleteQueue());
+        assertTrue(deadQ.deleteQueue());
+        cleanup();
+    }
+
+    /*
+    Two queues that are each other's dead letter queue, each with a long poll reader parked on it. Each reader takes
+    out its queue's entry as a dead letter and moves it to the other queue, where the other reader picks it up,
+    without the two locking each other out.
+     */
+    @Test
+    public void crossDeadLetters() throws Exception {
+        QueueId[] queues = new QueueId[2];
+        for (int q = 0; q < 2; q++) {
+            QueueConfig config = new QueueConfig();
+            config.maxReceives = 1;
+            config.deadLetterQueue = "crossdeadletter" + (1 - q);
+            queues[q] = new QueueId("crossdeadletter" + q, config);
+        }
+        for (int round = 0; round < 20; round++) {
+            long[] sent = new long[2];
+            for (int q = 0; q < 2; q++) {
+                sent[q] = queues[q].enqueue(new byte[] {(byte) q});
+                assertEquals(sent[q], queues[q].read(20).receipt);
+            }
+            ReadResponse[] received = new ReadResponse[2];
+            Thread[] readers = new Thread[2];
+            for (int q = 0; q < 2; q++) {
+                int which = q;
+                readers[q] = new Thread(() -> {
+                    try {
+                        received[which] = queues[which].read(60000, 5, TimeUnit.SECONDS);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                });
+                readers[q].setDaemon(true);
+                readers[q].start();
+            }
+            for (int q = 0; q < 2; q++) {
+                readers[q].join(10000);
+                assertFalse("The readers deadlocked", readers[q].isAlive());
+                assertNotNull(received[q]);
+                assertEquals(1 - q, received[q].object[0]);
+                queues[q].dequeue(received[q].receipt);
+            }
+        }
+        for (QueueId queue : queues) {
+            assertTrue(queue.deleteQueue());
+        }
+        cleanup();
+    }
+
+    /*
+    An urgent entry is handed out ahead of a backlog of bulk entries enqueued before it, and a level the queue
+    doesn't have is refused.
+     */
+    @Test
+    public void priorities() throws Exception {
+        QueueConfig config = new QueueConfig();
+        config.priorityLevels = 8;
+        QueueId priorityQ = new QueueId("prioritytest", config);
+        ArrayList<byte[]> bulk = new ArrayList<byte[]>();
+        for (int i = 0; i < 100; i++) {
+            bulk.add(new byte[] {0});
+        }
+        long[] receipts = priorityQ.enqueueAll(bulk);
+        byte[] urgent = new byte[] {7};
+        long urgentReceipt = priorityQ.enqueue(urgent, 7);
+        ReadResponse readResponse = priorityQ.read(60000);
+        assertSame(urgent, readResponse.object);
+        priorityQ.dequeue(urgentReceipt);
+        try {
+            priorityQ.enqueue(urgent, 8);
+            fail("There is no level 8");
+        } catch (IllegalArgumentException e) {
+        }
+        assertEquals(100, priorityQ.readBatch(200, 60000).count);
+        priorityQ.dequeueAll(receipts);
+        assertTrue(priorityQ.deleteQueue());
+        cleanup();
+    }
+
+    /*
+    An entry scheduled for the future isn't handed out before then, while one scheduled in the past is
+    straight away. Only an entry never handed out may be cancelled, and only once.
+     */
+    @Test
+    public void scheduled() throws Exception {
+        QueueId schedQ = new QueueId("scheduledtest");
+        long later = schedQ.enqueue(new byte[] {1}, 1, TimeUnit.DAYS);
+        byte[] past = new byte[] {2};
+        long pastReceipt = schedQ.enqueueAt(past, System.currentTimeMillis() - 1000);
+        ReadResponse readResponse = schedQ.read(60000);
+        assertSame(past, readResponse.object);
+        try {
+            schedQ.read(0);
+            fail("Nothing else should be mature");
+        } catch (NoEntityException e) {
+        }
+        assertEquals(1, schedQ.getDepth().getDelayed());
+        assertFalse(schedQ.cancel(pastReceipt));
+        assertTrue(schedQ.cancel(later));
+        assertFalse(schedQ.cancel(later));
+        assertEquals(1, schedQ.getSize());
+        schedQ.dequeue(pastReceipt);
+
+        /*
+        A reader already parked is woken when a delayed entry it's waiting for matures.
+         */
+        ReadResponse[] woken = new ReadResponse[1];
+        Thread reader = new Thread(() -> {
+            try {
+                woken[0] = schedQ.read(60000, 5, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        long start = System.currentTimeMillis();
+        reader.start();
+        Thread.sleep(50);
+        byte[] delayed = new byte[] {3};
+        schedQ.enqueue(delayed, 100, TimeUnit.MILLISECONDS);
+        reader.join();
+        assertSame(delayed, woken[0].object);
+        long took = System.currentTimeMillis() - start;
+        assertTrue(took >= 140 && took < 5000);
+        schedQ.dequeue(woken[0].receipt);
+        assertTrue(schedQ.deleteQueue());
+
+        QueueConfig config = new QueueConfig();
+        config.timeIndex = TimeIndexKind.TIMING_WHEEL;
+        QueueId wheelQ = new QueueId("scheduledwheel", config);
+        ArrayList<byte[]> objects = new ArrayList<byte[]>();
+        for (int i = 0; i < 10000; i++) {
+            objects.add(new byte[] {4});
+        }
+        long[] farOff = wheelQ.enqueueAllAt(objects, System.currentTimeMillis() + TimeUnit.DAYS.toMillis(3), 0);
+        byte[] now = new byte[] {5};
+        long nowReceipt = wheelQ.enqueue(now);
+        assertSame(now, wheelQ.read(60000).object);
+        assertTrue(wheelQ.cancel(farOff[5000]));
+        wheelQ.dequeue(nowReceipt);
+        assertEquals(9999, wheelQ.getSize());
+        wheelQ.dequeueAll(farOff);
+        assertTrue(wheelQ.deleteQueue());
+        cleanup();
+    }
+}
@@ -0,0 +1,203 @@
+package memQueue;
+
+import org.junit.Test;
+import readResponse.ReadBatchResponse;
+import readResponse.ReadResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test routines for the queue publisher.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class QueuePublisherTest {
+
+    /*
+    A subscriber that asks for a set number up front and keeps what it's given for the test to look at.
+     */
+    private static class Collector implements Flow.Subscriber<ReadResponse> {
+        final BlockingQueue<ReadResponse> received = new LinkedBlockingQueue<ReadResponse>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        final long initial;
+        volatile QueuePublisher.QueueSubscription subscription;
+        volatile Throwable error;
+
+        Collector(long initial) {
+            this.initial = initial;
+        }
+
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = (QueuePublisher.QueueSubscription) subscription;
+            if (initial > 0) {
+                subscription.request(initial);
+            }
+        }
+
+        public void onNext(ReadResponse item) {
+            received.add(item);
+        }
+
+        public void onError(Throwable throwable) {
+            error = throwable;
+            completed.countDown();
+        }
+
+        public void onComplete() {
+            completed.countDown();
+        }
+
+        List<ReadResponse> take(int n) throws InterruptedException {
+            List<ReadResponse> taken = new ArrayList<ReadResponse>();
+            for (int i = 0; i < n; i++) {
+                ReadResponse readResponse = received.poll(5, TimeUnit.SECONDS);
+                assertNotNull("Entry " + i + " of " + n + " never came", readResponse);
+                taken.add(readResponse);
+            }
+            return taken;
+        }
+    }
+
+    private static void enqueue(QueueId queue, int n) throws MissingQueueIdException {
+        for (int i = 0; i < n; i++) {
+            queue.enqueue(new byte[] {(byte) i});
+        }
+    }
+
+    /*
+    No more entries are read than have been asked for, and asking for more hands out more.
+     */
+    @Test
+    public void demand() throws Exception {
+        QueueId pubQ = new QueueId("publisherdemand");
+        enqueue(pubQ, 100);
+        Collector collector = new Collector(10);
+        new QueuePublisher(pubQ, 30000).subscribe(collector);
+        List<ReadResponse> first = collector.take(10);
+        Thread.sleep(50);
+        assertTrue(collector.received.isEmpty());
+        assertEquals(90, pubQ.getDepth().getReady());
+        assertEquals(10, collector.subscription.getHandedOut());
+        collector.subscription.request(90);
+        List<ReadResponse> rest = collector.take(90);
+        for (ReadResponse readResponse : first) {
+            collector.subscription.ack(readResponse);
+        }
+        for (ReadResponse readResponse : rest) {
+            collector.subscription.ack(readResponse);
+        }
+        assertEquals(0, collector.subscription.getHandedOut());
+        assertEquals(0, pubQ.getSize());
+        assertTrue(pubQ.deleteQueue());
+        assertTrue(collector.completed.await(5, TimeUnit.SECONDS));
+        assertNull(collector.error);
+    }
+
+    /*
+    A subscriber waiting on an empty queue gets an entry as it's enqueued, and a delayed entry once it matures and
+    not before. The timeout of an entry left alone running out hands it out again.
+     */
+    @Test
+    public void maturity() throws Exception {
+        QueueId pubQ = new QueueId("publishermaturity");
+        Collector collector = new Collector(Long.MAX_VALUE);
+        new QueuePublisher(pubQ, 200).subscribe(collector);
+        Thread.sleep(50);
+        long now = System.currentTimeMillis();
+        long receipt = pubQ.enqueue(new byte[] {1});
+        assertEquals(receipt, collector.take(1).get(0).receipt);
+        assertTrue(System.currentTimeMillis() - now < 1000);
+        long delayed = pubQ.enqueue(new byte[] {2}, 300, TimeUnit.MILLISECONDS);
+        now = System.currentTimeMillis();
+        ReadResponse first = collector.take(1).get(0);
+        assertEquals(receipt, first.receipt);
+        assertTrue(System.currentTimeMillis() - now >= 140);
+        collector.subscription.ack(first);
+        ReadResponse second = collector.take(1).get(0);
+        assertEquals(delayed, second.receipt);
+        assertTrue(System.currentTimeMillis() - now >= 290);
+        collector.subscription.ack(second);
+        collector.subscription.cancel();
+        assertTrue(pubQ.deleteQueue());
+    }
+
+    /*
+    Cancelling gives back the entries handed out and not acked, so another subscriber has them straight away.
+     */
+    @Test
+    public void cancel() throws Exception {
+        QueueId pubQ = new QueueId("publishercancel");
+        enqueue(pubQ, 10);
+        QueuePublisher publisher = new QueuePublisher(pubQ, 30000);
+        Collector collector = new Collector(10);
+        publisher.subscribe(collector);
+        List<ReadResponse> taken = collector.take(10);
+        for (int i = 0; i < 3; i++) {
+            collector.subscription.ack(taken.get(i));
+        }
+        collector.subscription.cancel();
+        Collector successor = new Collector(100);
+        publisher.subscribe(successor);
+        successor.take(7);
+        Thread.sleep(50);
+        assertTrue(successor.received.isEmpty());
+        assertEquals(0, collector.subscription.getHandedOut());
+        assertEquals(7, pubQ.getSize());
+        successor.subscription.cancel();
+    }
+
+    /*
+    An entry is only given back on cancelling while inside its timeout. One handed out again since, to this
+    subscriber or another reader, stays with whoever has it now, and the old reading is forgotten.
+     */
+    @Test
+    public void cancelAfterTimeout() throws Exception {
+        QueueId pubQ = new QueueId("publishercanceltimeout");
+        long receipt = pubQ.enqueue(new byte[] {1});
+        Collector collector = new Collector(1);
+        new QueuePublisher(pubQ, 200).subscribe(collector);
+        assertEquals(receipt, collector.take(1).get(0).receipt);
+        Thread.sleep(300);
+        collector.subscription.request(1);
+        assertEquals(receipt, collector.take(1).get(0).receipt);
+        assertEquals(1, collector.subscription.getHandedOut());
+        Thread.sleep(300);
+        ReadBatchResponse other = pubQ.readBatch(1, 30000);
+        assertEquals(1, other.count);
+        assertEquals(receipt, other.receipts[0]);
+        collector.subscription.cancel();
+        Thread.sleep(50);
+        assertEquals(0, collector.subscription.getHandedOut());
+        assertEquals(0, pubQ.readBatch(1, 30000).count);
+        pubQ.dequeue(receipt);
+        assertEquals(0, pubQ.getSize());
+        assertTrue(pubQ.deleteQueue());
+    }
+
+    /*
+    Asking for no entries is an error, and ends the subscription.
+     */
+    @Test
+    public void badRequest() throws Exception {
+        QueueId pubQ = new QueueId("publisherbadrequest");
+        enqueue(pubQ, 1);
+        Collector collector = new Collector(0);
+        new QueuePublisher(pubQ, 30000).subscribe(collector);
+        collector.subscription.request(0);
+        assertTrue(collector.completed.await(5, TimeUnit.SECONDS));
+        assertTrue(collector.error instanceof IllegalArgumentException);
+        collector.subscription.request(1);
+        Thread.sleep(50);
+        assertTrue(collector.received.isEmpty());
+        assertEquals(1, pubQ.getDepth().getReady());
+    }
+}
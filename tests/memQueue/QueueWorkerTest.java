@@ -0,0 +1,179 @@
+package memQueue;
+
+import org.junit.Test;
+import readResponse.ReadBatchResponse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test routines for the queue worker.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class QueueWorkerTest {
+
+    private static List<byte[]> objects(int n) {
+        List<byte[]> objects = new ArrayList<byte[]>(n);
+        for (int i = 0; i < n; i++) {
+            objects.add(new byte[] {(byte) (i >> 8), (byte) i});
+        }
+        return objects;
+    }
+
+    /*
+    Every entry is handled and deleted. Those answered RETRY, or whose handler throws, come round again and are
+    deleted the second time.
+     */
+    @Test
+    public void outcomes() throws Exception {
+        QueueId workQ = new QueueId("workeroutcomes");
+        long[] receipts = workQ.enqueueAll(objects(1000));
+        ConcurrentHashMap<Long, AtomicInteger> seen = new ConcurrentHashMap<Long, AtomicInteger>();
+        WorkerConfig config = new WorkerConfig();
+        config.concurrency = 16;
+        config.failureDelayMillis = 10;
+        CountDownLatch done = new CountDownLatch(1000);
+        QueueWorker worker = new QueueWorker(workQ, readResponse -> {
+            int times = seen.computeIfAbsent(readResponse.receipt, r -> new AtomicInteger()).incrementAndGet();
+            int which = (readResponse.object[0] & 0xff) << 8 | readResponse.object[1] & 0xff;
+            if (times == 1 && which % 10 == 0) {
+                return Outcome.RETRY;
+            }
+            if (times == 1 && which % 10 == 1) {
+                throw new IllegalStateException("Handler failed");
+            }
+            done.countDown();
+            return Outcome.SUCCESS;
+        }, config);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(worker.shutdown(1, TimeUnit.SECONDS));
+        assertEquals(1000, worker.getSucceeded());
+        assertEquals(100, worker.getRetried());
+        assertEquals(100, worker.getFailed());
+        assertEquals(0, worker.getRunning());
+        for (long receipt : receipts) {
+            assertTrue(seen.containsKey(receipt));
+        }
+        assertEquals(0, workQ.getSize());
+        assertTrue(workQ.deleteQueue());
+    }
+
+    /*
+    Handlers that block each take a thread, so with enough concurrency a thousand of them blocking 50ms go through
+    in a few rounds rather than one after another.
+     */
+    @Test
+    public void blockingHandlers() throws Exception {
+        QueueId workQ = new QueueId("workerblocking");
+        workQ.enqueueAll(objects(1000));
+        WorkerConfig config = new WorkerConfig();
+        config.concurrency = 500;
+        CountDownLatch done = new CountDownLatch(1000);
+        long start = System.currentTimeMillis();
+        QueueWorker worker = new QueueWorker(workQ, readResponse -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return Outcome.RETRY;
+            }
+            done.countDown();
+            return Outcome.SUCCESS;
+        }, config);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        worker.close();
+        assertEquals(1000, worker.getSucceeded());
+        assertEquals(0, workQ.getSize());
+        assertTrue(workQ.deleteQueue());
+    }
+
+    /*
+    Entries are only read while there's a handler free, and shutdown waits for the handlers running before it
+    returns. The entries never read are left on the queue.
+     */
+    @Test
+    public void drainOnShutdown() throws Exception {
+        QueueId workQ = new QueueId("workerdrain");
+        workQ.enqueueAll(objects(100));
+        WorkerConfig config = new WorkerConfig();
+        config.concurrency = 4;
+        CountDownLatch started = new CountDownLatch(4);
+        CountDownLatch release = new CountDownLatch(1);
+        QueueWorker worker = new QueueWorker(workQ, readResponse -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return Outcome.RETRY;
+            }
+            return Outcome.SUCCESS;
+        }, config);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(4, worker.getRunning());
+        assertEquals(96, workQ.getDepth().getReady());
+        assertFalse(worker.shutdown(50, TimeUnit.MILLISECONDS));
+        new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+            }
+            release.countDown();
+        }).start();
+        assertTrue(worker.shutdown(5, TimeUnit.SECONDS));
+        assertEquals(4, worker.getSucceeded());
+        assertEquals(96, workQ.getSize());
+        ReadBatchResponse rest = workQ.readBatch(100, 0);
+        assertEquals(96, rest.count);
+        workQ.dequeueAll(rest.receipts);
+        assertTrue(workQ.deleteQueue());
+    }
+
+    /*
+    A read failing unexpectedly is counted, kept and passed to the failure handler, and the dispatcher goes on
+    reading once it's backed off rather than dying and leaving the entries to sit there.
+     */
+    @Test
+    public void dispatchFailure() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        QueueId workQ = new QueueId("workerdispatchfailure") {
+            @Override
+            public ReadBatchResponse readBatch(int max, long timeout, long maxWait, TimeUnit unit)
+                    throws NoEntityException, InterruptedException {
+                if (reads.getAndIncrement() == 0) {
+                    throw new IllegalStateException("Read failed");
+                }
+                return super.readBatch(max, timeout, maxWait, unit);
+            }
+        };
+        workQ.enqueueAll(objects(10));
+        CountDownLatch done = new CountDownLatch(10);
+        List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+        WorkerConfig config = new WorkerConfig();
+        config.dispatchFailureHandler = failures::add;
+        QueueWorker worker = new QueueWorker(workQ, readResponse -> {
+            done.countDown();
+            return Outcome.SUCCESS;
+        }, config);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(worker.isDispatching());
+        assertEquals(1, worker.getDispatchFailures());
+        assertEquals("Read failed", worker.getLastDispatchFailure().getMessage());
+        assertEquals(1, failures.size());
+        assertSame(worker.getLastDispatchFailure(), failures.get(0));
+        worker.close();
+        assertFalse(worker.isDispatching());
+        assertEquals(10, worker.getSucceeded());
+        assertEquals(0, workQ.getSize());
+        assertTrue(workQ.deleteQueue());
+    }
+}
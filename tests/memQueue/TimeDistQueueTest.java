@@ -66,4 +66,34 @@ public class TimeDistQueueTest {
         assertEquals(0, tdq.getSize());
     }
 
-}
\ No newline at end of file
+    /*
+    Entries taken out of the middle of a list must not come back, and removing the last one at a time value must
+    remove the key as well.
+     */
+    @Test
+    public void remove() {
+        TimeEntry first = new TimeEntry("first", 0);
+        TimeEntry middle = new TimeEntry("middle", 0);
+        TimeEntry last = new TimeEntry("last", 0);
+        middle.timeWhenAvailable = first.timeWhenAvailable;
+        last.timeWhenAvailable = first.timeWhenAvailable;
+        TimeEntry alone = new TimeEntry("alone", 1000);
+        tdq.add(first);
+        tdq.add(middle);
+        tdq.add(last);
+        tdq.add(alone);
+        assertEquals(2, tdq.getSize());
+        tdq.remove(middle);
+        tdq.remove(alone);
+        assertEquals(1, tdq.getSize());
+        try {
+            assertEquals("first", tdq.getEntryAfter().queueEntryId);
+            assertEquals("last", tdq.getEntryAfter().queueEntryId);
+        } catch (TimeQueueException e) {
+            fail("Two entries should be mature");
+        }
+        assertEquals(0, tdq.getSize());
+        assertEquals(Long.MAX_VALUE, tdq.getNextMaturity());
+    }
+
+}
@@ -0,0 +1,118 @@
+package memQueue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test routines for the timing wheel.
+ *
+ * Rather than sleeping these move time along by handing getEntryAfter a time of our choosing.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class TimingWheelTest {
+    private TimingWheel tw;
+
+    public TimingWheelTest() {
+        tw = new TimingWheel(UUID.randomUUID().toString());
+    }
+
+    /*
+    Entries sharing a tick must come out in the order they went in.
+     */
+    @Test
+    public void fifoWithinTick() {
+        ArrayList<String> ids = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            ids.add("entry-" + i);
+        }
+        tw.addAll(ids, 5);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++) {
+            try {
+                assertEquals(ids.get(i), tw.getEntryAfter(now + 10).getQueueEntryId());
+            } catch (TimeQueueException e) {
+                fail("All entries should be mature");
+            }
+        }
+        assertEquals(0, tw.getSize());
+    }
+
+    /*
+    Nothing comes out before it's mature, including entries far enough out to start on the overflow list.
+     */
+    @Test
+    public void notBeforeMaturity() {
+        long farOut = 1L << 34;
+        tw.add("soon", 1000);
+        tw.add("far", farOut);
+        long now = System.currentTimeMillis();
+        try {
+            tw.getEntryAfter(now);
+            fail("Nothing should be mature yet");
+        } catch (TimeQueueException e) {
+            System.out.println("As expected, no mature entry");
+        }
+        assertTrue(tw.getNextMaturity() <= now + 1000);
+        TimeEntry te = null;
+        try {
+            te = tw.getEntryAfter(now + 2000);
+        } catch (TimeQueueException e) {
+            fail("The first entry should be mature");
+        }
+        assertEquals("soon", te.getQueueEntryId());
+        try {
+            tw.getEntryAfter(now + farOut - 2000);
+            fail("The far entry should not be mature yet");
+        } catch (TimeQueueException e) {
+            System.out.println("As expected, far entry not mature");
+        }
+        try {
+            te = tw.getEntryAfter(now + farOut + 2000);
+        } catch (TimeQueueException e) {
+            fail("The far entry should be mature");
+        }
+        assertEquals("far", te.getQueueEntryId());
+    }
+
+    /*
+    A spread of random maturities from a millisecond to a couple of months out. Stepping time along, each entry
+    handed out must be mature and they must come out in maturity order.
+     */
+    @Test
+    public void randomMaturities() {
+        Random random = new Random(42);
+        int count = 20000;
+        for (int i = 0; i < count; i++) {
+            long timeout = random.nextInt(4) == 0 ? (long) (random.nextDouble() * (1L << 33)) : random.nextInt(100000);
+            tw.add(Integer.toString(i), timeout);
+        }
+        long now = System.currentTimeMillis();
+        long lastMaturity = Long.MIN_VALUE;
+        int seen = 0;
+        while (seen < count) {
+            long next = tw.getNextMaturity();
+            assertTrue(next != Long.MAX_VALUE);
+            now = Math.max(now, next);
+            try {
+                while (true) {
+                    TimeEntry te = tw.getEntryAfter(now);
+                    assertTrue(te.timeWhenAvailable <= now);
+                    assertTrue(te.timeWhenAvailable >= lastMaturity);
+                    lastMaturity = te.timeWhenAvailable;
+                    seen++;
+                }
+            } catch (TimeQueueException e) {
+                now++;
+            }
+        }
+        assertEquals(0, tw.getSize());
+        assertEquals(Long.MAX_VALUE, tw.getNextMaturity());
+    }
+}
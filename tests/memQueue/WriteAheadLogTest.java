@@ -0,0 +1,330 @@
+package memQueue;
+
+import org.junit.Test;
+import readResponse.ReadBatchResponse;
+import readResponse.ReadResponse;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of durable queues and their write ahead log.
+ *
+ * A restart is faked by taking the queue out of the registry and making a new one on the same log directory.
+ *
+ * @author tonyaiello
+ * @version 1.0
+ */
+public class WriteAheadLogTest {
+
+    private QueueConfig durable(File directory) {
+        QueueConfig config = new QueueConfig();
+        config.walDirectory = directory.getPath();
+        config.walSegmentBytes = 1 << 12;
+        return config;
+    }
+
+    private QueueId restart(QueueId queueId, QueueConfig config) throws Exception {
+        QueueId.queMaps.remove(queueId.getQueueName());
+        return new QueueId(queueId.getQueueName(), config);
+    }
+
+    /*
+    Live entries come back under the receipts they had, with the maturity their last read gave them. Deleted
+    entries stay deleted.
+     */
+    @Test
+    public void recovery() throws Exception {
+        File directory = Files.createTempDirectory("waltest").toFile();
+        QueueConfig config = durable(directory);
+        config.shards = 2;
+        QueueId walQ = new QueueId("waltest", config);
+        long a = walQ.enqueue("A".getBytes());
+        assertEquals(a, walQ.read(60000).receipt);
+        long b = walQ.enqueue("B".getBytes());
+        long c = walQ.enqueue("C".getBytes());
+        List<byte[]> group = new ArrayList<byte[]>();
+        for (int i = 0; i < 200; i++) {
+            group.add(new byte[64]);
+        }
+        long[] grouped = walQ.enqueueAll(group);
+        walQ.dequeueAll(grouped);
+        walQ.dequeue(b);
+
+        walQ = restart(walQ, config);
+        ReadResponse readResponse = walQ.read(60000);
+        assertEquals(c, readResponse.receipt);
+        assertEquals("C", new String(readResponse.object));
+        try {
+            walQ.read(0);
+            fail("A was read with a long timeout before the restart");
+        } catch (NoEntityException e) {
+            System.out.println("As expected, A is still invisible");
+        }
+        try {
+            walQ.dequeue(b);
+            fail("B was deleted before the restart");
+        } catch (NoEntityException e) {
+            System.out.println("As expected, B is gone");
+        }
+        long d = walQ.enqueue("D".getBytes());
+        assertNotEquals(a, d);
+        assertNotEquals(c, d);
+
+        walQ = restart(walQ, config);
+        walQ.dequeue(a);
+        walQ.dequeue(c);
+        walQ.dequeue(d);
+        assertTrue(walQ.deleteQueue());
+        assertFalse(directory.exists());
+    }
+
+    /*
+    Many threads enqueueing and deleting at once share forces, and the segments emptied by deletes are reclaimed.
+     */
+    @Test
+    public void groupCommit() throws Exception {
+        File directory = Files.createTempDirectory("waltest").toFile();
+        QueueConfig config = durable(directory);
+        config.walSyncIntervalMillis = 2;
+        final QueueId walQ = new QueueId("walgroup", config);
+        final int perThread = 500;
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < perThread; i++) {
+                        walQ.dequeue(walQ.enqueue(new byte[32]));
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        WriteAheadLog wal = walQ.wal;
+        int operations = threads.length * perThread * 2;
+        System.out.println("Group commit: " + wal.getSyncCount() + " forces for " + operations + " operations");
+        assertTrue(wal.getSyncCount() < operations / 2);
+        walQ.dequeueAll(new long[0]);
+        walQ.dequeue(walQ.enqueue(new byte[32]));
+        assertTrue(wal.getSegmentCount() <= 3);
+        assertTrue(walQ.deleteQueue());
+    }
+
+    /*
+    Deleting the queue while a delete is still waiting for its record to be forced leaves the waiter to finish
+    cleanly rather than sync segments that have gone.
+     */
+    @Test
+    public void deleteWhileSyncing() throws Exception {
+        File directory = Files.createTempDirectory("waltest").toFile();
+        QueueConfig config = durable(directory);
+        config.walSyncIntervalMillis = 200;
+        final QueueId walQ = new QueueId("waldeletesync", config);
+        final long receipt = walQ.enqueue(new byte[32]);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread deleter = new Thread(() -> {
+            try {
+                walQ.dequeue(receipt);
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        deleter.start();
+        Thread.sleep(50);
+        assertTrue(walQ.deleteQueue());
+        deleter.join();
+        assertNull(failure.get());
+        assertFalse(directory.exists());
+    }
+
+    /*
+    An enqueue whose record can't be logged, here as a directory has taken the next segment's name, fails and
+    leaves nothing behind: no entry, none of its bytes counted or its room in the budget kept, and the shard lock
+    free for another thread. Once the log can be written to again the queue carries on, and a restart finds only
+    the entries that went in.
+     */
+    @Test
+    public void failedAppend() throws Exception {
+        File directory = Files.createTempDirectory("waltest").toFile();
+        QueueConfig config = durable(directory);
+        final QueueId walQ = new QueueId("walfailedappend", config);
+        List<Long> receipts = new ArrayList<Long>();
+        receipts.add(walQ.enqueue(new byte[1024]));
+        File blocker = new File(directory, String.format("segment-%08x.wal", 1));
+        assertTrue(blocker.mkdir());
+        try {
+            while (true) {
+                receipts.add(walQ.enqueue(new byte[1024]));
+            }
+        } catch (IllegalStateException e) {
+            System.out.println("As expected, the enqueue failed: " + e.getMessage());
+        }
+        assertEquals(receipts.size(), walQ.getSize());
+        assertEquals(receipts.size() * 1024L, walQ.getSpillStats().residentBytes);
+        assertEquals(receipts.size(), walQ.getBudget().getUsedEntries());
+        FutureTask<QueueDepth> depth = new FutureTask<QueueDepth>(walQ::getDepth);
+        new Thread(depth).start();
+        assertEquals(receipts.size(), depth.get(5, TimeUnit.SECONDS).getReady());
+        assertTrue(blocker.delete());
+        receipts.add(walQ.enqueue(new byte[1024]));
+
+        QueueId restarted = restart(walQ, config);
+        for (long receipt : receipts) {
+            restarted.dequeue(receipt);
+        }
+        assertEquals(0, restarted.getSize());
+        assertTrue(restarted.deleteQueue());
+        assertFalse(directory.exists());
+    }
+
+    /*
+    A group whose records can't all be logged goes in not at all, and gives back the room it took in the budget,
+    both for the entries that had gone in and those that hadn't.
+     */
+    @Test
+    public void failedGroupAppend() throws Exception {
+        File directory = Files.createTempDirectory("waltest").toFile();
+        QueueConfig config = durable(directory);
+        config.budgetEntries = 100;
+        QueueId walQ = new QueueId("walfailedgroup", config);
+        long first = walQ.enqueue(new byte[1024]);
+        File blocker = new File(directory, String.format("segment-%08x.wal", 1));
+        assertTrue(blocker.mkdir());
+        List<byte[]> group = new ArrayList<byte[]>();
+        for (int i = 0; i < 8; i++) {
+            group.add(new byte[1024]);
+        }
+        try {
+            walQ.enqueueAll(group);
+            fail("The group went in with the log unable to take it");
+        } catch (IllegalStateException e) {
+            System.out.println("As expected, the group failed: " + e.getMessage());
+        }
+        assertEquals(1, walQ.getSize());
+        assertEquals(1, walQ.getBudget().getUsedEntries());
+        assertEquals(MemoryBudget.ENTRY_OVERHEAD_BYTES + 1024, walQ.getBudget().getUsedBytes());
+        assertTrue(blocker.delete());
+        long[] receipts = walQ.enqueueAll(group);
+        assertEquals(9, walQ.getBudget().getUsedEntries());
+        walQ.dequeue(first);
+        walQ.dequeueAll(receipts);
+        assertEquals(0, walQ.getBudget().getUsedEntries());
+        assertTrue(walQ.deleteQueue());
+    }
+
+    /*
+    A checkpoint written while another thread keeps adding and deleting entries, followed by more changes, then a
+    restart. Every entry live at the restart comes back with its object and nothing else does. The log before the
+    checkpoint is gone.
+     */
+    @Test
+    public void checkpoint() throws Exception {
+        File directory = Files.createTempDirectory("waltest").toFile();
+        QueueConfig config = durable(directory);
+        config.shards = 2;
+        QueueId walQ = new QueueId("walcheckpoint", config);
+        final Map<Long, String> live = new ConcurrentHashMap<Long, String>();
+        for (int i = 0; i < 3000; i++) {
+            String object = "entry " + i;
+            long receipt = walQ.enqueue(object.getBytes());
+            if (i % 3 == 0) {
+                walQ.dequeue(receipt);
+            } else {
+                live.put(receipt, object);
+            }
+        }
+        walQ.readBatch(500, 60000);
+        final QueueId busyQ = walQ;
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread busy = new Thread(() -> {
+            int i = 0;
+            try {
+                while (!stop.get()) {
+                    String object = "busy " + i++;
+                    long receipt = busyQ.enqueue(object.getBytes());
+                    if (i % 2 == 0) {
+                        busyQ.dequeue(receipt);
+                    } else {
+                        live.put(receipt, object);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        busy.start();
+        walQ.checkpoint();
+        stop.set(true);
+        busy.join();
+        File checkpoint = Checkpoint.latest(directory);
+        assertNotNull(checkpoint);
+        int deleted = 0;
+        for (Long receipt : live.keySet()) {
+            if (deleted++ % 5 == 0) {
+                walQ.dequeue(receipt);
+                live.remove(receipt);
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            String object = "after " + i;
+            live.put(walQ.enqueue(object.getBytes()), object);
+        }
+        for (String name : directory.list()) {
+            if (name.startsWith("segment-")) {
+                assertTrue(Integer.parseInt(name.substring(8, 16), 16) >= Checkpoint.startSegment(checkpoint));
+            }
+        }
+
+        walQ = restart(walQ, config);
+        ReadBatchResponse batch = walQ.readBatch(live.size(), 60000);
+        assertTrue(batch.count > 0);
+        for (int i = 0; i < batch.count; i++) {
+            assertEquals(live.get(batch.receipts[i]), new String(batch.objects[i]));
+        }
+        for (Long receipt : live.keySet()) {
+            walQ.dequeue(receipt);
+        }
+        assertTrue(walQ.deleteQueue());
+        assertFalse(directory.exists());
+    }
+
+    /*
+    Priorities come back whether the entry was replayed from the log or loaded from a checkpoint.
+     */
+    @Test
+    public void priorities() throws Exception {
+        File directory = Files.createTempDirectory("waltest").toFile();
+        QueueConfig config = durable(directory);
+        config.priorityLevels = 4;
+        QueueId walQ = new QueueId("walpriorities", config);
+        long low = walQ.enqueue("low".getBytes());
+        long high = walQ.enqueue("high".getBytes(), 3);
+        walQ.checkpoint();
+        long middle = walQ.enqueue("middle".getBytes(), 2);
+
+        walQ = restart(walQ, config);
+        assertEquals(high, walQ.read(60000).receipt);
+        assertEquals(middle, walQ.read(60000).receipt);
+        assertEquals(low, walQ.read(60000).receipt);
+        walQ.dequeueAll(new long[] {low, middle, high});
+        assertTrue(walQ.deleteQueue());
+        assertFalse(directory.exists());
+    }
+}